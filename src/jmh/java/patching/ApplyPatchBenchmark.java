@@ -0,0 +1,57 @@
+package patching;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks applying a patch of ten diffs to documents from 1KB to 10MB, with either LF or CRLF line endings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// PatchManager starts a non-daemon thread; don't wait for it when the fork exits.
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+@State(Scope.Benchmark)
+public class ApplyPatchBenchmark {
+    private static final int DIFF_COUNT = 10;
+
+    @Param({"1024", "102400", "1048576", "10485760"})
+    public int documentSize;
+
+    @Param({"LF", "CRLF"})
+    public String lineEnding;
+
+    private PatchManager patchManager;
+    private String document;
+    private List<Patch> patches;
+
+    @Setup
+    public void setup() {
+        patchManager = new PatchManager();
+
+        String line = "some text on a line of the document" + ("CRLF".equals(lineEnding) ? "\r\n" : "\n");
+        StringBuilder sb = new StringBuilder(documentSize + line.length());
+        while (sb.length() < documentSize) {
+            sb.append(line);
+        }
+        document = sb.toString();
+
+        // Evenly spread insertions, placed at the start of a line so they never split a line ending.
+        List<Diff> diffs = new ArrayList<>();
+        int lineCount = document.length() / line.length();
+        for (int i = 0; i < DIFF_COUNT; i++) {
+            diffs.add(new Diff(true, (lineCount * i / DIFF_COUNT) * line.length(), "inserted"));
+        }
+        patches = Collections.singletonList(new Patch(0, diffs));
+    }
+
+    @Benchmark
+    public String applyPatch() {
+        return patchManager.applyPatch(document, patches);
+    }
+}
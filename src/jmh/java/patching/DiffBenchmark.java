@@ -0,0 +1,48 @@
+package patching;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing, serializing and line ending conversion of single diffs, which happens for every change that is
+ * sent or received.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiffBenchmark {
+    private String diffString;
+    private Diff diff;
+    private String crlfBase;
+
+    @Setup
+    public void setup() {
+        diff = new Diff(true, 4000, "public void method() {\n    return;\n}\n");
+        diffString = diff.toString();
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 8192) {
+            sb.append("a line of source code;\r\n");
+        }
+        crlfBase = sb.toString();
+    }
+
+    @Benchmark
+    public Diff parse() {
+        return new Diff(diffString);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return diff.toString();
+    }
+
+    @Benchmark
+    public Diff convertToCRLF() {
+        return diff.convertToCRLF(crlfBase);
+    }
+}
@@ -0,0 +1,50 @@
+package patching;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks transforming a patch against a concurrent patch, with both patches containing diffCount diffs spread
+ * across the document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PatchTransformBenchmark {
+    @Param({"1", "10", "100"})
+    public int diffCount;
+
+    private Patch patch;
+    private Patch other;
+
+    @Setup
+    public void setup() {
+        patch = createPatch(0, 0);
+        other = createPatch(0, 7);
+    }
+
+    private Patch createPatch(long baseVersion, int offset) {
+        List<Diff> diffs = new ArrayList<>();
+        for (int i = 0; i < diffCount; i++) {
+            // Alternate insertions and deletions, keeping indices increasing.
+            diffs.add(new Diff(i % 2 == 0, i * 20 + offset, "abcde"));
+        }
+        return new Patch(baseVersion, diffs);
+    }
+
+    @Benchmark
+    public Patch transform() {
+        return patch.transform(false, other);
+    }
+
+    @Benchmark
+    public Patch transformWithPrecedence() {
+        return patch.transform(true, other);
+    }
+}
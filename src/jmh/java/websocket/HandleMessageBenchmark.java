@@ -0,0 +1,60 @@
+package websocket;
+
+import org.openjdk.jmh.annotations.*;
+import websocket.models.ConnectionConfig;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding File.Change notifications received from the server, both from a complete string and
+ * incrementally from a reader, as well as dropping notifications that no handler is registered for.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// WSConnection starts a non-daemon thread; don't wait for it when the fork exits.
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+@State(Scope.Benchmark)
+public class HandleMessageBenchmark {
+    private WSManager wsManager;
+    private String notification;
+    private String unhandledNotification;
+
+    @Setup
+    public void setup() {
+        // Handlers run on the calling thread; the connection is never opened.
+        wsManager = new WSManager(new WSConnection(new ConnectionConfig("ws://localhost", false, 0)));
+        wsManager.registerNotificationHandler("File", "Change", notification -> {
+        });
+
+        StringBuilder changes = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            if (i > 0) {
+                changes.append(',');
+            }
+            changes.append(String.format("\"v%d:\\n%d:+12:hello%%20world\"", i, i * 40));
+        }
+        notification = String.format("{\"Type\":\"Notification\",\"Timestamp\":1500000000000,\"ServerMessage\":"
+                + "{\"Resource\":\"File\",\"Method\":\"Change\",\"ResourceID\":1,"
+                + "\"Data\":{\"BaseFileVersion\":0,\"FileVersion\":10,\"Changes\":[%s]}}}", changes);
+        unhandledNotification = notification.replace("\"Method\":\"Change\"", "\"Method\":\"Rename\"");
+    }
+
+    @Benchmark
+    public void handleMessageString() {
+        wsManager.handleMessage(notification);
+    }
+
+    @Benchmark
+    public void handleMessageReader() throws IOException {
+        wsManager.handleMessage(new StringReader(notification));
+    }
+
+    @Benchmark
+    public void discardUnhandledNotification() {
+        wsManager.handleMessage(unhandledNotification);
+    }
+}
@@ -0,0 +1,52 @@
+package dataMgmt;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Identifies file contents by a hash of the contents. FileMetadata records the hash of the last known contents of
+ * each file, so that identical contents can be recognized without transferring or writing them again. The contents
+ * themselves are only kept by the FileContentCache.
+ */
+public class ContentStore {
+    // Fast, non-cryptographic; only used to recognize our own contents, never to authenticate them.
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final AtomicLong bytesSaved = new AtomicLong(0);
+
+    /**
+     * Creates an empty ContentStore.
+     */
+    protected ContentStore() {
+    }
+
+    /**
+     * Computes the hash that identifies the given contents.
+     *
+     * @param contents the contents to hash
+     * @return the hash of the contents, as a hex string
+     */
+    public static String hash(byte[] contents) {
+        return HASH_FUNCTION.hashBytes(contents).toString();
+    }
+
+    /**
+     * Records that a transfer or disk write was skipped because the contents were already known.
+     *
+     * @param bytes the size of the contents that did not have to be transferred or written
+     */
+    public void recordBytesSaved(long bytes) {
+        bytesSaved.addAndGet(bytes);
+    }
+
+    /**
+     * Gets the total size of the transfers and writes that were skipped since this store was created.
+     *
+     * @return the number of bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+}
@@ -3,7 +3,8 @@ package dataMgmt;
 import patching.PatchManager;
 
 /**
- * The facade that contains the active PatchManager, FileContentWriter, MetadataManager, and SessionStorage.
+ * The facade that contains the active PatchManager, FileContentWriter, FileContentCache, ContentStore, MetadataManager,
+ * and SessionStorage.
  * Created by Benedict on 5/9/2016.
  */
 public class DataManager {
@@ -30,6 +31,8 @@ public class DataManager {
     private FileContentWriter fileContentWriter;
     private MetadataManager metadataManager;
     private SessionStorage sessionStorage;
+    private FileContentCache fileContentCache;
+    private ContentStore contentStore;
 
     /**
      * Get the active FileContentWriter
@@ -75,6 +78,28 @@ public class DataManager {
         return sessionStorage;
     }
 
+    /**
+     * Get the active FileContentCache
+     * @return the active FileContentCache
+     */
+    public FileContentCache getFileContentCache() {
+        if(fileContentCache == null){
+            this.fileContentCache = new FileContentCache();
+        }
+        return fileContentCache;
+    }
+
+    /**
+     * Get the active ContentStore
+     * @return the active ContentStore
+     */
+    public ContentStore getContentStore() {
+        if(contentStore == null){
+            this.contentStore = new ContentStore();
+        }
+        return contentStore;
+    }
+
     /**
      * Set the active FileContentWriter
      * @param fileContentWriter the new active FileContentWriter
@@ -106,4 +131,20 @@ public class DataManager {
     public void setSessionStorage(SessionStorage sessionStorage) {
         this.sessionStorage = sessionStorage;
     }
+
+    /**
+     * Set the active FileContentCache
+     * @param fileContentCache the new active FileContentCache
+     */
+    public void setFileContentCache(FileContentCache fileContentCache) {
+        this.fileContentCache = fileContentCache;
+    }
+
+    /**
+     * Set the active ContentStore
+     * @param contentStore the new active ContentStore
+     */
+    public void setContentStore(ContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
 }
@@ -0,0 +1,273 @@
+package dataMgmt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Caches the most recently pulled content of each file, along with the version that content corresponds to.
+ * This allows a re-pull of the file to only request the changes made since the cached version.
+ * <p>
+ * A cache created with a directory is persistent: every entry is also written to its own file, named
+ * {@code <fileID>-<version>.cache}, and read back when the cache is reopened, so reopening a project can reuse the
+ * contents pulled in an earlier session. Entries are kept in memory rather than mapped, so that their files can be
+ * deleted or replaced while they are in use on every platform. The cache is bounded by the total size of its entries;
+ * the least recently used entries are evicted first.
+ * <p>
+ * Files are written and deleted outside of the cache's lock, so a slow disk doesn't block lookups.
+ */
+public class FileContentCache {
+    public static final Logger logger = LogManager.getLogger("datamgmt");
+
+    private static final String CACHE_SUFFIX = ".cache";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // The directory the cache is persisted in, or null if it is only kept in memory
+    private final Path directory;
+    private final long maxBytes;
+
+    // The mapping of fileIDs to their latest known contents, in access order
+    private final LinkedHashMap<Long, CachedFile> cachedFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    /**
+     * Creates an empty, unbounded FileContentCache that is only kept in memory.
+     */
+    protected FileContentCache() {
+        this.directory = null;
+        this.maxBytes = Long.MAX_VALUE;
+    }
+
+    /**
+     * Opens (or creates) a persistent FileContentCache in the given directory, and loads the entries that were
+     * cached in it before.
+     *
+     * @param directory the directory to keep the cached contents in
+     * @param maxBytes  the maximum total size of the cached contents
+     * @throws IOException if the directory could not be created or read
+     */
+    public FileContentCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * Gets the cached contents of the given file.
+     *
+     * @param fileID the fileID of the file to look up
+     * @return the cached file, or null if the file is not cached.
+     */
+    public CachedFile get(long fileID) {
+        synchronized (cachedFiles) {
+            return cachedFiles.get(fileID);
+        }
+    }
+
+    /**
+     * Caches the contents of a file at the given version, replacing any older cached version.
+     *
+     * @param fileID   the fileID of the file
+     * @param version  the version of the file that the contents correspond to
+     * @param contents the contents of the file
+     */
+    public void put(long fileID, long version, byte[] contents) {
+        CachedFile cachedFile = new CachedFile(version, contents);
+        List<Path> removed = new ArrayList<>();
+        synchronized (cachedFiles) {
+            CachedFile existing = cachedFiles.get(fileID);
+            if (existing != null && existing.getVersion() >= version) {
+                return;
+            }
+
+            remove(fileID, cachedFiles.remove(fileID), removed);
+            cachedFiles.put(fileID, cachedFile);
+            cachedBytes += cachedFile.getSize();
+            evict(removed);
+        }
+        delete(removed);
+
+        if (directory == null) {
+            return;
+        }
+        try {
+            write(fileID, version, contents);
+        } catch (IOException e) {
+            // Still cache the contents for this session.
+            logger.error(String.format("FileContentCache: Failed to persist contents of file %d", fileID), e);
+            return;
+        }
+
+        // The entry may have been replaced, invalidated or evicted while it was being written, in which case its
+        // file was deleted before it existed.
+        boolean stillCached;
+        synchronized (cachedFiles) {
+            stillCached = cachedFiles.get(fileID) == cachedFile;
+        }
+        if (!stillCached) {
+            delete(Collections.singletonList(cachePath(fileID, version)));
+        }
+    }
+
+    /**
+     * Removes the given file from the cache.
+     *
+     * @param fileID the fileID of the file to remove
+     */
+    public void invalidate(long fileID) {
+        List<Path> removed = new ArrayList<>();
+        synchronized (cachedFiles) {
+            remove(fileID, cachedFiles.remove(fileID), removed);
+        }
+        delete(removed);
+    }
+
+    private void evict(List<Path> removed) {
+        Iterator<Map.Entry<Long, CachedFile>> iterator = cachedFiles.entrySet().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Long, CachedFile> eldest = iterator.next();
+            iterator.remove();
+            remove(eldest.getKey(), eldest.getValue(), removed);
+        }
+    }
+
+    /**
+     * Releases a cached file that is no longer in the index; must be called while holding cachedFiles.
+     *
+     * @param removed collects the persisted copy of the file, to be deleted once the lock is released
+     */
+    private void remove(long fileID, CachedFile cachedFile, List<Path> removed) {
+        if (cachedFile == null) {
+            return;
+        }
+        cachedBytes -= cachedFile.getSize();
+        if (directory != null) {
+            removed.add(cachePath(fileID, cachedFile.getVersion()));
+        }
+    }
+
+    private void delete(List<Path> paths) {
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.error(String.format("FileContentCache: Failed to delete cached contents %s", path), e);
+            }
+        }
+    }
+
+    private void write(long fileID, long version, byte[] contents) throws IOException {
+        Path path = cachePath(fileID, version);
+
+        // Write to a temporary file first, so that a crash never leaves a half-written entry behind.
+        Path tmpPath = directory.resolve(path.getFileName() + TMP_SUFFIX);
+        try (FileChannel tmp = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                tmp.write(buffer);
+            }
+            tmp.force(false);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (path.getFileName().toString().endsWith(TMP_SUFFIX)) {
+                    Files.deleteIfExists(path);
+                } else if (path.getFileName().toString().endsWith(CACHE_SUFFIX)) {
+                    paths.add(path);
+                }
+            }
+        }
+
+        // Load the least recently written entries first, so they are also the first to be evicted.
+        Map<Path, Long> modifiedTimes = new HashMap<>();
+        for (Path path : paths) {
+            modifiedTimes.put(path, Files.getLastModifiedTime(path).toMillis());
+        }
+        paths.sort(Comparator.comparing(modifiedTimes::get));
+
+        List<Path> removed = new ArrayList<>();
+        synchronized (cachedFiles) {
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                long fileID;
+                long version;
+                try {
+                    String[] parts = name.substring(0, name.length() - CACHE_SUFFIX.length()).split("-");
+                    fileID = Long.parseLong(parts[0]);
+                    version = Long.parseLong(parts[1]);
+                } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                    logger.error(String.format("FileContentCache: Ignoring unrecognized cache file %s", path));
+                    continue;
+                }
+
+                CachedFile existing = cachedFiles.get(fileID);
+                if (existing != null && existing.getVersion() > version) {
+                    removed.add(path);
+                    continue;
+                }
+                CachedFile cachedFile = new CachedFile(version, Files.readAllBytes(path));
+                remove(fileID, existing, removed);
+                cachedFiles.put(fileID, cachedFile);
+                cachedBytes += cachedFile.getSize();
+            }
+            evict(removed);
+        }
+        delete(removed);
+    }
+
+    private Path cachePath(long fileID, long version) {
+        return directory.resolve(fileID + "-" + version + CACHE_SUFFIX);
+    }
+
+    /**
+     * The contents of a file at a specific version.
+     */
+    public static class CachedFile {
+        private final long version;
+        private final byte[] contents;
+        private final ByteBuffer buffer;
+
+        CachedFile(long version, byte[] contents) {
+            this.version = version;
+            this.contents = contents;
+            this.buffer = ByteBuffer.wrap(contents).asReadOnlyBuffer();
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Gets the cached contents; these must not be modified.
+         *
+         * @return the contents of the file
+         */
+        public byte[] getContents() {
+            return contents;
+        }
+
+        /**
+         * Gets a read-only view of the cached contents, without copying them.
+         *
+         * @return a buffer containing the contents of the file
+         */
+        public ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+        public int getSize() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package dataMgmt;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -61,6 +62,10 @@ public class FileContentWriter {
                 logger.error("Error reading file: " + absolutePath);
             }
 
+            // Compose the patches first, so the file contents only need to be rebuilt once.
+            if (patches.size() > 1) {
+                patches = Collections.singletonList(Patch.compose(patches));
+            }
             String newContents = patchManager.applyPatch(contents, patches);
             FileWriter writer = null;
             try {
@@ -1,6 +1,7 @@
 package dataMgmt.models;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import websocket.models.File;
 
@@ -29,6 +30,15 @@ public class FileMetadata {
     @JsonProperty("CreationDate")
     private String creationDate;
 
+    // Hash of the last known contents of the file, from ContentStore.hash, and the version they belong to
+    @JsonProperty("ContentHash")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String contentHash;
+
+    @JsonProperty("ContentVersion")
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private long contentVersion;
+
     public FileMetadata() {}
 
     public FileMetadata(File f) {
@@ -93,6 +103,25 @@ public class FileMetadata {
         this.creationDate = creationDate;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getContentVersion() {
+        return contentVersion;
+    }
+
+    /**
+     * Records the hash of the contents of this file at the given version.
+     *
+     * @param contentVersion the version of the file that the contents belong to
+     * @param contentHash    the hash of the contents, from ContentStore.hash
+     */
+    public void setContentHash(long contentVersion, String contentHash) {
+        this.contentVersion = contentVersion;
+        this.contentHash = contentHash;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,13 @@
+package metrics;
+
+/**
+ * Publishes periodic snapshots of the metrics registry.
+ */
+public interface IMetricsReporter {
+    /**
+     * Called on the registry's reporting thread with the latest snapshot.
+     *
+     * @param snapshot the values of all metrics at the time of the snapshot
+     */
+    void report(MetricsSnapshot snapshot);
+}
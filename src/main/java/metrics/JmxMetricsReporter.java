@@ -0,0 +1,68 @@
+package metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+
+import static metrics.MetricsRegistry.logger;
+
+/**
+ * Exposes the latest snapshot as an MXBean on the platform MBean server, so it can be inspected with tools such as
+ * JConsole or VisualVM.
+ */
+public class JmxMetricsReporter implements IMetricsReporter, MetricsMXBean {
+    public static final String DEFAULT_OBJECT_NAME = "CodeCollaborate:type=Metrics";
+
+    private final ObjectName objectName;
+    private volatile MetricsSnapshot latest;
+
+    /**
+     * Creates a reporter and registers it under the given name, replacing any MBean already registered under it.
+     *
+     * @param objectName the JMX object name to register under
+     * @throws JMException if the name is invalid or the bean could not be registered
+     */
+    public JmxMetricsReporter(String objectName) throws JMException {
+        this.objectName = new ObjectName(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(this.objectName)) {
+            server.unregisterMBean(this.objectName);
+        }
+        server.registerMBean(this, this.objectName);
+    }
+
+    public JmxMetricsReporter() throws JMException {
+        this(DEFAULT_OBJECT_NAME);
+    }
+
+    @Override
+    public void report(MetricsSnapshot snapshot) {
+        latest = snapshot;
+    }
+
+    @Override
+    public Map<String, Double> getMetrics() {
+        MetricsSnapshot snapshot = latest;
+        return snapshot == null ? Collections.emptyMap() : snapshot.toMap();
+    }
+
+    @Override
+    public long getSnapshotTimestamp() {
+        MetricsSnapshot snapshot = latest;
+        return snapshot == null ? 0 : snapshot.getTimestamp();
+    }
+
+    /**
+     * Removes this reporter's bean from the platform MBean server.
+     */
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered.
+        } catch (MBeanRegistrationException e) {
+            logger.error("JmxMetricsReporter: Failed to unregister bean", e);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package metrics;
+
+import static metrics.MetricsRegistry.logger;
+
+/**
+ * Writes each snapshot to the "metrics" logger at INFO level.
+ */
+public class LogMetricsReporter implements IMetricsReporter {
+    @Override
+    public void report(MetricsSnapshot snapshot) {
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("Metrics snapshot:%n%s", snapshot));
+        }
+    }
+}
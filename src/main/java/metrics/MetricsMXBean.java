@@ -0,0 +1,18 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface that JmxMetricsReporter exposes the latest snapshot through.
+ */
+public interface MetricsMXBean {
+    /**
+     * @return the values of all metrics in the latest snapshot, as flattened by MetricsSnapshot.toMap
+     */
+    Map<String, Double> getMetrics();
+
+    /**
+     * @return the time of the latest snapshot, in milliseconds since the epoch; 0 if none was taken yet
+     */
+    long getSnapshotTimestamp();
+}
@@ -0,0 +1,180 @@
+package metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the latency histograms, counters and gauges that the client records, by name.
+ * <p>
+ * Metrics are disabled by default. While disabled, startTimer returns 0 without reading the clock, and recording
+ * into histograms and counters returns after a single volatile read, so instrumented code paths stay cheap. Enabled
+ * metrics can be read with snapshot, or published periodically to an IMetricsReporter.
+ */
+public class MetricsRegistry {
+    public static final Logger logger = LogManager.getLogger("metrics");
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private volatile boolean enabled = false;
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private ScheduledExecutorService reportingExecutor;
+
+    /**
+     * Creates a registry that is separate from the shared one, for example to measure a single client in isolation.
+     * It is disabled until enabled with setEnabled.
+     */
+    public MetricsRegistry() {
+    }
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables recording. Values that were recorded before are kept.
+     *
+     * @param enabled whether to record metrics
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Gets the start time for a latency measurement, to later be passed to Histogram.recordSince.
+     *
+     * @return the current System.nanoTime, or 0 if metrics are disabled
+     */
+    public long startTimer() {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        // 0 marks a measurement that was never started.
+        return now == 0 ? 1 : now;
+    }
+
+    /**
+     * Gets the histogram with the given name, creating it if necessary.
+     *
+     * @param name the name of the histogram
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(this));
+    }
+
+    /**
+     * Gets the counter with the given name, creating it if necessary.
+     *
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter(this));
+    }
+
+    /**
+     * Registers a gauge, which is sampled whenever a snapshot is taken. A gauge registered earlier under the same
+     * name is replaced.
+     *
+     * @param name  the name of the gauge
+     * @param gauge supplies the current value; must be thread-safe
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void deregisterGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Deregisters a gauge, unless it has been replaced by another gauge under the same name since.
+     *
+     * @param name  the name of the gauge
+     * @param gauge the gauge that was registered
+     */
+    public void deregisterGauge(String name, LongSupplier gauge) {
+        gauges.remove(name, gauge);
+    }
+
+    /**
+     * Takes a snapshot of all metrics.
+     *
+     * @return the current values of all metrics
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, Histogram.Snapshot> histogramValues = new HashMap<>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+        Map<String, Long> counterValues = new HashMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.getCount()));
+        Map<String, Long> gaugeValues = new HashMap<>();
+        gauges.forEach((name, gauge) -> {
+            try {
+                gaugeValues.put(name, gauge.getAsLong());
+            } catch (RuntimeException e) {
+                logger.error(String.format("MetricsRegistry: Failed to sample gauge %s", name), e);
+            }
+        });
+        return new MetricsSnapshot(System.currentTimeMillis(), histogramValues, counterValues, gaugeValues);
+    }
+
+    /**
+     * Clears all histograms and counters.
+     */
+    public void reset() {
+        histograms.values().forEach(Histogram::reset);
+        counters.values().forEach(Counter::reset);
+    }
+
+    /**
+     * Starts publishing a snapshot to the given reporter every period, replacing any reporter that was started
+     * before.
+     *
+     * @param reporter     the reporter to publish to
+     * @param periodMillis the time between snapshots, in milliseconds
+     */
+    public synchronized void startReporting(IMetricsReporter reporter, long periodMillis) {
+        stopReporting();
+        reportingExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("MetricsReporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reportingExecutor.scheduleAtFixedRate(() -> {
+            try {
+                reporter.report(snapshot());
+            } catch (RuntimeException e) {
+                logger.error("MetricsRegistry: Reporter failed", e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing snapshots.
+     */
+    public synchronized void stopReporting() {
+        if (reportingExecutor != null) {
+            reportingExecutor.shutdownNow();
+            reportingExecutor = null;
+        }
+    }
+}
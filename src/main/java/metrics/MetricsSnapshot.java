@@ -0,0 +1,74 @@
+package metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The values of all registered metrics at one point in time, keyed by metric name.
+ */
+public class MetricsSnapshot {
+    private final long timestamp;
+    private final Map<String, Histogram.Snapshot> histograms;
+    private final Map<String, Long> counters;
+    private final Map<String, Long> gauges;
+
+    MetricsSnapshot(long timestamp, Map<String, Histogram.Snapshot> histograms, Map<String, Long> counters,
+                    Map<String, Long> gauges) {
+        this.timestamp = timestamp;
+        this.histograms = Collections.unmodifiableMap(new TreeMap<>(histograms));
+        this.counters = Collections.unmodifiableMap(new TreeMap<>(counters));
+        this.gauges = Collections.unmodifiableMap(new TreeMap<>(gauges));
+    }
+
+    /**
+     * @return the time the snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        return histograms;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    /**
+     * Flattens the snapshot into a single map, with histogram statistics named {@code <histogram>.<statistic>}.
+     *
+     * @return the values of all metrics, sorted by name
+     */
+    public Map<String, Double> toMap() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Histogram.Snapshot> entry : histograms.entrySet()) {
+            Histogram.Snapshot histogram = entry.getValue();
+            String name = entry.getKey();
+            values.put(name + ".count", (double) histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".p50", (double) histogram.getP50());
+            values.put(name + ".p90", (double) histogram.getP90());
+            values.put(name + ".p99", (double) histogram.getP99());
+            values.put(name + ".p999", (double) histogram.getP999());
+            values.put(name + ".max", (double) histogram.getMax());
+        }
+        counters.forEach((name, value) -> values.put(name, (double) value));
+        gauges.forEach((name, value) -> values.put(name, (double) value));
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        histograms.forEach((name, histogram) -> sb.append(name).append(": ").append(histogram).append('\n'));
+        counters.forEach((name, value) -> sb.append(name).append(": ").append(value).append('\n'));
+        gauges.forEach((name, value) -> sb.append(name).append(": ").append(value).append('\n'));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,202 @@
+package patching;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static patching.PatchManager.logger;
+
+/**
+ * The in-progress transformation of a single File.Change notification against the local done and batching queues.
+ * <p>
+ * The state of a failed attempt (where the editor changed between the transform and the write) is kept, so that a
+ * retry only needs to transform against the patches that were added to the batching queue since the failed attempt.
+ * Neither of the actual queues is modified until commit() is called; the done queue is accessed through a
+ * copy-on-write snapshot, and the transformed batching queue is an append-only list that is extended on each retry.
+ * <p>
+ * If either queue was changed in any other way between attempts (for example, a late FileChangeResponse acknowledged
+ * and removed patches from the batching queue), the transform falls back to starting from scratch.
+ * <p>
+ * This class is not thread-safe; callers are expected to synchronize on the owning BatchingControl's queues.
+ */
+class NotificationTransform {
+    // The untransformed changes, as received from the server.
+    private final String[] originalChanges;
+
+    // The changes, transformed against the done queue and the first batchingQueueConsumed patches of the batching queue.
+    private Patch[] transformedChanges;
+
+    // The highest version that each change was transformed to; becomes the final base version of the change.
+    private long[] changeMaxVersions;
+
+    // Transformed copies of the batching queue, and how many of the batching queue's patches they cover.
+    private List<Patch> transformedBatchingQueue;
+    private int batchingQueueConsumed;
+
+    // Snapshot of the done queue, and the version below which done patches can be pruned on success.
+    private PatchDoneQueue.Snapshot transformedDoneQueue;
+    private long maxBaseVersionSeen;
+
+    // Number of patches that had been removed from the batching queue when this transform was started.
+    private long batchingQueueRemovals;
+
+    /**
+     * Creates a new transform for the given set of changes
+     *
+     * @param changes the changes from the FileChangeNotification, in order.
+     */
+    NotificationTransform(String[] changes) {
+        this.originalChanges = changes.clone();
+    }
+
+    /**
+     * Transforms the notification's changes against the done queue and the batching queue, and returns the
+     * resulting set of changes.
+     * <p>
+     * If a previous attempt is still valid, only the patches appended to the batching queue since that attempt are
+     * transformed against.
+     *
+     * @param doneQueue             the done queue of the file
+     * @param batchingQueue         the batching queue of the file
+     * @param batchingQueueRemovals the number of patches that have ever been removed from the front of batchingQueue
+     * @return the transformed changes, with final base versions set.
+     */
+    String[] transform(PatchDoneQueue doneQueue, List<Patch> batchingQueue, long batchingQueueRemovals) {
+        if (transformedDoneQueue == null || transformedDoneQueue.isStale()
+                || this.batchingQueueRemovals != batchingQueueRemovals || batchingQueue.size() < batchingQueueConsumed) {
+            reset(doneQueue, batchingQueueRemovals);
+            transformAgainstDoneQueue();
+        } else if (logger.isDebugEnabled()) {
+            logger.debug(String.format("PatchManager-Notification: Retrying transform incrementally; %d of %d batched patches already transformed against",
+                    batchingQueueConsumed, batchingQueue.size()));
+        }
+
+        transformAgainstBatchingQueue(batchingQueue);
+
+        String[] changes = new String[transformedChanges.length];
+        for (int i = 0; i < transformedChanges.length; i++) {
+            // Finally, set the base version. This cannot be set earlier, to make sure the batchingQueue gets the right baseVersion in the end.
+            Patch patch = new Patch(transformedChanges[i].getBaseVersion(), transformedChanges[i].getDiffs());
+            patch.setBaseVersion(changeMaxVersions[i]);
+            changes[i] = patch.toString();
+        }
+        return changes;
+    }
+
+    /**
+     * Gets the original, untransformed changes.
+     *
+     * @return the changes that this transform was created with
+     */
+    String[] getOriginalChanges() {
+        return originalChanges;
+    }
+
+    /**
+     * Writes the transformed done and batching queues back into the actual queues, and prunes done patches that are
+     * no longer needed. Must only be called after a successful call to transform(), while still holding the same locks.
+     *
+     * @param doneQueue     the done queue of the file
+     * @param batchingQueue the batching queue of the file
+     */
+    void commit(PatchDoneQueue doneQueue, List<Patch> batchingQueue) {
+        transformedDoneQueue.commit();
+        for (int i = 0; i < transformedBatchingQueue.size(); i++) {
+            batchingQueue.set(i, transformedBatchingQueue.get(i));
+        }
+
+        // Remove all patches in doneQueue that we no longer need.
+        doneQueue.removeBelow(maxBaseVersionSeen);
+    }
+
+    private void reset(PatchDoneQueue doneQueue, long batchingQueueRemovals) {
+        this.transformedChanges = new Patch[originalChanges.length];
+        this.changeMaxVersions = new long[originalChanges.length];
+        for (int i = 0; i < originalChanges.length; i++) {
+            transformedChanges[i] = new Patch(originalChanges[i]);
+            changeMaxVersions[i] = transformedChanges[i].getBaseVersion();
+        }
+
+        this.transformedBatchingQueue = new ArrayList<>();
+        this.batchingQueueConsumed = 0;
+        this.transformedDoneQueue = doneQueue.snapshot();
+        this.maxBaseVersionSeen = 0;
+        this.batchingQueueRemovals = batchingQueueRemovals;
+    }
+
+    private void transformAgainstDoneQueue() {
+        for (int i = 0; i < transformedChanges.length; i++) {
+            Patch patch = transformedChanges[i];
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("PatchManager-Notification: Transforming %s against doneQueue %s", patch, transformedDoneQueue).replace("\n", "\\n"));
+            }
+
+            // Transform against the done queue. The done queue is sorted by base version, so we can
+            // skip directly to the first patch that has a higher (or equal) base version.
+            for (int j = transformedDoneQueue.indexOfBaseVersion(patch.getBaseVersion()); j < transformedDoneQueue.size(); j++) {
+                Patch donePatch = transformedDoneQueue.get(j);
+                // Save patchBaseVersion, reset after transform. This prevents the case where if the doneQueue has
+                // more than one patch based on the same version, the transformation on the first one changes the
+                // base version of the incoming patch, and thus the subsequent donePatches are never transformed against
+                //
+                // The donePatch is only transformed against if it has a higher (or equal) base version,
+                // and as such, the donePatches have precedence.
+                long patchBaseVersion = patch.getBaseVersion();
+                Patch transformedPatch = patch.transform(true, donePatch);
+                changeMaxVersions[i] = Math.max(changeMaxVersions[i], transformedPatch.getBaseVersion());
+                transformedPatch.setBaseVersion(patchBaseVersion);
+
+                // Transform donePatch against new patch, to update the donePatches against
+                // new document state. Both sides are transformed against the other's untransformed version, since
+                // they start from the same document state.
+                long donePatchBaseVersion = donePatch.getBaseVersion();
+                donePatch = donePatch.transform(false, patch);
+                donePatch.setBaseVersion(donePatchBaseVersion);
+                transformedDoneQueue.set(j, donePatch);
+
+                patch = transformedPatch;
+            }
+            maxBaseVersionSeen = Math.max(maxBaseVersionSeen, patch.getBaseVersion());
+
+            transformedChanges[i] = patch;
+        }
+    }
+
+    private void transformAgainstBatchingQueue(List<Patch> batchingQueue) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("PatchManager-Notification: Transforming changes against batchingQueue %s", batchingQueue.subList(batchingQueueConsumed, batchingQueue.size())).replace("\n", "\\n"));
+        }
+
+        // All patches in batching queue here are guaranteed to be coming after the changes, since we wait for the current request to complete.
+        // Thus, we apply all indiscriminately, and they take precedence.
+        //
+        // Each queued patch is transformed against every change in turn, and each change against the queued patch. Working
+        // through the batching queue in order means that patches appended after a failed attempt can simply be transformed
+        // against the result of that attempt.
+        for (int j = batchingQueueConsumed; j < batchingQueue.size(); j++) {
+            Patch queuedPatch = batchingQueue.get(j);
+
+            for (int i = 0; i < transformedChanges.length; i++) {
+                Patch patch = transformedChanges[i];
+
+                // Maintain base version, since they are already committed to the database
+                long patchBaseVersion = patch.getBaseVersion();
+                Patch transformedPatch = patch.transform(true, queuedPatch);
+                changeMaxVersions[i] = Math.max(changeMaxVersions[i], transformedPatch.getBaseVersion());
+                transformedPatch.setBaseVersion(patchBaseVersion);
+
+                // Transform queuedPatch against the change. This maintains the correctness of the items in the batchingQueue
+                // against the new document state.
+                //
+                // Also, do not reset base versions, since we want to know we have transformed against
+                // this file version.
+                queuedPatch = queuedPatch.transform(false, patch);
+
+                transformedChanges[i] = transformedPatch;
+            }
+
+            transformedBatchingQueue.add(queuedPatch);
+        }
+        batchingQueueConsumed = batchingQueue.size();
+    }
+}
@@ -1,6 +1,7 @@
 package patching;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -113,6 +114,179 @@ public class Patch {
         return true;
     }
 
+    /**
+     * Composes this patch with a patch that applies to the result of this patch, producing a single patch that has
+     * the same effect as applying both in order.
+     * <p>
+     * Insertions that are deleted by the second patch cancel out, and adjacent insertions or deletions are merged, so
+     * the result contains at most as many diffs as both patches combined.
+     *
+     * @param other the patch to apply after this one; must be relative to the document produced by this patch.
+     * @return the composed patch, with the same base version as this patch.
+     */
+    public Patch compose(Patch other) {
+        List<Op> first = toOps();
+        List<Op> second = other.toOps();
+        List<Op> result = new ArrayList<>();
+
+        int i = 0, j = 0;
+        Op a = i < first.size() ? first.get(i++) : null;
+        Op b = j < second.size() ? second.get(j++) : null;
+
+        while (a != null || b != null) {
+            if (a != null && a.type == Op.DELETE) {
+                // Deletions from the first patch are not visible to the second.
+                appendOp(result, a);
+                a = i < first.size() ? first.get(i++) : null;
+            } else if (b != null && b.type == Op.INSERT) {
+                // Insertions from the second patch do not consume anything from the first.
+                appendOp(result, b);
+                b = j < second.size() ? second.get(j++) : null;
+            } else if (a == null) {
+                // Past the end of the first patch, everything is retained; the second patch's operations apply directly.
+                appendOp(result, b);
+                b = j < second.size() ? second.get(j++) : null;
+            } else if (b == null) {
+                appendOp(result, a);
+                a = i < first.size() ? first.get(i++) : null;
+            } else {
+                int length = Math.min(a.length(), b.length());
+
+                if (a.type == Op.RETAIN && b.type == Op.RETAIN) {
+                    appendOp(result, Op.retain(length));
+                } else if (a.type == Op.RETAIN && b.type == Op.DELETE) {
+                    appendOp(result, new Op(Op.DELETE, 0, b.text.substring(0, length)));
+                } else if (a.type == Op.INSERT && b.type == Op.RETAIN) {
+                    appendOp(result, new Op(Op.INSERT, 0, a.text.substring(0, length)));
+                } else {
+                    // Insertion from the first patch deleted by the second; these cancel out.
+                    if (!a.text.substring(0, length).equals(b.text.substring(0, length))) {
+                        throw new IllegalStateException(String.format("Patch.Compose: Deleted text %s does not match inserted text %s",
+                                b.text.substring(0, length), a.text.substring(0, length)));
+                    }
+                }
+
+                a = a.length() == length ? (i < first.size() ? first.get(i++) : null) : a.skip(length);
+                b = b.length() == length ? (j < second.size() ? second.get(j++) : null) : b.skip(length);
+            }
+        }
+
+        return new Patch(baseVersion, fromOps(result));
+    }
+
+    /**
+     * Composes a list of consecutive patches into a single patch, as per compose(Patch).
+     *
+     * @param patches the patches to compose, in the order they would be applied.
+     * @return the composed patch, with the base version of the first patch.
+     */
+    public static Patch compose(List<Patch> patches) {
+        if (patches.isEmpty()) {
+            throw new IllegalArgumentException("Cannot compose an empty list of patches");
+        }
+
+        Patch result = patches.get(0);
+        for (int i = 1; i < patches.size(); i++) {
+            result = result.compose(patches.get(i));
+        }
+        return result;
+    }
+
+    // Converts the diffs, which are relative to the base document, into a sequence of retain/insert/delete operations.
+    private List<Op> toOps() {
+        List<Diff> sortedDiffs = new ArrayList<>(diffs);
+        sortedDiffs.sort(Comparator.comparingInt(Diff::getStartIndex)); // Stable, so insert/delete order at an index is kept.
+
+        List<Op> ops = new ArrayList<>();
+        int index = 0;
+        for (Diff diff : sortedDiffs) {
+            if (diff.getStartIndex() > index) {
+                ops.add(Op.retain(diff.getStartIndex() - index));
+                index = diff.getStartIndex();
+            }
+
+            if (diff.isInsertion()) {
+                ops.add(new Op(Op.INSERT, 0, diff.getChanges()));
+            } else {
+                if (diff.getStartIndex() < index) {
+                    throw new IllegalArgumentException("Cannot compose patch with overlapping deletions: " + this);
+                }
+                ops.add(new Op(Op.DELETE, 0, diff.getChanges()));
+                index += diff.getLength();
+            }
+        }
+        return ops;
+    }
+
+    // Converts a sequence of operations back into diffs relative to the base document.
+    private static List<Diff> fromOps(List<Op> ops) {
+        List<Diff> result = new ArrayList<>();
+        int index = 0;
+        for (Op op : ops) {
+            switch (op.type) {
+                case Op.RETAIN:
+                    index += op.retainLength;
+                    break;
+                case Op.INSERT:
+                    result.add(new Diff(true, index, op.text));
+                    break;
+                case Op.DELETE:
+                    result.add(new Diff(false, index, op.text));
+                    index += op.text.length();
+                    break;
+            }
+        }
+        return result;
+    }
+
+    // Appends an operation, merging it into the previous one if they are of the same type.
+    private static void appendOp(List<Op> ops, Op op) {
+        if (op.length() == 0) {
+            return;
+        }
+        if (!ops.isEmpty()) {
+            Op last = ops.get(ops.size() - 1);
+            if (last.type == op.type) {
+                ops.set(ops.size() - 1, last.type == Op.RETAIN
+                        ? Op.retain(last.retainLength + op.retainLength)
+                        : new Op(last.type, 0, last.text + op.text));
+                return;
+            }
+        }
+        ops.add(op);
+    }
+
+    /**
+     * A single retain, insert or delete operation, used while composing patches.
+     */
+    private static class Op {
+        static final int RETAIN = 0;
+        static final int INSERT = 1;
+        static final int DELETE = 2;
+
+        final int type;
+        final int retainLength;
+        final String text;
+
+        Op(int type, int retainLength, String text) {
+            this.type = type;
+            this.retainLength = retainLength;
+            this.text = text;
+        }
+
+        static Op retain(int length) {
+            return new Op(RETAIN, length, null);
+        }
+
+        int length() {
+            return type == RETAIN ? retainLength : text.length();
+        }
+
+        Op skip(int length) {
+            return type == RETAIN ? retain(retainLength - length) : new Op(type, 0, text.substring(length));
+        }
+    }
+
     public Patch transform(boolean othersHavePrecedence, List<Patch> patches) {
         return transform(othersHavePrecedence, patches.toArray(new Patch[patches.size()]));
     }
@@ -0,0 +1,238 @@
+package patching;
+
+import java.util.Arrays;
+
+/**
+ * Queue of server-acknowledged patches, used to transform incoming notifications against changes we have already
+ * had committed.
+ * <p>
+ * Patches are kept in a ring buffer, sorted by base version. This allows the notification handler to binary search
+ * for the first patch that is relevant to an incoming notification, and to prune old patches from the head without
+ * shifting the rest of the queue.
+ * <p>
+ * This class is not thread-safe; callers are expected to synchronize on the owning BatchingControl's queues.
+ */
+class PatchDoneQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Patch[] ring = new Patch[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+
+    // Incremented on every structural change, so that stale snapshots can be detected.
+    private long modCount = 0;
+
+    /**
+     * Adds an acknowledged patch to the queue, keeping the queue ordered by base version. Acknowledgements
+     * generally arrive in version order, so this is usually an append.
+     *
+     * @param patch the patch to add
+     */
+    void add(Patch patch) {
+        if (size == ring.length) {
+            grow();
+        }
+
+        // Walk back from the tail until we find a patch with a base version no greater than this one.
+        int index = size;
+        while (index > 0 && get(index - 1).getBaseVersion() > patch.getBaseVersion()) {
+            ring[physicalIndex(index)] = get(index - 1);
+            index--;
+        }
+        ring[physicalIndex(index)] = patch;
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Gets the patch at the given logical index, where 0 is the oldest patch in the queue.
+     *
+     * @param index logical index of the patch
+     * @return the patch at the given index
+     */
+    Patch get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for done queue of size %d", index, size));
+        }
+        return ring[physicalIndex(index)];
+    }
+
+    /**
+     * Replaces the patch at the given logical index. The replacement must not change the base version, since the
+     * queue ordering depends on it.
+     *
+     * @param index logical index of the patch
+     * @param patch the replacement patch
+     */
+    void set(int index, Patch patch) {
+        if (patch.getBaseVersion() != get(index).getBaseVersion()) {
+            throw new IllegalArgumentException("Replacement patch must have the same base version as the original");
+        }
+        ring[physicalIndex(index)] = patch;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Finds the logical index of the first patch with a base version greater than or equal to the given version.
+     *
+     * @param baseVersion version to search for
+     * @return index of the first matching patch, or size() if there is none
+     */
+    int indexOfBaseVersion(long baseVersion) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid).getBaseVersion() < baseVersion) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Removes all patches with a base version strictly less than the given version. Since the queue is sorted,
+     * these are always at the head.
+     *
+     * @param baseVersion the minimum base version to keep
+     */
+    void removeBelow(long baseVersion) {
+        int count = indexOfBaseVersion(baseVersion);
+        for (int i = 0; i < count; i++) {
+            ring[physicalIndex(i)] = null;
+        }
+        head = physicalIndex(count);
+        size -= count;
+        if (count > 0) {
+            modCount++;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the queue. This is O(1); the snapshot reads through to this queue, and only copies the
+     * entries that are replaced through it.
+     *
+     * @return a new Snapshot of this queue
+     */
+    Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    @Override
+    public String toString() {
+        Patch[] patches = new Patch[size];
+        for (int i = 0; i < size; i++) {
+            patches[i] = get(i);
+        }
+        return Arrays.toString(patches);
+    }
+
+    private int physicalIndex(int index) {
+        return (head + index) % ring.length;
+    }
+
+    private void grow() {
+        Patch[] newRing = new Patch[ring.length * 2];
+        for (int i = 0; i < size; i++) {
+            newRing[i] = get(i);
+        }
+        ring = newRing;
+        head = 0;
+    }
+
+    /**
+     * Copy-on-write view of the done queue, used by the notification handler to transform the queue without
+     * modifying it until the notification has been successfully applied.
+     * <p>
+     * Only the suffix starting at the first replaced entry is copied, so the cost of a snapshot is proportional to
+     * the number of patches that the notification actually needs to be transformed against.
+     */
+    class Snapshot {
+        private final long expectedModCount = modCount;
+        private final int snapshotSize = size;
+
+        // Replaced entries, starting at logical index suffixStart. Null until the first replacement.
+        private Patch[] suffix;
+        private int suffixStart = snapshotSize;
+
+        int size() {
+            return snapshotSize;
+        }
+
+        Patch get(int index) {
+            checkForComodification();
+            if (suffix != null && index >= suffixStart) {
+                return suffix[index - suffixStart];
+            }
+            return PatchDoneQueue.this.get(index);
+        }
+
+        void set(int index, Patch patch) {
+            checkForComodification();
+            if (index < 0 || index >= snapshotSize) {
+                throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for snapshot of size %d", index, snapshotSize));
+            }
+            if (index < suffixStart) {
+                Patch[] newSuffix = new Patch[snapshotSize - index];
+                for (int i = index; i < snapshotSize; i++) {
+                    newSuffix[i - index] = (suffix != null && i >= suffixStart) ? suffix[i - suffixStart] : PatchDoneQueue.this.get(i);
+                }
+                suffix = newSuffix;
+                suffixStart = index;
+            }
+            suffix[index - suffixStart] = patch;
+        }
+
+        int indexOfBaseVersion(long baseVersion) {
+            checkForComodification();
+            return PatchDoneQueue.this.indexOfBaseVersion(baseVersion);
+        }
+
+        /**
+         * Writes all replaced entries back into the done queue.
+         */
+        void commit() {
+            checkForComodification();
+            if (suffix == null) {
+                return;
+            }
+            for (int i = suffixStart; i < snapshotSize; i++) {
+                PatchDoneQueue.this.set(i, suffix[i - suffixStart]);
+            }
+        }
+
+        /**
+         * Checks whether the done queue has been structurally modified since this snapshot was taken. A stale
+         * snapshot can no longer be read from or committed.
+         *
+         * @return true if the snapshot is stale
+         */
+        boolean isStale() {
+            return modCount != expectedModCount;
+        }
+
+        private void checkForComodification() {
+            if (isStale()) {
+                throw new IllegalStateException("Done queue was modified after snapshot was taken");
+            }
+        }
+
+        @Override
+        public String toString() {
+            Patch[] patches = new Patch[snapshotSize];
+            for (int i = 0; i < snapshotSize; i++) {
+                patches[i] = get(i);
+            }
+            return Arrays.toString(patches);
+        }
+    }
+}
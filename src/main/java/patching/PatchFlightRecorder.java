@@ -0,0 +1,237 @@
+package patching;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the most recent events of the patch pipeline in a fixed-size ring buffer, so that divergence between the
+ * client and server can be diagnosed after the fact without debug logging.
+ * <p>
+ * All records are preallocated as parallel arrays of primitives; recording an event only claims a slot and writes a
+ * few longs, and never allocates or formats strings. Once the buffer is full, the oldest events are overwritten.
+ * Events are only turned into text when the recorder is dumped.
+ */
+public class PatchFlightRecorder {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The kinds of events that are recorded. The meaning of the two arguments of each event is given by its label.
+     */
+    public enum EventType {
+        ENQUEUE("patches", "queued"),
+        TRANSFORM("patches", "missingPatches"),
+        SEND("patches", "baseVersion"),
+        ACK("patches", "fileVersion"),
+        TIMEOUT("patches", "timeoutMillis"),
+        APPLY("changes", "fileVersion"),
+        APPLY_RETRY("changes", "fileVersion");
+
+        private final String firstArgName;
+        private final String secondArgName;
+
+        EventType(String firstArgName, String secondArgName) {
+            this.firstArgName = firstArgName;
+            this.secondArgName = secondArgName;
+        }
+
+        public String getFirstArgName() {
+            return firstArgName;
+        }
+
+        public String getSecondArgName() {
+            return secondArgName;
+        }
+    }
+
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong(0);
+
+    // Sequence number + 1 of the event in each slot, written last; 0 if the slot was never written.
+    private final AtomicLongArray published;
+    private final long[] timestamps;
+    private final byte[] types;
+    private final long[] fileIDs;
+    private final long[] firstArgs;
+    private final long[] secondArgs;
+
+    /**
+     * Creates a recorder that keeps the given number of most recent events.
+     *
+     * @param capacity the number of events to keep; rounded up to a power of two
+     */
+    public PatchFlightRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        this.timestamps = new long[size];
+        this.types = new byte[size];
+        this.fileIDs = new long[size];
+        this.firstArgs = new long[size];
+        this.secondArgs = new long[size];
+    }
+
+    public PatchFlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param type      the type of the event
+     * @param fileID    the file the event is for
+     * @param firstArg  the first argument, as described by the event type
+     * @param secondArg the second argument, as described by the event type
+     */
+    public void record(EventType type, long fileID, long firstArg, long secondArg) {
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) sequence & mask;
+
+        // Unpublish the slot while it is being written, so that a concurrent dump skips it rather than reading a
+        // half-written event.
+        published.set(slot, 0);
+        timestamps[slot] = System.nanoTime();
+        types[slot] = (byte) type.ordinal();
+        fileIDs[slot] = fileID;
+        firstArgs[slot] = firstArg;
+        secondArgs[slot] = secondArg;
+        published.set(slot, sequence + 1);
+    }
+
+    /**
+     * Gets the number of slots in the ring buffer.
+     *
+     * @return the maximum number of events that are kept
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Gets all events that are still in the buffer, oldest first.
+     *
+     * @return the recorded events
+     */
+    public List<Event> getEvents() {
+        return getEvents(-1);
+    }
+
+    /**
+     * Gets the events for a single file that are still in the buffer, oldest first.
+     *
+     * @param fileID the file to get events for, or -1 for all files
+     * @return the recorded events
+     */
+    public List<Event> getEvents(long fileID) {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - getCapacity());
+        List<Event> events = new ArrayList<>();
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence + 1) {
+                // Not yet written, being written, or already overwritten.
+                continue;
+            }
+            Event event = new Event(sequence, timestamps[slot], EVENT_TYPES[types[slot]], fileIDs[slot],
+                    firstArgs[slot], secondArgs[slot]);
+            // Discard the copy if the slot was reused while it was being read.
+            if (published.get(slot) != sequence + 1) {
+                continue;
+            }
+            if (fileID == -1 || event.getFileID() == fileID) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Writes all events that are still in the buffer, oldest first, one per line.
+     *
+     * @param writer the writer to dump to
+     * @throws IOException if writing fails
+     */
+    public void dump(Writer writer) throws IOException {
+        dump(writer, -1);
+    }
+
+    /**
+     * Writes the events for a single file that are still in the buffer, oldest first, one per line.
+     *
+     * @param writer the writer to dump to
+     * @param fileID the file to dump events for, or -1 for all files
+     * @throws IOException if writing fails
+     */
+    public void dump(Writer writer, long fileID) throws IOException {
+        for (Event event : getEvents(fileID)) {
+            writer.write(event.toString());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * A single recorded event.
+     */
+    public static class Event {
+        private final long sequence;
+        private final long timestampNanos;
+        private final EventType type;
+        private final long fileID;
+        private final long firstArg;
+        private final long secondArg;
+
+        Event(long sequence, long timestampNanos, EventType type, long fileID, long firstArg, long secondArg) {
+            this.sequence = sequence;
+            this.timestampNanos = timestampNanos;
+            this.type = type;
+            this.fileID = fileID;
+            this.firstArg = firstArg;
+            this.secondArg = secondArg;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the System.nanoTime at which the event was recorded
+         */
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        public EventType getType() {
+            return type;
+        }
+
+        public long getFileID() {
+            return fileID;
+        }
+
+        public long getFirstArg() {
+            return firstArg;
+        }
+
+        public long getSecondArg() {
+            return secondArg;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %d %s file=%d %s=%d %s=%d", sequence, timestampNanos, type, fileID,
+                    type.getFirstArgName(), firstArg, type.getSecondArgName(), secondArg);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package patching;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static patching.PatchManager.logger;
+
+/**
+ * On-disk journal of patches that have not yet been acknowledged by the server, kept as one file per fileID.
+ * <p>
+ * Appends are buffered in memory and written and fsync'd by a background thread, either every
+ * JOURNAL_SYNC_INTERVAL_MILLIS or once JOURNAL_SYNC_BYTES have been buffered, so that a burst of keystrokes only
+ * costs a single fsync. Whenever patches are acknowledged, the file's journal is rewritten by the same thread to contain
+ * only the patches that are still pending, so the journal never grows past the size of the local queues.
+ * <p>
+ * Each record is a 4-byte length followed by the UTF-8 encoded patch string. A torn record at the end of a file (from a
+ * crash mid-write) is ignored on recovery.
+ */
+public class PatchJournal implements Closeable {
+    static long JOURNAL_SYNC_INTERVAL_MILLIS = 50;
+    static int JOURNAL_SYNC_BYTES = 64 * 1024;
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private final Path directory;
+
+    // Buffered records that have not been written yet; guarded by itself.
+    private final Map<Long, ByteArrayOutputStream> buffers = new HashMap<>();
+    private int bufferedBytes = 0;
+    // Full contents of the journals that are to be rewritten, ahead of any buffered records; guarded by buffers.
+    private final Map<Long, byte[]> rewrites = new HashMap<>();
+
+    // Open journal files; guarded by ioLock. All writes to disk are done while holding ioLock, so that a rewrite
+    // can never be followed by a stale buffered append.
+    private final Map<Long, FileChannel> channels = new HashMap<>();
+    private final Object ioLock = new Object();
+
+    private volatile boolean closed = false;
+    private final Thread syncThread;
+
+    /**
+     * Opens (or creates) a journal in the given directory.
+     *
+     * @param directory the directory to keep the journal files in
+     * @throws IOException if the directory could not be created
+     */
+    public PatchJournal(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+
+        syncThread = new Thread(this::runSyncLoop);
+        syncThread.setName("PatchJournalSync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Appends patches to the journal of the given file. The patches are written to disk asynchronously, within
+     * JOURNAL_SYNC_INTERVAL_MILLIS.
+     *
+     * @param fileID  the fileID the patches belong to
+     * @param patches the patches to append
+     */
+    void append(long fileID, Patch[] patches) {
+        synchronized (buffers) {
+            ByteArrayOutputStream buffer = buffers.computeIfAbsent(fileID, id -> new ByteArrayOutputStream());
+            int sizeBefore = buffer.size();
+            for (Patch patch : patches) {
+                writeRecord(buffer, patch);
+            }
+            bufferedBytes += buffer.size() - sizeBefore;
+
+            if (bufferedBytes >= JOURNAL_SYNC_BYTES) {
+                buffers.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal of the given file with exactly the given patches. An empty list deletes the file's
+     * journal. Like appends, the rewrite is done on disk asynchronously; patches appended after this call are
+     * written after the rewritten ones. This never blocks on disk I/O, so it can be called while holding the queue
+     * locks.
+     *
+     * @param fileID  the fileID the patches belong to
+     * @param pending the patches that are still unacknowledged
+     */
+    void rewrite(long fileID, List<Patch> pending) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        for (Patch patch : pending) {
+            writeRecord(contents, patch);
+        }
+
+        synchronized (buffers) {
+            ByteArrayOutputStream discarded = buffers.remove(fileID);
+            if (discarded != null) {
+                bufferedBytes -= discarded.size();
+            }
+            rewrites.put(fileID, contents.toByteArray());
+            buffers.notifyAll();
+        }
+    }
+
+    /**
+     * Reads all journaled patches from disk. This should be called before any new patches are appended.
+     *
+     * @return the unacknowledged patches of each file, in the order they were made
+     * @throws IOException if the journal directory could not be read
+     */
+    public Map<Long, List<Patch>> recover() throws IOException {
+        sync();
+
+        Map<Long, List<Patch>> recovered = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + JOURNAL_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long fileID;
+                try {
+                    fileID = Long.parseLong(name.substring(0, name.length() - JOURNAL_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    logger.error(String.format("PatchJournal: Ignoring unrecognized journal file %s", path));
+                    continue;
+                }
+
+                List<Patch> patches = readRecords(path);
+                if (!patches.isEmpty()) {
+                    recovered.put(fileID, patches);
+                }
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Writes all buffered patches to disk, and waits for them to be synced.
+     *
+     * @throws IOException if a journal file could not be written
+     */
+    public void sync() throws IOException {
+        synchronized (ioLock) {
+            Map<Long, byte[]> toRewrite;
+            Map<Long, ByteArrayOutputStream> toWrite;
+            synchronized (buffers) {
+                if (buffers.isEmpty() && rewrites.isEmpty()) {
+                    return;
+                }
+                toRewrite = new HashMap<>(rewrites);
+                rewrites.clear();
+                toWrite = new HashMap<>(buffers);
+                buffers.clear();
+                bufferedBytes = 0;
+            }
+
+            // Rewrites come first, since any buffered appends of the same file were made after them.
+            Iterator<Map.Entry<Long, byte[]>> rewriteIterator = toRewrite.entrySet().iterator();
+            while (rewriteIterator.hasNext()) {
+                Map.Entry<Long, byte[]> entry = rewriteIterator.next();
+                try {
+                    replace(entry.getKey(), entry.getValue());
+                } catch (IOException e) {
+                    // Retry on the next sync, unless the file has been rewritten again meanwhile.
+                    synchronized (buffers) {
+                        while (rewriteIterator.hasNext()) {
+                            Map.Entry<Long, byte[]> remaining = rewriteIterator.next();
+                            rewrites.putIfAbsent(remaining.getKey(), remaining.getValue());
+                        }
+                        rewrites.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                    throw e;
+                }
+            }
+
+            for (Map.Entry<Long, ByteArrayOutputStream> entry : toWrite.entrySet()) {
+                FileChannel channel = channels.get(entry.getKey());
+                if (channel == null) {
+                    channel = FileChannel.open(journalPath(entry.getKey()), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    channels.put(entry.getKey(), channel);
+                }
+                writeFully(channel, entry.getValue().toByteArray());
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal file of the given file with the given records. Must be called while holding ioLock.
+     */
+    private void replace(long fileID, byte[] contents) throws IOException {
+        FileChannel channel = channels.remove(fileID);
+        if (channel != null) {
+            channel.close();
+        }
+
+        Path path = journalPath(fileID);
+        if (contents.length == 0) {
+            Files.deleteIfExists(path);
+            return;
+        }
+
+        // Write to a temporary file first, so that a crash never leaves a half-written journal behind.
+        Path tmpPath = directory.resolve(fileID + JOURNAL_SUFFIX + ".tmp");
+        try (FileChannel tmp = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(tmp, contents);
+            tmp.force(false);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (buffers) {
+            buffers.notifyAll();
+        }
+
+        sync();
+        synchronized (ioLock) {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+            channels.clear();
+        }
+    }
+
+    private void runSyncLoop() {
+        while (!closed) {
+            synchronized (buffers) {
+                try {
+                    if (bufferedBytes < JOURNAL_SYNC_BYTES && rewrites.isEmpty()) {
+                        buffers.wait(JOURNAL_SYNC_INTERVAL_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            try {
+                sync();
+            } catch (IOException e) {
+                logger.error("PatchJournal: Failed to sync journal", e);
+                try {
+                    // Back off, rather than spinning on a broken disk.
+                    TimeUnit.MILLISECONDS.sleep(JOURNAL_SYNC_INTERVAL_MILLIS * 10);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Path journalPath(long fileID) {
+        return directory.resolve(fileID + JOURNAL_SUFFIX);
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, Patch patch) {
+        byte[] bytes = patch.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes.length >>> 24);
+        out.write(bytes.length >>> 16);
+        out.write(bytes.length >>> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static List<Patch> readRecords(Path path) throws IOException {
+        List<Patch> patches = new ArrayList<>();
+        long fileSize = Files.size(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                byte[] bytes;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > fileSize) {
+                        logger.error(String.format("PatchJournal: Discarding corrupt record in %s", path));
+                        break;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    // End of journal, or a torn record from a crash mid-write.
+                    break;
+                }
+                try {
+                    patches.add(new Patch(new String(bytes, StandardCharsets.UTF_8)));
+                } catch (RuntimeException e) {
+                    logger.error(String.format("PatchJournal: Discarding corrupt record in %s", path), e);
+                    break;
+                }
+            }
+        }
+        return patches;
+    }
+}
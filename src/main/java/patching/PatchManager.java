@@ -1,5 +1,8 @@
 package patching;
 
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import websocket.INotificationHandler;
@@ -13,6 +16,8 @@ import websocket.models.notifications.FileChangeNotification;
 import websocket.models.requests.FileChangeRequest;
 import websocket.models.responses.FileChangeResponse;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
@@ -20,24 +25,90 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
 
 public class PatchManager implements INotificationHandler {
     public static final Logger logger = LogManager.getLogger("patching");
-    static long PATCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    // Notification coalescing; bursts of File.Change notifications for the same file are merged into one.
+    static long NOTIFICATION_COALESCE_LINGER_MILLIS = 5;
+    static long NOTIFICATION_COALESCE_MAX_DELAY_MILLIS = 25;
+    static int NOTIFICATION_COALESCE_MAX_CHANGES = 256;
+
+    // Unsent patches beyond this count are composed, to keep memory bounded during long outages. Only consecutive
+    // patches with the same base version are composed, and patches that were sent in a request that may still be
+    // acknowledged never are. This applies to both the batching queue and the pre-queue; while the send buffer is
+    // saturated, the unsent part of the batching queue is always composed.
+    static int MAX_BATCHING_QUEUE_PATCHES = 64;
+
+    // Bounds on waiting for a File.Change request. The round trip estimate is dominated by cheap requests and pings,
+    // while a File.Change also waits for the server to store the patches, so its timeout never drops below
+    // MIN_PATCH_TIMEOUT_MILLIS. The timeout starts once the request is written; a request that hasn't been written
+    // after PATCH_SEND_TIMEOUT_MILLIS (for example, while reconnecting) is treated as timed out as well.
+    static long MIN_PATCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static long PATCH_SEND_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    // Latency metrics; nanoseconds from a sendPatch call to the acknowledgement of its patches, and from receiving a
+    // File.Change notification to it being applied by the IFileChangeNotificationHandler.
+    private final MetricsRegistry metrics;
+    private final Histogram sendPatchToAck;
+    private final Histogram notificationToApply;
+    private final Histogram transformNanos;
+    private final Counter requestTimeouts;
+
+    static int FLIGHT_RECORDER_CAPACITY = PatchFlightRecorder.DEFAULT_CAPACITY;
+
+    // Live notifications are held back for at most this long while a file's missed changes are pulled.
+    static long CATCH_UP_TIMEOUT_MILLIS = 30000;
 
     // Threading controls
     private final HashMap<Long, BatchingControl> batchingByFile = new HashMap<>();
     private final ReadWriteLock handlingNotificationsLock = new ReentrantReadWriteLock(true); // Fair lock, to make sure no thread gets starved.
     private final LinkedBlockingQueue<Notification> notificationHandlerQueue = new LinkedBlockingQueue<>();
+    // Files whose missed changes are being pulled (FileID -> CatchUp); guarded by notificationHandlerQueue.
+    private final HashMap<Long, CatchUp> catchUps = new HashMap<>();
+
+    private final LongSupplier notificationQueueDepthGauge = notificationHandlerQueue::size;
+    private Thread notificationHandlerThread;
+    private volatile boolean closed = false;
+
+    // Recent pipeline events, for diagnosing divergence without debug logging
+    private final PatchFlightRecorder flightRecorder = new PatchFlightRecorder(FLIGHT_RECORDER_CAPACITY);
 
     // References to external modules
     private WSManager wsMgr;
     private IFileChangeNotificationHandler notifHandler;
+    private PatchJournal journal;
 
     public PatchManager() {
+        this(MetricsRegistry.getInstance());
+    }
+
+    /**
+     * Creates a PatchManager that records its metrics into the given registry, rather than the shared one.
+     *
+     * @param metrics the registry to record metrics into
+     */
+    public PatchManager(MetricsRegistry metrics) {
+        this.metrics = metrics;
+        this.sendPatchToAck = metrics.histogram("patching.sendPatchToAckNanos");
+        this.notificationToApply = metrics.histogram("patching.notificationToApplyNanos");
+        this.transformNanos = metrics.histogram("patching.transformNanos");
+        this.requestTimeouts = metrics.counter("patching.requestTimeouts");
+        metrics.registerGauge("patching.notificationQueueDepth", notificationQueueDepthGauge);
         runNotificationHandlerThread();
     }
 
+    /**
+     * Stops handling notifications, and deregisters this PatchManager's metrics. Notifications that have not been
+     * handled yet are dropped.
+     */
+    public void close() {
+        metrics.deregisterGauge("patching.notificationQueueDepth", notificationQueueDepthGauge);
+        closed = true;
+        notificationHandlerThread.interrupt();
+    }
+
     /**
      * Sets the internal websocket manager used to send requests
      *
@@ -56,6 +127,51 @@ public class PatchManager implements INotificationHandler {
         this.notifHandler = notifHandler;
     }
 
+    /**
+     * Sets the journal that unacknowledged patches are persisted to. If no journal is set, unacknowledged patches are
+     * only kept in memory.
+     *
+     * @param journal the PatchJournal to write unacknowledged patches to
+     */
+    public void setJournal(PatchJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Re-sends all patches left in the journal by a previous session. The patches of each file are composed into a
+     * single patch, and sent through the normal batching path, so that they are transformed against any changes that
+     * were made on the server in the meantime.
+     * <p>
+     * This should be called once the connection has been (re-)established, before any new patches are sent.
+     *
+     * @param respHandler    the IResponseHandler that will handle the response objects
+     * @param sendErrHandler the IRequestSendErrHandler that will handle failures to send the requests.
+     * @throws IOException if the journal could not be read
+     */
+    public void replayJournal(IResponseHandler respHandler, IRequestSendErrorHandler sendErrHandler) throws IOException {
+        if (journal == null) {
+            return;
+        }
+
+        for (Map.Entry<Long, List<Patch>> entry : journal.recover().entrySet()) {
+            long fileID = entry.getKey();
+            List<Patch> patches = entry.getValue();
+
+            // Patches that cannot be composed are still consecutive edits; they are sent as they are.
+            List<Patch> compacted = new ArrayList<>(patches);
+            compactPatches(compacted, fileID);
+            Patch[] toSend = compacted.toArray(new Patch[compacted.size()]);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("PatchManager: Replaying %d journaled patches for file %d as %s", patches.size(), fileID, Arrays.toString(toSend)).replace("\n", "\\n"));
+            }
+
+            // The composed patch replaces the original records, so they are not replayed twice.
+            journal.rewrite(fileID, Arrays.asList(toSend));
+            enqueuePatches(fileID, toSend, respHandler, sendErrHandler, false);
+        }
+    }
+
     /**
      * Gets the batching control for the given fileID, initializing it if needed.
      *
@@ -75,6 +191,54 @@ public class PatchManager implements INotificationHandler {
         return batchingByFile.get(fileID);
     }
 
+    /**
+     * Gets the latest file version that the server has reported for the given file in a FileChangeResponse.
+     *
+     * @param fileID the fileID to look up
+     * @return the latest version seen, or -1 if no change has been acknowledged for this file yet.
+     */
+    public long getMaxVersionSeen(long fileID) {
+        BatchingControl batchingCtrl = batchingByFile.get(fileID);
+        return batchingCtrl == null ? -1 : batchingCtrl.maxVersionSeen;
+    }
+
+    /**
+     * Starts catching up on the changes to a file that were missed while disconnected. Until finishCatchUp is called,
+     * live File.Change notifications for the file are held back, so that they are applied after the missed changes.
+     *
+     * @param fileID the file whose missed changes are being pulled
+     */
+    public void beginCatchUp(long fileID) {
+        synchronized (notificationHandlerQueue) {
+            catchUps.putIfAbsent(fileID, new CatchUp());
+        }
+    }
+
+    /**
+     * Applies the missed changes to a file, followed by the live notifications that were held back meanwhile. Both
+     * can contain changes that were already applied; those are dropped when they are handled, so every change is
+     * applied exactly once.
+     *
+     * @param fileID        the file whose missed changes were pulled
+     * @param missedChanges a File.Change notification with the missed changes, or null if they could not be pulled
+     */
+    public void finishCatchUp(long fileID, Notification missedChanges) {
+        synchronized (notificationHandlerQueue) {
+            CatchUp catchUp = catchUps.remove(fileID);
+            if (missedChanges != null) {
+                missedChanges.setCatchUp(true);
+                notificationHandlerQueue.add(missedChanges);
+            }
+            if (catchUp != null) {
+                for (Notification held : catchUp.held) {
+                    held.setCatchUp(true);
+                    notificationHandlerQueue.add(held);
+                }
+            }
+            notificationHandlerQueue.notifyAll();
+        }
+    }
+
     /**
      * Enqueues a patch for sending. Will be batched to make sure that there is only ever one request in flight per fileID
      *
@@ -84,13 +248,32 @@ public class PatchManager implements INotificationHandler {
      * @param sendErrHandler the IRequestSendErrHandler that will handle failures to send the request.
      */
     public void sendPatch(long fileID, Patch[] patches, IResponseHandler respHandler, IRequestSendErrorHandler sendErrHandler) {
+        enqueuePatches(fileID, patches, respHandler, sendErrHandler, true);
+    }
+
+    private void enqueuePatches(long fileID, Patch[] patches, IResponseHandler respHandler, IRequestSendErrorHandler sendErrHandler, boolean writeToJournal) {
         BatchingControl batchingCtrl = getBatchingControl(fileID);
 
         // Add to batching pre-queue, and then transfer to main BatchingQueue
         // This avoids deadlocking the UI, or running the transformAndSendPatch on UI threads.
         synchronized (batchingCtrl.patchBatchingPreQueue) {
-            logger.debug(String.format("PatchManager: Adding %s to batching pre-queue; batching pre-queue currently %s", Arrays.toString(patches), batchingCtrl.patchBatchingPreQueue).replace("\n", "\\n") + "\n");
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("PatchManager: Adding %s to batching pre-queue; batching pre-queue currently %s", Arrays.toString(patches), batchingCtrl.patchBatchingPreQueue).replace("\n", "\\n") + "\n");
+            }
             Collections.addAll(batchingCtrl.patchBatchingPreQueue, patches);
+            flightRecorder.record(PatchFlightRecorder.EventType.ENQUEUE, fileID, patches.length, batchingCtrl.patchBatchingPreQueue.size());
+            long sendStart = metrics.startTimer();
+            if (sendStart != 0) {
+                batchingCtrl.preQueueSendStarts.add(sendStart);
+            }
+            if (batchingCtrl.patchBatchingPreQueue.size() > MAX_BATCHING_QUEUE_PATCHES) {
+                compactPatches(batchingCtrl.patchBatchingPreQueue, fileID);
+            }
+
+            // Journal under the same lock, so that the journal order matches the queue order.
+            if (writeToJournal && journal != null) {
+                journal.append(fileID, patches);
+            }
         }
 
         // Run the transformAndSendPatch on a new thread to make sure the UI thread doesn't get blocked.
@@ -116,6 +299,10 @@ public class PatchManager implements INotificationHandler {
             return;
         }
 
+        // If the connection can't keep up, wait for it to drain before sending more; patches enqueued meanwhile are
+        // coalesced into this request.
+        boolean saturated = awaitSendCapacity();
+
         // Take a read lock on the notifications; Any amount of transformAndSendPatch threads can run at the same time
         // but the notification handler must wait for any live transformAndSendPatch threads to finish before it can
         // execute.
@@ -124,15 +311,19 @@ public class PatchManager implements INotificationHandler {
         // Get a snapshot of the current list of patches, allowing other threads to add without blocking
         Patch[] patches;
         String[] patchStrings;
+        int sendStartCount;
         synchronized (batchingCtrl.patchBatchingQueue) {
             // Add all in pre-queue before taking snapshot
-            synchronized (batchingCtrl.patchBatchingPreQueue) {
-                batchingCtrl.patchBatchingQueue.addAll(batchingCtrl.patchBatchingPreQueue);
-                batchingCtrl.patchBatchingPreQueue.clear();
-            }
+            batchingCtrl.drainPreQueue();
+            sendStartCount = batchingCtrl.batchingQueueSendStarts.size();
+            compactBatchingQueue(batchingCtrl, fileID, saturated ? 1 : MAX_BATCHING_QUEUE_PATCHES);
             patches = batchingCtrl.patchBatchingQueue.toArray(new Patch[batchingCtrl.patchBatchingQueue.size()]);
+            // The whole queue is sent, including the patches of a timed out request that may still be acknowledged.
+            batchingCtrl.sentPatchesAwaitingAck = patches.length;
             patchStrings = new String[batchingCtrl.patchBatchingQueue.size()];
-            logger.debug(String.format("PatchManager: Sending patches %s", batchingCtrl.patchBatchingQueue).replace("\n", "\\n") + "\n");
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("PatchManager: Sending patches %s", batchingCtrl.patchBatchingQueue).replace("\n", "\\n") + "\n");
+            }
         }
 
         // If no patches found, exit after unlocking semaphores and locks
@@ -143,6 +334,7 @@ public class PatchManager implements INotificationHandler {
         }
 
         // Transform patches against missing patches before sending
+        long transformStart = metrics.startTimer();
         String[] missingPatches = batchingCtrl.lastResponsePatches.clone(); // clone to make sure that we don't overwrite if this request fails.
         for (int i = 0; i < patches.length; i++) {
             // Keep track of highest missing patch base version, in order to set it at the end.
@@ -155,21 +347,27 @@ public class PatchManager implements INotificationHandler {
                 // If the base versions are the same, the new patch takes precedence, inserting BEFORE the server patch
                 // as needed.
                 if (patches[i].getBaseVersion() <= missingPatch.getBaseVersion()) {
-                    logger.debug(String.format("PatchManager: Transforming %s against missing patch %s", patches[i].toString(), missingPatch).replace("\n", "\\n") + "\n");
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(String.format("PatchManager: Transforming %s against missing patch %s", patches[i].toString(), missingPatch).replace("\n", "\\n") + "\n");
+                    }
 
                     // Transform outgoing patch against missing patches
                     long patchBaseVersion = patches[i].getBaseVersion();
-                    patches[i] = patches[i].transform(false, missingPatch);
-                    patches[i].setBaseVersion(patchBaseVersion);
+                    Patch transformedPatch = patches[i].transform(false, missingPatch);
+                    transformedPatch.setBaseVersion(patchBaseVersion);
 
                     maxMissingPatchBaseVersion = Math.max(maxMissingPatchBaseVersion, missingPatch.getBaseVersion());
 
                     // Transform missingPatch against new patch, so blocks stay together
                     // New patch has precedence, and inserts in it's designated place, shifting the server patch back.
+                    // Both are transformed against the other's untransformed version, since they start from the same
+                    // document state.
                     long missingPatchBaseVersion = missingPatch.getBaseVersion();
                     missingPatch = missingPatch.transform(true, patches[i]);
                     missingPatch.setBaseVersion(missingPatchBaseVersion);
                     missingPatches[j] = missingPatch.toString();
+
+                    patches[i] = transformedPatch;
                 }
             }
             // Set baseVersion as the max of the original patch version, the highest response version, or the version generated by the latest missing patch
@@ -177,32 +375,62 @@ public class PatchManager implements INotificationHandler {
 
             patchStrings[i] = patches[i].toString();
         }
+        transformNanos.recordSince(transformStart);
+        flightRecorder.record(PatchFlightRecorder.EventType.TRANSFORM, fileID, patches.length, missingPatches.length);
 
         // Save response data, and fire off the actual responseHandler
         Semaphore requestInFlightSem = new Semaphore(0);
+        Semaphore requestSentSem = new Semaphore(0);
         Request req = new FileChangeRequest(fileID, patchStrings).getRequest(
                 response -> {
                     if (response.getStatus() == 200) {
                         synchronized (batchingCtrl.patchBatchingQueue) {
-                            logger.debug(String.format("PatchManager: Removing patches %s; patch queue is currently %s", batchingCtrl.patchBatchingQueue.subList(0, patches.length), batchingCtrl.patchBatchingQueue).replace("\n", "\\n"));
-                            logger.debug(String.format("PatchManager: Removing patches %s; patch done queue is currently %s", batchingCtrl.patchBatchingQueue.subList(0, patches.length), batchingCtrl.patchDoneQueue).replace("\n", "\\n"));
+                            // If this request timed out and was sent again, the patches may have been acknowledged
+                            // by the other request already; only remove the ones that are still awaiting one.
+                            int acked = Math.min(patches.length, batchingCtrl.sentPatchesAwaitingAck);
+                            if (logger.isDebugEnabled()) {
+                                logger.debug(String.format("PatchManager: Removing patches %s; patch queue is currently %s", batchingCtrl.patchBatchingQueue.subList(0, acked), batchingCtrl.patchBatchingQueue).replace("\n", "\\n"));
+                                logger.debug(String.format("PatchManager: Removing patches %s; patch done queue is currently %s", batchingCtrl.patchBatchingQueue.subList(0, acked), batchingCtrl.patchDoneQueue).replace("\n", "\\n"));
+                            }
+
+                            // Add the acknowledged patches to doneQueue in the form they were applied to the local
+                            // document, rather than the form they were committed in, since later notifications are
+                            // transformed against the local document. They were all committed on top of the version
+                            // before the response's version.
+                            long commitBaseVersion = ((FileChangeResponse) response.getData()).getFileVersion() - 1;
+                            for (Patch patch : batchingCtrl.patchBatchingQueue.subList(0, acked)) {
+                                batchingCtrl.patchDoneQueue.add(new Patch(commitBaseVersion, patch.getDiffs()));
+                            }
 
                             // Remove the sent patches
-                            for (int i = 0; i < patches.length; i++) {
-                                batchingCtrl.patchBatchingQueue.remove(0);
+                            batchingCtrl.patchBatchingQueue.subList(0, acked).clear();
+                            batchingCtrl.sentPatchesAwaitingAck -= acked;
+                            batchingCtrl.patchBatchingQueueRemovals += acked;
+                            flightRecorder.record(PatchFlightRecorder.EventType.ACK, fileID, patches.length,
+                                    ((FileChangeResponse) response.getData()).getFileVersion());
+                            for (int i = 0; i < sendStartCount && !batchingCtrl.batchingQueueSendStarts.isEmpty(); i++) {
+                                sendPatchToAck.recordSince(batchingCtrl.batchingQueueSendStarts.poll());
                             }
 
-                            // Add server-acknowledged patches to doneQueue
-                            for (String change : ((FileChangeResponse) response.getData()).getChanges()) {
-                                batchingCtrl.patchDoneQueue.add(new Patch(change));
+                            // Drop the acknowledged patches from the journal. The snapshot is taken under the pre-queue
+                            // lock, so that no append can slip in between; the journal writes it to disk in the
+                            // background.
+                            if (journal != null) {
+                                List<Patch> pending = new ArrayList<>(batchingCtrl.patchBatchingQueue);
+                                synchronized (batchingCtrl.patchBatchingPreQueue) {
+                                    pending.addAll(batchingCtrl.patchBatchingPreQueue);
+                                    journal.rewrite(fileID, pending);
+                                }
+                            }
+                            if (logger.isDebugEnabled()) {
+                                logger.debug(String.format("PatchManager: patch queue is currently %s, patch done queue is currently %s", batchingCtrl.patchBatchingQueue, batchingCtrl.patchDoneQueue).replace("\n", "\\n"));
                             }
-                            logger.debug(String.format("PatchManager: patch queue is currently %s, patch done queue is currently %s", batchingCtrl.patchBatchingQueue, batchingCtrl.patchDoneQueue).replace("\n", "\\n"));
                         }
 
                         // Save missing patches & maxVersionSeen
                         if (((FileChangeResponse) response.getData()).getMissingPatches() != null) {
                             batchingCtrl.lastResponsePatches = ((FileChangeResponse) response.getData()).getMissingPatches();
-                            batchingCtrl.maxVersionSeen = ((FileChangeResponse) response.getData()).getFileVersion();
+                            batchingCtrl.raiseMaxVersionSeen(((FileChangeResponse) response.getData()).getFileVersion());
                         }
 
                         // Fire actual response handler
@@ -211,20 +439,41 @@ public class PatchManager implements INotificationHandler {
                         }
                     }
 
-                    logger.debug(String.format("PatchManager: File Change Success; running releaser. Changes sent: %s", Arrays.toString(patches)).replace("\n", "\\n") + "\n");
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(String.format("PatchManager: File Change Success; running releaser. Changes sent: %s", Arrays.toString(patches)).replace("\n", "\\n") + "\n");
+                    }
+                    requestInFlightSem.release();
+                }, () -> {
+                    // The request was given up on; there is no response to wait for.
                     requestInFlightSem.release();
-                }, sendErrHandler
+                    requestSentSem.release();
+                    if (sendErrHandler != null) {
+                        sendErrHandler.handleRequestSendError();
+                    }
+                }
         );
+        req.setSendHandler(requestSentSem::release);
 
+        flightRecorder.record(PatchFlightRecorder.EventType.SEND, fileID, patches.length, patches[0].getBaseVersion());
         wsMgr.sendAuthenticatedRequest(req);
 
-        // Wait for up to PATCH_TIMEOUT_MILLIS for the response. After which, assume network failure and try again.
+        // Wait for the request to be written, and then for the response for as long as the round trip estimate
+        // allows. After which, assume network failure and try again; the timeout backs off until a response arrives.
+        // Time spent queued behind other traffic doesn't count towards the timeout, since the round trip estimate
+        // doesn't include it either.
         try {
             long startTime = System.currentTimeMillis();
-            if (!requestInFlightSem.tryAcquire(PATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            long timeoutMillis = getPatchTimeoutMillis();
+            boolean written = requestSentSem.tryAcquire(PATCH_SEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (!(written ? requestInFlightSem.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS) : requestInFlightSem.tryAcquire())) {
+                flightRecorder.record(PatchFlightRecorder.EventType.TIMEOUT, fileID, patches.length, timeoutMillis);
                 logger.debug("PatchManager: Request timed out, running releaser.");
+                wsMgr.getRttEstimator().backoff();
+                requestTimeouts.increment();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Waited %d millis for request to complete", System.currentTimeMillis() - startTime));
             }
-            logger.debug(String.format("Waited %d millis for request to complete", System.currentTimeMillis() - startTime));
         } catch (InterruptedException e) {
             // If interrupted, simply continue.
         }
@@ -253,20 +502,111 @@ public class PatchManager implements INotificationHandler {
         }
     }
 
+    /**
+     * Gets the time to wait for the response to a File.Change request after it has been written, based on the
+     * measured round trip time.
+     *
+     * @return the timeout in milliseconds
+     */
+    private long getPatchTimeoutMillis() {
+        return Math.max(MIN_PATCH_TIMEOUT_MILLIS, wsMgr.getRttEstimator().getTimeoutMillis());
+    }
+
+    /**
+     * Waits for up to one round trip timeout for the websocket's send buffer to drain, if it is saturated.
+     *
+     * @return true if the send buffer is still saturated
+     */
+    private boolean awaitSendCapacity() {
+        SendBuffer sendBuffer = wsMgr.getSendBuffer();
+        if (!sendBuffer.isSaturated()) {
+            return false;
+        }
+
+        logger.debug("PatchManager: Send buffer saturated; waiting before sending patches");
+        try {
+            return !sendBuffer.awaitCapacity(wsMgr.getRttEstimator().getTimeoutMillis());
+        } catch (InterruptedException e) {
+            // If interrupted, simply continue.
+            return sendBuffer.isSaturated();
+        }
+    }
+
+    /**
+     * Compacts the unsent part of the batching queue if it has grown past the given number of patches, which only
+     * happens if requests have been failing or the connection is saturated. Patches that were sent in a request that
+     * may still be acknowledged are left as they are, so that the acknowledgement removes exactly those patches. Must
+     * be called while holding the patchBatchingQueue lock, and the batching semaphore.
+     *
+     * @param batchingCtrl the batchingCtrl for this file.
+     * @param fileID       the fileID to which the patches correspond to
+     * @param maxPatches   the number of unsent patches the queue may hold without being compacted
+     */
+    private void compactBatchingQueue(BatchingControl batchingCtrl, long fileID, int maxPatches) {
+        int size = batchingCtrl.patchBatchingQueue.size();
+        List<Patch> unsent = batchingCtrl.patchBatchingQueue.subList(Math.min(batchingCtrl.sentPatchesAwaitingAck, size), size);
+        int unsentCount = unsent.size();
+        if (unsentCount > maxPatches && compactPatches(unsent, fileID)) {
+            batchingCtrl.patchBatchingQueueRemovals += unsentCount;
+        }
+    }
+
+    /**
+     * Replaces each run of consecutive patches with the same base version in the given queue with their composition.
+     * Patches with different base versions are never composed, since the composition can only carry one base
+     * version, and would be transformed against the wrong missing patches.
+     *
+     * @param queue  the patches to compose; must be locked by the caller
+     * @param fileID the fileID to which the patches correspond to
+     * @return true if any patches were composed, false if they were left as they are
+     */
+    private static boolean compactPatches(List<Patch> queue, long fileID) {
+        int size = queue.size();
+        List<Patch> compacted = new ArrayList<>();
+        try {
+            int runStart = 0;
+            for (int i = 1; i <= size; i++) {
+                if (i == size || queue.get(i).getBaseVersion() != queue.get(runStart).getBaseVersion()) {
+                    compacted.add(i - runStart == 1 ? queue.get(runStart) : Patch.compose(queue.subList(runStart, i)));
+                    runStart = i;
+                }
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            logger.warn(String.format("PatchManager: Could not compact %d queued patches for file %d", size, fileID), e);
+            return false;
+        }
+        if (compacted.size() == size) {
+            return false;
+        }
+
+        queue.clear();
+        queue.addAll(compacted);
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("PatchManager: Compacted %d queued patches for file %d into %d", size, fileID, compacted.size()));
+        }
+        return true;
+    }
+
     // This has to be in a separate thread so that we can have a queue to make sure
     // notifications are applied in the order they are received. Otherwise the threads waiting for the current
     // change requests could wake/acquire locks in the wrong order.
     private void runNotificationHandlerThread() {
-        new Thread(() -> {
+        notificationHandlerThread = new Thread(() -> {
             Thread.currentThread().setName("PatchManagerNotificationHandler");
             boolean hasWriteLock = false;
 
-            // Loop forever
+            // Loop until closed
             while (true) {
                 Notification notification;
 
                 synchronized (notificationHandlerQueue) {
                     try {
+                        if (closed) {
+                            if (hasWriteLock) {
+                                handlingNotificationsLock.writeLock().unlock();
+                            }
+                            return;
+                        }
                         // Unlock writeLock when notification queue is drained.
                         if (notificationHandlerQueue.isEmpty()) {
                             if (hasWriteLock) {
@@ -279,112 +619,66 @@ public class PatchManager implements INotificationHandler {
 
                         notification = notificationHandlerQueue.take();
                     } catch (InterruptedException e) {
-                        e.printStackTrace();
+                        if (!closed) {
+                            e.printStackTrace();
+                        }
                         continue;
                     }
                 }
 
+                // Merge any following notifications for the same file, so that they only need to be transformed
+                // and written to the editor once. Only linger for the rest of a burst before taking the lock, so
+                // that local changes aren't held up meanwhile.
+                boolean catchUp = notification.isCatchUp();
+                if (!hasWriteLock && !catchUp) {
+                    notification = coalesceNotifications(notification, true);
+                }
+
                 if (!hasWriteLock) {
                     // Wait until all requests in flight have returned before processing notifications.
                     handlingNotificationsLock.writeLock().lock();
                     hasWriteLock = true;
                 }
 
+                // Changes that were pulled to catch up may overlap with the ones that were already applied.
+                if (catchUp) {
+                    notification = dropSeenChanges(notification);
+                    if (notification == null) {
+                        continue;
+                    }
+                }
+
+                // Also merge the notifications that arrived in the meantime, without waiting for more.
+                notification = coalesceNotifications(notification, false);
+
                 FileChangeNotification fileChangeNotif = (FileChangeNotification) notification.getData();
                 long fileID = notification.getResourceID();
                 BatchingControl batchingCtrl = getBatchingControl(fileID);
 
-                while (true) {
+                // Keep the transform state across attempts, so that retries only need to transform against
+                // the patches that were added since the last attempt.
+                NotificationTransform transform = new NotificationTransform(fileChangeNotif.changes);
+
+                while (!closed) {
                     long expectedModificationStamp;
 
                     synchronized (batchingCtrl.patchBatchingQueue) {
                         // Add all in batchingPre-Queue, to make sure we transform against current document state
-                        synchronized (batchingCtrl.patchBatchingPreQueue) {
-                            batchingCtrl.patchBatchingQueue.addAll(batchingCtrl.patchBatchingPreQueue);
-                            batchingCtrl.patchBatchingPreQueue.clear();
-                        }
+                        batchingCtrl.drainPreQueue();
 
                         expectedModificationStamp = batchingCtrl.expectedModificationStamp.get();
 
-                        // Take snapshot of current changes, so that if this fails, we don't start with a dirty set.
+                        // Transform the changes without modifying the actual queues, and write them into the FileChangeNotification.
                         // If the write to editor fails, we restore the original set of changes into the fileChangeNotification
-                        String[] oldChanges = fileChangeNotif.changes.clone();
-                        String[] changes = fileChangeNotif.changes;
-
-                        // Again, take clones to make sure we do not mess up the actual queues.
-                        ArrayList<Patch> transformedPatchDoneQueue = (ArrayList<Patch>) batchingCtrl.patchDoneQueue.clone();
-                        ArrayList<Patch> transformedPatchBatchingQueue = (ArrayList<Patch>) batchingCtrl.patchBatchingQueue.clone();
-
-                        // Keep track of the max base version, and remove items from doneQueue later based on it.
-                        long maxBaseVersionSeen = 0;
-
-                        for (int i = 0; i < changes.length; i++) {
-                            Patch patch = new Patch(changes[i]);
-
-                            logger.debug(String.format("PatchManager-Notification: Transforming %s against doneQueue %s", patch, transformedPatchDoneQueue).replace("\n", "\\n"));
-                            logger.debug(String.format("PatchManager-Notification: Transforming doneQueue %s against %s", transformedPatchDoneQueue, patch).replace("\n", "\\n"));
-
-                            long patchMaxVersion = patch.getBaseVersion();
-
-                            // Transform against the done queue
-                            for (int j = 0; j < transformedPatchDoneQueue.size(); j++) {
-                                Patch donePatch = transformedPatchDoneQueue.get(j);
-                                if (donePatch.getBaseVersion() >= patch.getBaseVersion()) {
-                                    // Save patchBaseVersion, reset after transform. This prevents the case where if the doneQueue has
-                                    // more than one patch based on the same version, the transformation on the first one changes the
-                                    // base version of the incoming patch, and thus the subsequent donePatches are never transformed against
-                                    //
-                                    // The donePatch is only transformed against if it has a higher (or equal) base version,
-                                    // and as such, the donePatches have precedence.
-                                    long patchBaseVersion = patch.getBaseVersion();
-                                    patch = patch.transform(true, donePatch);
-                                    patchMaxVersion = Math.max(patchMaxVersion, patch.getBaseVersion());
-                                    patch.setBaseVersion(patchBaseVersion);
-
-                                    // Transform donePatch against new patch, to update the donePatches against
-                                    // new document state
-                                    long donePatchBaseVersion = donePatch.getBaseVersion();
-                                    donePatch = donePatch.transform(false, patch);
-                                    donePatch.setBaseVersion(donePatchBaseVersion);
-                                    transformedPatchDoneQueue.set(j, donePatch);
-                                }
-                            }
-                            maxBaseVersionSeen = Math.max(maxBaseVersionSeen, patch.getBaseVersion());
-
-                            logger.debug(String.format("PatchManager-Notification: Transforming %s against batchingQueue %s", patch, transformedPatchBatchingQueue).replace("\n", "\\n"));
-
-                            // All patches in batching queue here are guaranteed to be coming after the patch, since we wait for the current request to complete.
-                            // Thus, we apply all indiscriminately. Maintain base version, since they are already committed to the database
-                            //
-                            // Because all items in batchingQueue are guaranteed to come after the notification patch, they take precedence.
-                            long patchBaseVersion = patch.getBaseVersion();
-                            patch = patch.transform(true, transformedPatchBatchingQueue);
-                            patchMaxVersion = Math.max(patchMaxVersion, patch.getBaseVersion());
-                            patch.setBaseVersion(patchBaseVersion);
-
-                            logger.debug(String.format("PatchManager-Notification: Transforming batchingQueue %s against %s", transformedPatchBatchingQueue, patch).replace("\n", "\\n"));
-
-                            // Transform all patches in batching queue against this one. This maintains the correctness of the items in the batchingQueue
-                            // against the new document state.
-                            for (int j = 0; j < transformedPatchBatchingQueue.size(); j++) {
-                                Patch queuedPatch = transformedPatchBatchingQueue.get(j);
-
-                                // Transform queuedPatch against new patch. Since the batchingQueue is guaranteed to be
-                                // coming after the notification patches, they have precedence.
-                                //
-                                // Also, do not reset base versions, since we want to know we have transformed against
-                                // this file version.
-                                queuedPatch = queuedPatch.transform(false, patch);
-                                transformedPatchBatchingQueue.set(j, queuedPatch);
-                            }
-
-                            // Finally, set the base version. This cannot be set earlier, to make sure the batchingQueue gets the right baseVersion in the end.
-                            patch.setBaseVersion(patchMaxVersion);
-
-                            logger.debug(String.format("PatchManager-Notification: Transformed %s against done and batching queues; result: %s", changes[i], patch).replace("\n", "\\n"));
-
-                            // Write the changes back to the FileChangeNotification
-                            changes[i] = patch.toString();
+                        long transformStart = metrics.startTimer();
+                        String[] changes = transform.transform(batchingCtrl.patchDoneQueue, batchingCtrl.patchBatchingQueue,
+                                batchingCtrl.patchBatchingQueueRemovals);
+                        transformNanos.recordSince(transformStart);
+                        System.arraycopy(changes, 0, fileChangeNotif.changes, 0, changes.length);
+
+                        if (logger.isDebugEnabled()) {
+                            logger.debug(String.format("PatchManager-Notification: Transformed %s against done and batching queues; result: %s",
+                                    Arrays.toString(transform.getOriginalChanges()), Arrays.toString(changes)).replace("\n", "\\n"));
                         }
 
                         // Pass the transformed patches to the actual handler that will take care of writing to document or file
@@ -393,41 +687,169 @@ public class PatchManager implements INotificationHandler {
                         // Only if we succeeded should we break out and continue to next patch.
                         // Otherwise, release lock, and try again after new changes are added.
                         if (result != null) {
-                            batchingCtrl.expectedModificationStamp.set(result);
+                            // Only store the new stamp if the editor hasn't reported a newer one meanwhile; otherwise
+                            // the newer stamp would be lost, and every following notification would be retried forever.
+                            batchingCtrl.expectedModificationStamp.compareAndSet(expectedModificationStamp, result);
+                            batchingCtrl.raiseMaxVersionSeen(fileChangeNotif.fileVersion);
 
                             // Update all the patches in the done and batching queues
-                            for (int i = 0; i < transformedPatchDoneQueue.size(); i++) {
-                                batchingCtrl.patchDoneQueue.set(i, transformedPatchDoneQueue.get(i));
-                            }
-                            for (int i = 0; i < transformedPatchBatchingQueue.size(); i++) {
-                                batchingCtrl.patchBatchingQueue.set(i, transformedPatchBatchingQueue.get(i));
-                            }
-
-                            // Remove all patches in doneQueue that we no longer need.
-                            Iterator<Patch> itr = batchingCtrl.patchDoneQueue.iterator();
-                            while (itr.hasNext()) {
-                                Patch donePatch = itr.next();
-                                if (donePatch.getBaseVersion() < maxBaseVersionSeen) {
-                                    itr.remove();
-                                }
-                            }
+                            transform.commit(batchingCtrl.patchDoneQueue, batchingCtrl.patchBatchingQueue);
+                            notificationToApply.recordSince(notification.getReceivedNanos());
+                            flightRecorder.record(PatchFlightRecorder.EventType.APPLY, fileID, changes.length, fileChangeNotif.fileVersion);
                             break;
                         } else {
                             // If we failed, copy the actual changes back, overwriting our transformed set.
-                            System.arraycopy(oldChanges, 0, changes, 0, changes.length);
-                            logger.debug(String.format("PatchManager - Document changed between notification arrival and attempt to append. Retrying changes: %s", Arrays.asList(changes)).replace("\n", "\\n"));
+                            flightRecorder.record(PatchFlightRecorder.EventType.APPLY_RETRY, fileID, changes.length, fileChangeNotif.fileVersion);
+                            System.arraycopy(transform.getOriginalChanges(), 0, fileChangeNotif.changes, 0, changes.length);
+                            if (logger.isDebugEnabled()) {
+                                logger.debug(String.format("PatchManager - Document changed between notification arrival and attempt to append. Retrying changes: %s", Arrays.asList(fileChangeNotif.changes)).replace("\n", "\\n"));
+                            }
                             continue;
                         }
                     }
                 }
             }
-        }).start();
+        });
+        notificationHandlerThread.start();
+    }
+
+    /**
+     * Merges consecutive File.Change notifications for the same file at the head of the notification queue into the
+     * given notification. Only notifications that directly follow each other are merged, so the order in which
+     * notifications are applied is unchanged.
+     * <p>
+     * If a burst is detected (more than one notification was waiting), and linger is set, this will linger for up to
+     * NOTIFICATION_COALESCE_LINGER_MILLIS for further notifications, for no more than NOTIFICATION_COALESCE_MAX_DELAY_MILLIS
+     * in total. Must not linger while holding the handlingNotificationsLock, since that would hold up local changes.
+     *
+     * @param first  the notification that was taken off the queue
+     * @param linger whether to wait for further notifications of a burst
+     * @return a notification containing the changes of all merged notifications, or first if there were none to merge.
+     */
+    private Notification coalesceNotifications(Notification first, boolean linger) {
+        if (!(first.getData() instanceof FileChangeNotification)) {
+            return first;
+        }
+
+        long deadline = System.currentTimeMillis() + NOTIFICATION_COALESCE_MAX_DELAY_MILLIS;
+        List<Notification> merged = new ArrayList<>();
+        merged.add(first);
+        int changeCount = ((FileChangeNotification) first.getData()).changes.length;
+
+        synchronized (notificationHandlerQueue) {
+            while (changeCount < NOTIFICATION_COALESCE_MAX_CHANGES) {
+                Notification next = notificationHandlerQueue.peek();
+
+                if (next == null) {
+                    // Only linger if this is a burst; a single notification should be applied immediately.
+                    long remaining = Math.min(NOTIFICATION_COALESCE_LINGER_MILLIS, deadline - System.currentTimeMillis());
+                    if (!linger || merged.size() == 1 || remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        notificationHandlerQueue.wait(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (notificationHandlerQueue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Caught up changes are filtered when they are taken off the queue, so they can't be merged here.
+                if (next.getResourceID() != first.getResourceID() || !(next.getData() instanceof FileChangeNotification)
+                        || next.isCatchUp()) {
+                    break;
+                }
+                merged.add(notificationHandlerQueue.poll());
+                changeCount += ((FileChangeNotification) next.getData()).changes.length;
+            }
+        }
+
+        if (merged.size() == 1) {
+            return first;
+        }
+
+        String[] changes = new String[changeCount];
+        int index = 0;
+        for (Notification notification : merged) {
+            String[] notificationChanges = ((FileChangeNotification) notification.getData()).changes;
+            System.arraycopy(notificationChanges, 0, changes, index, notificationChanges.length);
+            index += notificationChanges.length;
+        }
+
+        FileChangeNotification firstData = (FileChangeNotification) first.getData();
+        FileChangeNotification lastData = (FileChangeNotification) merged.get(merged.size() - 1).getData();
+
+        Notification coalesced = new Notification();
+        coalesced.setResource(first.getResource());
+        coalesced.setMethod(first.getMethod());
+        coalesced.setResourceID(first.getResourceID());
+        coalesced.setData(new FileChangeNotification(changes, lastData.fileVersion, firstData.baseFileVersion));
+        // Measure from the earliest merged notification, since that one waited the longest.
+        coalesced.setReceivedNanos(first.getReceivedNanos());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("PatchManager-Notification: Coalesced %d notifications with %d changes for file %d",
+                    merged.size(), changeCount, first.getResourceID()));
+        }
+        return coalesced;
+    }
+
+    /**
+     * Drops the changes of a caught up notification that are at or below the latest version already applied or
+     * acknowledged for its file. Must be called on the notification handler thread.
+     *
+     * @param notification a caught up File.Change notification
+     * @return a notification with the remaining changes, or null if all of them were already seen
+     */
+    private Notification dropSeenChanges(Notification notification) {
+        FileChangeNotification fileChangeNotif = (FileChangeNotification) notification.getData();
+        long maxVersionSeen = getBatchingControl(notification.getResourceID()).maxVersionSeen;
+
+        List<String> unseen = new ArrayList<>();
+        for (String change : fileChangeNotif.changes) {
+            // A change based on version v creates version v + 1.
+            if (new Patch(change).getBaseVersion() + 1 > maxVersionSeen) {
+                unseen.add(change);
+            }
+        }
+        if (unseen.size() == fileChangeNotif.changes.length) {
+            return notification;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("PatchManager-Notification: Dropping %d changes for file %d already seen at version %d",
+                    fileChangeNotif.changes.length - unseen.size(), notification.getResourceID(), maxVersionSeen));
+        }
+        if (unseen.isEmpty()) {
+            return null;
+        }
+
+        Notification filtered = new Notification();
+        filtered.setResource(notification.getResource());
+        filtered.setMethod(notification.getMethod());
+        filtered.setResourceID(notification.getResourceID());
+        filtered.setData(new FileChangeNotification(unseen.toArray(new String[unseen.size()]),
+                fileChangeNotif.fileVersion, maxVersionSeen));
+        filtered.setReceivedNanos(notification.getReceivedNanos());
+        return filtered;
     }
 
     @Override
     public void handleNotification(Notification notification) {
         try {
             synchronized (notificationHandlerQueue) {
+                CatchUp catchUp = catchUps.get(notification.getResourceID());
+                if (catchUp != null && notification.getData() instanceof FileChangeNotification) {
+                    if (System.currentTimeMillis() - catchUp.startMillis < CATCH_UP_TIMEOUT_MILLIS) {
+                        catchUp.held.add(notification);
+                        return;
+                    }
+                    // The pull was lost; stop holding back notifications.
+                    logger.warn(String.format("PatchManager: Catching up on file %d timed out", notification.getResourceID()));
+                    finishCatchUp(notification.getResourceID(), null);
+                }
                 notificationHandlerQueue.put(notification);
                 notificationHandlerQueue.notifyAll();
             }
@@ -487,6 +909,141 @@ public class PatchManager implements INotificationHandler {
         return content;
     }
 
+    /**
+     * Applies a single patch in one streaming pass, reading the original content from the given Reader and writing
+     * the result to the given Writer. Unlike applyPatch(String, List), this never holds more than one diff's worth
+     * of the document in memory.
+     * <p>
+     * The diffs of the patch must be sorted by start index, as produced by Patch.compose.
+     *
+     * @param in    the original content
+     * @param out   the destination for the patched content
+     * @param patch the patch to apply
+     * @throws IOException if reading or writing fails
+     */
+    public void applyPatch(Reader in, Writer out, Patch patch) throws IOException {
+        char[] buffer = new char[8192];
+        long index = 0;
+
+        for (Diff diff : patch.getDiffs()) {
+            if (diff.getStartIndex() < index && !diff.isInsertion()) {
+                throw new IllegalArgumentException("PatchManager.ApplyPatch: Diffs must be sorted and non-overlapping: " + patch);
+            }
+
+            // Copy anything before the changes
+            index += copy(in, out, buffer, diff.getStartIndex() - index);
+            if (index < diff.getStartIndex()) {
+                throw new IllegalArgumentException(String.format("PatchManager.ApplyPatch: Diff start index %d is past end of content", diff.getStartIndex()));
+            }
+
+            if (diff.isInsertion()) {
+                out.write(diff.getChanges());
+            } else {
+                // validate that we're deleting the right characters
+                char[] deleted = new char[diff.getLength()];
+                int read = 0;
+                while (read < deleted.length) {
+                    int count = in.read(deleted, read, deleted.length - read);
+                    if (count < 0) {
+                        break;
+                    }
+                    read += count;
+                }
+                String deletedText = new String(deleted, 0, read);
+                if (!diff.getChanges().equals(deletedText)) {
+                    throw new IllegalStateException(
+                            String.format("PatchManager.ApplyPatch: Deleted text %s does not match changes in diff: %s", deletedText, diff.getChanges()));
+                }
+                index += read;
+            }
+        }
+
+        copy(in, out, buffer, Long.MAX_VALUE);
+        out.flush();
+    }
+
+    // Copies up to length characters from in to out, returning the number of characters copied.
+    private long copy(Reader in, Writer out, char[] buffer, long length) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            int count = in.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+            if (count < 0) {
+                break;
+            }
+            out.write(buffer, 0, count);
+            copied += count;
+        }
+        return copied;
+    }
+
+    /**
+     * Brings file content up to date with a list of changes pulled from the server. The changes are composed into
+     * a single patch, and applied in a single pass, rather than rebuilding the document once per change.
+     *
+     * @param content      the content of the file at (or before) sinceVersion
+     * @param changes      the changes from the server, in order
+     * @param sinceVersion changes with a base version lower than this are assumed to be included in content already
+     * @return the updated content
+     */
+    public byte[] catchUp(byte[] content, String[] changes, long sinceVersion) {
+        List<Patch> patches = new ArrayList<>();
+        if (changes != null) {
+            for (String change : changes) {
+                Patch patch = new Patch(change);
+                if (patch.getBaseVersion() >= sinceVersion) {
+                    patches.add(patch);
+                }
+            }
+        }
+
+        if (patches.isEmpty()) {
+            return content;
+        }
+
+        Patch composed = Patch.compose(patches);
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("PatchManager: Catching up %d changes with %d composed diffs", patches.size(), composed.getDiffs().size()));
+        }
+
+        // The changes count a line break as a single \n; if the file uses \r\n, convert them to its line breaks.
+        String crlfContent = null;
+        if (containsCRLF(content)) {
+            crlfContent = new String(content, StandardCharsets.UTF_8);
+            composed = composed.convertToCRLF(crlfContent);
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(content.length);
+        try (Reader in = crlfContent != null ? new StringReader(crlfContent)
+                : new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8);
+             Writer out = new OutputStreamWriter(result, StandardCharsets.UTF_8)) {
+            applyPatch(in, out, composed);
+        } catch (IOException e) {
+            // In-memory streams; should never happen.
+            throw new IllegalStateException("Failed to apply changes to content", e);
+        }
+        return result.toByteArray();
+    }
+
+    private static boolean containsCRLF(byte[] content) {
+        // In UTF-8, these bytes only ever encode the characters themselves.
+        for (int i = 0; i < content.length - 1; i++) {
+            if (content[i] == '\r' && content[i + 1] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the recorder of recent enqueue, transform, send, acknowledge and apply events, which can be dumped to
+     * diagnose divergence.
+     *
+     * @return the flight recorder of this PatchManager
+     */
+    public PatchFlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
     public void setModificationStamp(long fileID, long modificationStamp) {
         getBatchingControl(fileID).expectedModificationStamp.set(modificationStamp);
     }
@@ -495,10 +1052,49 @@ public class PatchManager implements INotificationHandler {
         final Semaphore batchingSem = new Semaphore(1);
         private final ArrayList<Patch> patchBatchingQueue = new ArrayList<>();
         private final ArrayList<Patch> patchBatchingPreQueue = new ArrayList<>();
-        private final ArrayList<Patch> patchDoneQueue = new ArrayList<>();
+        private final PatchDoneQueue patchDoneQueue = new PatchDoneQueue();
+        // Total number of patches removed from the front of the patchBatchingQueue; guarded by patchBatchingQueue.
+        private long patchBatchingQueueRemovals = 0;
+        // Number of patches at the front of the patchBatchingQueue that were sent, and may still be acknowledged;
+        // guarded by patchBatchingQueue.
+        private int sentPatchesAwaitingAck = 0;
         String[] lastResponsePatches = new String[0];
-        long maxVersionSeen = -1;
+        volatile long maxVersionSeen = -1;
         //        private boolean activeChangeRequest = false;
         private AtomicLong expectedModificationStamp = new AtomicLong(-1);
+        // Start times of the sendPatch calls whose patches are not yet acknowledged, oldest first; only recorded
+        // while metrics are enabled. Each is guarded by the queue of the same name.
+        private final ArrayDeque<Long> preQueueSendStarts = new ArrayDeque<>();
+        private final ArrayDeque<Long> batchingQueueSendStarts = new ArrayDeque<>();
+
+        /**
+         * Moves all patches from the pre-queue to the batching queue. Must be called while holding the
+         * patchBatchingQueue lock.
+         */
+        void drainPreQueue() {
+            synchronized (patchBatchingPreQueue) {
+                patchBatchingQueue.addAll(patchBatchingPreQueue);
+                patchBatchingPreQueue.clear();
+                batchingQueueSendStarts.addAll(preQueueSendStarts);
+                preQueueSendStarts.clear();
+            }
+        }
+
+        /**
+         * Records that the given version of the file has been seen, unless a later one has been seen already.
+         */
+        synchronized void raiseMaxVersionSeen(long version) {
+            if (version > maxVersionSeen) {
+                maxVersionSeen = version;
+            }
+        }
+    }
+
+    /**
+     * A file whose missed changes are being pulled, and the live notifications held back until they arrive.
+     */
+    private static class CatchUp {
+        final long startMillis = System.currentTimeMillis();
+        final List<Notification> held = new ArrayList<>();
     }
 }
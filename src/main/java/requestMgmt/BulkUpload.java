@@ -0,0 +1,206 @@
+package requestMgmt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a set of files to a project as a pipeline, so that uploading a large project is limited by bandwidth rather
+ * than by round trips:
+ * <ul>
+ * <li>Files are read and their line endings normalized on a pool of READ_THREADS threads. Files that were already
+ * created in the project with the same contents are skipped.</li>
+ * <li>Up to MAX_CONCURRENT_CREATES File.Create requests are in flight at once. Readers block when that limit is
+ * reached, which also bounds the number of files held in memory. They also wait while the websocket's send buffer
+ * is saturated.</li>
+ * <li>Text files larger than CHUNK_SIZE bytes are created with their first chunk, and the remaining chunks are
+ * appended with File.Change requests, one after another, so that no single message is larger than a chunk. Chunks
+ * are measured in UTF-8 bytes, like the files themselves. If an append fails, the partially uploaded file is deleted
+ * again before the failure is reported, so that retrying the upload doesn't leave a truncated copy behind.</li>
+ * </ul>
+ */
+class BulkUpload {
+    static int READ_THREADS = 4;
+    static int MAX_CONCURRENT_CREATES = 32;
+    static int CHUNK_SIZE = 1024 * 1024;
+
+    private final RequestManager requestManager;
+    private final long projectID;
+    private final List<FileUpload> files;
+    private final IUploadProgressHandler progressHandler;
+
+    private final Semaphore inFlight = new Semaphore(MAX_CONCURRENT_CREATES);
+    private final AtomicInteger filesCompleted = new AtomicInteger(0);
+    private final AtomicInteger filesFailed = new AtomicInteger(0);
+    private final AtomicLong bytesCompleted = new AtomicLong(0);
+
+    BulkUpload(RequestManager requestManager, long projectID, List<FileUpload> files,
+               IUploadProgressHandler progressHandler) {
+        this.requestManager = requestManager;
+        this.projectID = projectID;
+        this.files = files;
+        this.progressHandler = progressHandler;
+    }
+
+    /**
+     * Starts reading and uploading the files. Returns immediately; progress is reported to the progress handler.
+     */
+    void start() {
+        ExecutorService readers = Executors.newFixedThreadPool(READ_THREADS, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("BulkUploadReader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (FileUpload file : files) {
+            readers.execute(() -> upload(file));
+        }
+        // Already submitted reads still run; the threads exit once they are done.
+        readers.shutdown();
+    }
+
+    private void upload(FileUpload file) {
+        byte[] contents;
+        try {
+            contents = RequestManager.normalizeLineEndings(Files.readAllBytes(Paths.get(file.getFullPath())));
+        } catch (IOException e) {
+            fileFailed(file, "Failed to read file: " + e.getMessage());
+            return;
+        }
+
+        if (requestManager.isAlreadyCreated(file.getFullPath(), projectID, contents)) {
+            filesCompleted.incrementAndGet();
+            bytesCompleted.addAndGet(contents.length);
+            reportProgress();
+            return;
+        }
+
+        String text = contents.length > CHUNK_SIZE ? decodeText(contents) : null;
+        // Hold off while the connection can't keep up, rather than queueing more files behind it.
+        requestManager.awaitSendCapacity();
+        inFlight.acquireUninterruptibly();
+        if (text == null) {
+            // Small or binary files are sent as a whole.
+            requestManager.sendFileCreate(file.getName(), file.getRelativePath(), projectID, contents,
+                    fileID -> fileCompleted(file, fileID, 1, contents),
+                    (status, message) -> requestFailed(file, message),
+                    () -> requestFailed(file, "Failed to send request to create file"));
+            return;
+        }
+
+        int firstEnd = chunkEnd(text, 0);
+        requestManager.sendFileCreate(file.getName(), file.getRelativePath(), projectID,
+                text.substring(0, firstEnd).getBytes(StandardCharsets.UTF_8),
+                fileID -> appendChunks(file, fileID, 1, text, firstEnd, contents),
+                (status, message) -> requestFailed(file, message),
+                () -> requestFailed(file, "Failed to send request to create file"));
+    }
+
+    /**
+     * Appends the rest of a chunked file, starting at the given offset. Each chunk is only sent once the previous
+     * one has been acknowledged, since it is based on the version that the previous one created.
+     */
+    private void appendChunks(FileUpload file, long fileID, long version, String text, int offset, byte[] contents) {
+        if (offset >= text.length()) {
+            fileCompleted(file, fileID, version, contents);
+            return;
+        }
+
+        int end = chunkEnd(text, offset);
+        requestManager.sendFileAppend(fileID, version, offset, text.substring(offset, end),
+                newVersion -> appendChunks(file, fileID, newVersion, text, end, contents),
+                (status, message) -> appendFailed(file, fileID, message),
+                () -> appendFailed(file, fileID, "Failed to send request to append to file"));
+    }
+
+    /**
+     * Deletes a file whose upload failed part way through, then reports the failure.
+     */
+    private void appendFailed(FileUpload file, long fileID, String message) {
+        requestManager.sendFileDelete(fileID,
+                () -> requestFailed(file, message),
+                (status, deleteMessage) -> requestFailed(file, message + "; " + deleteMessage),
+                () -> requestFailed(file, message + "; failed to send request to delete partially uploaded file"));
+    }
+
+    private void fileCompleted(FileUpload file, long fileID, long version, byte[] contents) {
+        requestManager.putCreatedFileMetadata(file.getName(), file.getFullPath(), file.getRelativePath(), projectID,
+                fileID, version, contents);
+        inFlight.release();
+        bytesCompleted.addAndGet(contents.length);
+        filesCompleted.incrementAndGet();
+        reportProgress();
+    }
+
+    private void requestFailed(FileUpload file, String message) {
+        inFlight.release();
+        fileFailed(file, message);
+    }
+
+    private void fileFailed(FileUpload file, String message) {
+        progressHandler.handleUploadFailed(file, message);
+        filesFailed.incrementAndGet();
+        reportProgress();
+    }
+
+    private void reportProgress() {
+        progressHandler.handleUploadProgress(filesCompleted.get(), filesFailed.get(), files.size(), bytesCompleted.get());
+    }
+
+    /**
+     * Gets the end of the chunk that starts at the given offset, so that the chunk is at most CHUNK_SIZE bytes long
+     * when encoded as UTF-8. Never splits a surrogate pair, and always includes at least one code point.
+     */
+    static int chunkEnd(String text, int offset) {
+        int end = offset;
+        int bytes = 0;
+        while (end < text.length()) {
+            int codePoint = text.codePointAt(end);
+            int length = utf8Length(codePoint);
+            if (bytes + length > CHUNK_SIZE && end > offset) {
+                break;
+            }
+            bytes += length;
+            end += Character.charCount(codePoint);
+        }
+        return end;
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        } else if (codePoint < 0x800) {
+            return 2;
+        } else if (codePoint < 0x10000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    /**
+     * Decodes the contents of a file as UTF-8.
+     *
+     * @return the text of the file, or null if it is not valid UTF-8 (and therefore cannot be sent as patches).
+     */
+    private static String decodeText(byte[] contents) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(contents))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package requestMgmt;
+
+import dataMgmt.DataManager;
+import dataMgmt.FileContentCache;
+import websocket.models.File;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Materializes the files of subscribed projects lazily. A file is pulled right away when it is opened; all other
+ * files are pulled in the background, at most MAX_CONCURRENT_PREFETCHES at a time, in order of priority:
+ * <ol>
+ * <li>files that were recently opened,</li>
+ * <li>files in the same directory as the most recently opened file,</li>
+ * <li>all other files.</li>
+ * </ol>
+ * Within each group, smaller files are pulled first. The server does not report file sizes, so the size of a file's
+ * cached contents is used; files that were never cached come last.
+ * <p>
+ * A pull that hasn't completed after PULL_TIMEOUT_MILLIS (for example, because its response was lost with the
+ * connection) is counted as failed, so that it doesn't hold on to its prefetch slot.
+ */
+public class FilePrefetcher {
+    static int MAX_CONCURRENT_PREFETCHES = 4;
+    static long PULL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("FilePrefetcherTimeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int PRIORITY_RECENTLY_OPENED = 0;
+    private static final int PRIORITY_ACTIVE_DIRECTORY = 1;
+    private static final int PRIORITY_OTHER = 2;
+
+    private final RequestManager requestManager;
+    private final DataManager dataManager;
+
+    // All state is guarded by this.
+    // All files that were enqueued (FileID -> File), and the project each one belongs to
+    private final Map<Long, File> files = new HashMap<>();
+    private final Map<Long, Long> fileProjects = new HashMap<>();
+    // Files waiting to be prefetched
+    private final Set<Long> pending = new HashSet<>();
+    // Queue of pending fileIDs; stale entries (for files that were opened or cancelled meanwhile) are skipped.
+    private PriorityQueue<QueuedFile> queue = new PriorityQueue<>();
+    private final Set<Long> inFlight = new HashSet<>();
+    private final Set<Long> materialized = new HashSet<>();
+    // The most recently opened files, least recent first
+    private final LinkedHashSet<Long> recentlyOpened = new LinkedHashSet<>();
+    private long activeProjectID = -1;
+    private String activeDirectory;
+    private int runningPrefetches = 0;
+
+    FilePrefetcher(RequestManager requestManager, DataManager dataManager) {
+        this.requestManager = requestManager;
+        this.dataManager = dataManager;
+    }
+
+    /**
+     * Adds the files of a project to be prefetched. Files whose cached contents are already up to date are
+     * considered materialized.
+     *
+     * @param projectID    the project the files belong to
+     * @param projectFiles the files of the project, from the server
+     */
+    public void enqueue(long projectID, File[] projectFiles) {
+        synchronized (this) {
+            for (File file : projectFiles) {
+                long fileID = file.getFileID();
+                files.put(fileID, file);
+                fileProjects.put(fileID, projectID);
+                FileContentCache.CachedFile cached = dataManager.getFileContentCache().get(fileID);
+                if (cached != null && cached.getVersion() >= file.getFileVersion()) {
+                    materialized.add(fileID);
+                    continue;
+                }
+                materialized.remove(fileID);
+                pending.add(fileID);
+                queue.add(new QueuedFile(fileID, priority(file, projectID), size(fileID)));
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Materializes a file that is being opened, ahead of all prefetching, and makes its directory the active one.
+     *
+     * @param fileID the file that is being opened
+     */
+    public void open(long fileID) {
+        boolean pullNow;
+        synchronized (this) {
+            recentlyOpened.remove(fileID);
+            recentlyOpened.add(fileID);
+            File file = files.get(fileID);
+            if (file != null) {
+                activeProjectID = fileProjects.get(fileID);
+                activeDirectory = file.getRelativePath();
+            }
+
+            pullNow = pending.remove(fileID);
+            if (pullNow) {
+                inFlight.add(fileID);
+            }
+            reprioritize();
+        }
+
+        if (pullNow) {
+            pull(fileID, false);
+        }
+        schedule();
+    }
+
+    /**
+     * Marks files as recently opened, for example to restore the open files of an earlier session. They are
+     * prefetched before all other files.
+     *
+     * @param fileIDs the files, least recently opened first
+     */
+    public void markRecentlyOpened(Collection<Long> fileIDs) {
+        synchronized (this) {
+            for (long fileID : fileIDs) {
+                recentlyOpened.remove(fileID);
+                recentlyOpened.add(fileID);
+            }
+            reprioritize();
+        }
+        schedule();
+    }
+
+    /**
+     * Stops prefetching the files of a project.
+     *
+     * @param projectID the project to stop prefetching
+     */
+    public void cancel(long projectID) {
+        synchronized (this) {
+            pending.removeIf(fileID -> fileProjects.get(fileID) == projectID);
+            files.keySet().removeIf(fileID -> fileProjects.get(fileID) == projectID);
+            fileProjects.values().removeIf(id -> id == projectID);
+        }
+    }
+
+    /**
+     * Checks whether a file's contents have been pulled (or were already cached).
+     *
+     * @param fileID the file to check
+     * @return true if the file has been materialized
+     */
+    public synchronized boolean isMaterialized(long fileID) {
+        return materialized.contains(fileID);
+    }
+
+    /**
+     * Gets the number of files that are still waiting to be prefetched.
+     *
+     * @return the number of pending files
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void schedule() {
+        List<Long> toPull = new ArrayList<>();
+        synchronized (this) {
+            while (runningPrefetches < MAX_CONCURRENT_PREFETCHES && !queue.isEmpty()) {
+                QueuedFile next = queue.poll();
+                if (!pending.remove(next.fileID)) {
+                    continue;
+                }
+                inFlight.add(next.fileID);
+                runningPrefetches++;
+                toPull.add(next.fileID);
+            }
+        }
+
+        // Pull outside the lock; the completion callback may run on this thread.
+        for (long fileID : toPull) {
+            pull(fileID, true);
+        }
+    }
+
+    /**
+     * Pulls a file, and calls finished() once, when the pull completes or times out.
+     */
+    private void pull(long fileID, boolean prefetch) {
+        AtomicBoolean done = new AtomicBoolean(false);
+        ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> {
+            if (done.compareAndSet(false, true)) {
+                finished(fileID, prefetch, false);
+            }
+        }, PULL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        requestManager.pullFile(fileID, success -> {
+            if (done.compareAndSet(false, true)) {
+                timeout.cancel(false);
+                finished(fileID, prefetch, success);
+            } else if (success) {
+                // Completed after timing out; its slot was already released.
+                synchronized (this) {
+                    materialized.add(fileID);
+                }
+            }
+        });
+    }
+
+    private void finished(long fileID, boolean prefetch, boolean success) {
+        synchronized (this) {
+            inFlight.remove(fileID);
+            // A file that failed to pull is left to be pulled when it is opened.
+            if (success) {
+                materialized.add(fileID);
+            }
+            if (prefetch) {
+                runningPrefetches--;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Rebuilds the queue after the recently opened files or the active directory changed.
+     */
+    private void reprioritize() {
+        PriorityQueue<QueuedFile> newQueue = new PriorityQueue<>(Math.max(1, pending.size()));
+        for (long fileID : pending) {
+            newQueue.add(new QueuedFile(fileID, priority(files.get(fileID), fileProjects.get(fileID)), size(fileID)));
+        }
+        queue = newQueue;
+    }
+
+    private int priority(File file, long projectID) {
+        if (recentlyOpened.contains(file.getFileID())) {
+            return PRIORITY_RECENTLY_OPENED;
+        }
+        if (projectID == activeProjectID && activeDirectory != null && activeDirectory.equals(file.getRelativePath())) {
+            return PRIORITY_ACTIVE_DIRECTORY;
+        }
+        return PRIORITY_OTHER;
+    }
+
+    private long size(long fileID) {
+        FileContentCache.CachedFile cached = dataManager.getFileContentCache().get(fileID);
+        return cached == null ? Long.MAX_VALUE : cached.getSize();
+    }
+
+    private static class QueuedFile implements Comparable<QueuedFile> {
+        final long fileID;
+        final int priority;
+        final long size;
+
+        QueuedFile(long fileID, int priority, long size) {
+            this.fileID = fileID;
+            this.priority = priority;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(QueuedFile other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            if (size != other.size) {
+                return Long.compare(size, other.size);
+            }
+            return Long.compare(fileID, other.fileID);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package requestMgmt;
+
+/**
+ * A file on disk that is to be created on the server as part of a bulk upload.
+ */
+public class FileUpload {
+    private final String name;
+    private final String fullPath;
+    private final String relativePath;
+
+    /**
+     * @param name         the name of the file
+     * @param fullPath     the absolute path of the file on disk, which is read during the upload
+     * @param relativePath the path of the file's directory, relative to the project root
+     */
+    public FileUpload(String name, String fullPath, String relativePath) {
+        this.name = name;
+        this.fullPath = fullPath;
+        this.relativePath = relativePath;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFullPath() {
+        return fullPath;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+}
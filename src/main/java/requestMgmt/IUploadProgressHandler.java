@@ -0,0 +1,25 @@
+package requestMgmt;
+
+/**
+ * Receives progress updates for a bulk upload started with RequestManager.createFiles.
+ */
+public interface IUploadProgressHandler {
+    /**
+     * Called every time a file has finished uploading, or has failed to upload. The upload is complete once
+     * filesCompleted + filesFailed == filesTotal.
+     *
+     * @param filesCompleted the number of files that were created on the server
+     * @param filesFailed    the number of files that could not be read or created
+     * @param filesTotal     the number of files in the upload
+     * @param bytesCompleted the total size of the files that were created on the server
+     */
+    public void handleUploadProgress(int filesCompleted, int filesFailed, int filesTotal, long bytesCompleted);
+
+    /**
+     * Called when a file could not be read or created. This is followed by a call to handleUploadProgress.
+     *
+     * @param file    the file that failed to upload
+     * @param message a description of the failure
+     */
+    public void handleUploadFailed(FileUpload file, String message);
+}
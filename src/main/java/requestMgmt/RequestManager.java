@@ -3,26 +3,37 @@ package requestMgmt;
 import com.google.common.collect.BiMap;
 
 import constants.CoreStringConstants;
+import dataMgmt.ContentStore;
 import dataMgmt.DataManager;
+import dataMgmt.FileContentCache;
 import dataMgmt.MetadataManager;
 import dataMgmt.SessionStorage;
 import dataMgmt.models.FileMetadata;
 import dataMgmt.models.ProjectMetadata;
+import patching.Diff;
 import patching.Patch;
+import patching.PatchManager;
 import websocket.ConnectException;
 import websocket.IRequestSendErrorHandler;
 import websocket.IResponseHandler;
+import websocket.TrafficClass;
+import websocket.WSConnection;
 import websocket.WSManager;
 import websocket.models.File;
+import websocket.models.Notification;
 import websocket.models.Permission;
 import websocket.models.Project;
 import websocket.models.Request;
+import websocket.models.Response;
+import websocket.models.notifications.FileChangeNotification;
 import websocket.models.requests.*;
 import websocket.models.responses.*;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * Created by fahslaj on 10/15/2016.
@@ -35,6 +46,14 @@ public abstract class RequestManager {
     private IRequestSendErrorHandler requestSendErrorHandler;
     private IInvalidResponseHandler incorrectResponseStatusHandler;
 
+    // Pulls file contents on demand and in the background, if lazy materialization is enabled
+    private final FilePrefetcher filePrefetcher;
+    private volatile boolean lazyMaterialization = false;
+    // Files that are open in the editor; only these are resynced after a reconnect
+    private final Set<Long> openFiles = ConcurrentHashMap.newKeySet();
+    // Whether the connection has been established before, so that ON_CONNECT is a reconnect
+    private final AtomicBoolean connectedBefore = new AtomicBoolean(false);
+
     public RequestManager(DataManager dataManager, WSManager wsManager,
                           IRequestSendErrorHandler requestSendErrorHandler,
                           IInvalidResponseHandler incorrectResponseStatusHandler) {
@@ -42,6 +61,148 @@ public abstract class RequestManager {
         this.wsManager = wsManager;
         this.requestSendErrorHandler = requestSendErrorHandler;
         this.incorrectResponseStatusHandler = incorrectResponseStatusHandler;
+        this.filePrefetcher = new FilePrefetcher(this, dataManager);
+
+        // Restore the session every time the connection is (re-)established.
+        if (wsManager != null) {
+            wsManager.registerEventHandler(WSConnection.EventType.ON_CONNECT, this::resumeSession);
+            wsManager.setNotificationFilter(this::isSubscribedFileChange);
+        }
+    }
+
+    /**
+     * Checks whether a notification should still be handled. File changes for projects that we have unsubscribed
+     * from (but that were already in flight) are dropped; everything else is accepted.
+     *
+     * @param resource   the resource of the notification
+     * @param method     the method of the notification
+     * @param resourceID the resourceID of the notification
+     * @return false if the notification is for a file of an unsubscribed project
+     */
+    private boolean isSubscribedFileChange(String resource, String method, long resourceID) {
+        if (!"File".equals(resource) || !"Change".equals(method)) {
+            return true;
+        }
+
+        Long projectID = dataManager.getMetadataManager().getProjectIDForFileID(resourceID);
+        if (projectID == null) {
+            return true;
+        }
+        synchronized (SessionStorage.SUBSCRIBED_PROJECTS) {
+            return dataManager.getSessionStorage().getSubscribedIds().contains(projectID);
+        }
+    }
+
+    /**
+     * Restores the session after a reconnect. All subscriptions are re-sent at once, and as each one succeeds, the
+     * changes that were missed while disconnected are pulled for every open (and, in lazy mode, materialized) file of
+     * the project, all without waiting for each other. The missing changes are passed through the PatchManager like a
+     * normal File.Change notification, so that any local patches that are still queued are rebased on top of them.
+     * <p>
+     * Live notifications for the open files are held back by the PatchManager from before the subscription is
+     * re-sent until the missed changes have been pulled, so that they are applied in order; changes that arrive both
+     * ways are only applied once. Nothing is resumed on the first connect.
+     */
+    public void resumeSession() {
+        if (!connectedBefore.getAndSet(true)) {
+            return;
+        }
+
+        Set<Long> subscribedIds;
+        synchronized (SessionStorage.SUBSCRIBED_PROJECTS) {
+            subscribedIds = new HashSet<>(dataManager.getSessionStorage().getSubscribedIds());
+        }
+
+        PatchManager patchManager = dataManager.getPatchManager();
+        for (long id : subscribedIds) {
+            List<FileMetadata> filesToResync = new ArrayList<>();
+            ProjectMetadata pMeta = dataManager.getMetadataManager().getProjectMetadata(id);
+            if (pMeta != null && pMeta.getFiles() != null) {
+                for (FileMetadata fMeta : pMeta.getFiles()) {
+                    // In lazy mode, files that haven't been materialized yet are pulled in full anyway.
+                    if (openFiles.contains(fMeta.getFileID())
+                            && (!lazyMaterialization || filePrefetcher.isMaterialized(fMeta.getFileID()))) {
+                        filesToResync.add(fMeta);
+                        patchManager.beginCatchUp(fMeta.getFileID());
+                    }
+                }
+            }
+
+            Request subscribeRequest = (new ProjectSubscribeRequest(id)).getRequest(response -> {
+                int status = response.getStatus();
+                if (status == 200) {
+                    filesToResync.forEach(this::resyncFile);
+                } else {
+                    filesToResync.forEach(fMeta -> patchManager.finishCatchUp(fMeta.getFileID(), null));
+                    this.incorrectResponseStatusHandler.handleInvalidResponse(status, "Error resubscribing to project: " + id);
+                }
+            }, () -> {
+                filesToResync.forEach(fMeta -> patchManager.finishCatchUp(fMeta.getFileID(), null));
+                this.requestSendErrorHandler.handleRequestSendError();
+            });
+            wsManager.sendAuthenticatedRequest(subscribeRequest);
+        }
+    }
+
+    /**
+     * Pulls the changes made to the given file since the last version we know of, and hands them to the PatchManager
+     * to finish catching up.
+     *
+     * @param fMeta the metadata of the file to resync
+     */
+    private void resyncFile(FileMetadata fMeta) {
+        long fileID = fMeta.getFileID();
+        PatchManager patchManager = dataManager.getPatchManager();
+
+        long knownVersion;
+        synchronized (fMeta) {
+            knownVersion = Math.max(fMeta.getVersion(), patchManager.getMaxVersionSeen(fileID));
+        }
+
+        Request pullFileReq = new FilePullRequest(fileID, knownVersion).getRequest(response -> {
+            int status = response.getStatus();
+            if (status != 200) {
+                patchManager.finishCatchUp(fileID, null);
+                this.incorrectResponseStatusHandler.handleInvalidResponse(status, "Failed to resync file from server: " + fileID);
+                return;
+            }
+
+            // The server may send the full history; only keep the changes after the version we resumed from. Changes
+            // that were also received live are dropped by the PatchManager when it applies them.
+            List<String> missingChanges = new ArrayList<>();
+            String[] changes = ((FilePullResponse) response.getData()).getChanges();
+            if (changes != null) {
+                for (String change : changes) {
+                    if (new Patch(change).getBaseVersion() >= knownVersion) {
+                        missingChanges.add(change);
+                    }
+                }
+            }
+            if (missingChanges.isEmpty()) {
+                patchManager.finishCatchUp(fileID, null);
+                return;
+            }
+
+            long version = new Patch(missingChanges.get(missingChanges.size() - 1)).getBaseVersion() + 1;
+
+            Notification notification = new Notification();
+            notification.setResource("File");
+            notification.setMethod("Change");
+            notification.setResourceID(fileID);
+            notification.setData(new FileChangeNotification(missingChanges.toArray(new String[missingChanges.size()]),
+                    version, knownVersion));
+            patchManager.finishCatchUp(fileID, notification);
+
+            synchronized (fMeta) {
+                if (fMeta.getVersion() < version) {
+                    fMeta.setVersion(version);
+                }
+            }
+        }, () -> {
+            patchManager.finishCatchUp(fileID, null);
+            this.requestSendErrorHandler.handleRequestSendError();
+        });
+        this.wsManager.sendAuthenticatedRequest(pullFileReq);
     }
 
     /**
@@ -119,6 +280,9 @@ public abstract class RequestManager {
                     if (status2 == 200) {
                         ProjectGetFilesResponse r = (ProjectGetFilesResponse) response2.getData();
                         finishSubscribeToProject(id, r.files);
+                        if (lazyMaterialization) {
+                            filePrefetcher.enqueue(id, r.files);
+                        }
                     } else {
                         this.incorrectResponseStatusHandler.handleInvalidResponse(status, "Error getting project files: " + id);
                     }
@@ -133,11 +297,62 @@ public abstract class RequestManager {
 
     /**
      * Finish the subscription action by using the project's files from the server and creating metadata.
+     * Files whose contents are still cached at their current version can be read with getCachedFileContents;
+     * only the others need to be pulled.
      * @param id id of the project subscribed to
      * @param files files from the server
      */
     public abstract void finishSubscribeToProject(long id, File[] files);
 
+    /**
+     * Enables or disables lazy materialization. When enabled, the files of a project are not expected to be pulled
+     * in finishSubscribeToProject; instead, each file is pulled when it is opened (see openFile), and the rest are
+     * prefetched in the background. The contents are delivered through finishPullFile either way.
+     *
+     * @param lazyMaterialization true to pull files lazily
+     */
+    public void setLazyMaterialization(boolean lazyMaterialization) {
+        this.lazyMaterialization = lazyMaterialization;
+    }
+
+    /**
+     * Marks a file as open, so that it is resynced after a reconnect. Also notifies the prefetcher, so that the file
+     * is pulled right away if it hasn't been yet, and files near it are prefetched next.
+     *
+     * @param fileID the file that is being opened
+     */
+    public void openFile(long fileID) {
+        openFiles.add(fileID);
+        filePrefetcher.open(fileID);
+    }
+
+    /**
+     * Marks a file as closed; it is no longer resynced after a reconnect.
+     *
+     * @param fileID the file that was closed
+     */
+    public void closeFile(long fileID) {
+        openFiles.remove(fileID);
+    }
+
+    public FilePrefetcher getFilePrefetcher() {
+        return filePrefetcher;
+    }
+
+    /**
+     * Gets the cached contents of the given file, if they are at least as new as the file's version on the server.
+     *
+     * @param file a file from the server
+     * @return the cached contents, or null if the file needs to be pulled.
+     */
+    public byte[] getCachedFileContents(File file) {
+        FileContentCache.CachedFile cached = this.dataManager.getFileContentCache().get(file.getFileID());
+        if (cached == null || cached.getVersion() < file.getFileVersion()) {
+            return null;
+        }
+        return cached.getContents();
+    }
+
     /**
      * Unsubscribe from the project with the given id
      * @param id id of the project to unsubscribe from
@@ -147,6 +362,7 @@ public abstract class RequestManager {
             int status = response.getStatus();
             if (status == 200) {
                 dataManager.getSessionStorage().setUnsubscribed(id);
+                filePrefetcher.cancel(id);
             } else {
                 this.incorrectResponseStatusHandler.handleInvalidResponse(status, "Failed to unsubscribe from project: " + id);
             }
@@ -336,28 +552,190 @@ public abstract class RequestManager {
      * @param fileBytes
      */
     public void createFile(String name, String fullPath, String relativePath, long projectID, byte[] fileBytes) {
-    	String contents = new String(fileBytes);
-    	if (contents.contains("\r\n")) {
-    		contents = contents.replace("\r\n", "\n");
-    	}
-        Request createFileReq = new FileCreateRequest(name, relativePath, projectID, fileBytes).getRequest(response -> {
+        byte[] contents = normalizeLineEndings(fileBytes);
+        if (isAlreadyCreated(fullPath, projectID, contents)) {
+            return;
+        }
+        sendFileCreate(name, relativePath, projectID, contents,
+                fileID -> putCreatedFileMetadata(name, fullPath, relativePath, projectID, fileID, 1, contents),
+                (status, message) -> this.incorrectResponseStatusHandler.handleInvalidResponse(status, message),
+                requestSendErrorHandler);
+    }
+
+    /**
+     * Creates the given files on the server, reading them from disk in parallel and keeping several requests in
+     * flight at once. Also creates the metadata for each file as it is created.
+     * Converts the contents of the files to LF if they are CRLF.
+     *
+     * @param projectID       the project to create the files in
+     * @param files           the files to create
+     * @param progressHandler handler that is notified as each file completes or fails
+     */
+    public void createFiles(long projectID, List<FileUpload> files, IUploadProgressHandler progressHandler) {
+        new BulkUpload(this, projectID, files, progressHandler).start();
+    }
+
+    /**
+     * Sends a File.Create request for the given contents.
+     *
+     * @param name              the name of the file
+     * @param relativePath      the relative path of the file
+     * @param projectID         the project to create the file in
+     * @param contents          the contents of the file, already normalized to LF
+     * @param onCreated         called with the fileID once the file was created
+     * @param onInvalidResponse called if the server rejected the request
+     * @param onSendError       called if the request could not be sent
+     */
+    void sendFileCreate(String name, String relativePath, long projectID, byte[] contents, LongConsumer onCreated,
+                        IInvalidResponseHandler onInvalidResponse, IRequestSendErrorHandler onSendError) {
+        Request createFileReq = new FileCreateRequest(name, relativePath, projectID, contents).getRequest(response -> {
             int status = response.getStatus();
             if (status == 200) {
-                long fileID = ((FileCreateResponse) response.getData()).getFileID();
-                FileMetadata fMeta =  new FileMetadata();
-                fMeta.setFileID(fileID);
-                fMeta.setFilename(name);
-                fMeta.setRelativePath(relativePath);
-                fMeta.setVersion(1);
-                this.dataManager.getMetadataManager().putFileMetadata(fullPath, projectID, fMeta);
+                onCreated.accept(((FileCreateResponse) response.getData()).getFileID());
             } else {
-                this.incorrectResponseStatusHandler.handleInvalidResponse(status, "Failed to create file \"" + name +
-                        "\" on the server.");
+                onInvalidResponse.handleInvalidResponse(status, "Failed to create file \"" + name + "\" on the server.");
             }
-        }, requestSendErrorHandler);
+        }, onSendError);
         this.wsManager.sendAuthenticatedRequest(createFileReq);
     }
 
+    /**
+     * Sends a File.Change request that inserts the given text into a file.
+     *
+     * @param fileID            the file to append to
+     * @param baseVersion       the version of the file that the insertion is based on
+     * @param offset            the offset to insert the text at
+     * @param text              the text to insert
+     * @param onAppended        called with the new version of the file once the change was applied
+     * @param onInvalidResponse called if the server rejected the request
+     * @param onSendError       called if the request could not be sent
+     */
+    void sendFileAppend(long fileID, long baseVersion, int offset, String text, LongConsumer onAppended,
+                        IInvalidResponseHandler onInvalidResponse, IRequestSendErrorHandler onSendError) {
+        Patch patch = new Patch(baseVersion, Collections.singletonList(new Diff(true, offset, text)));
+        Request changeReq = new FileChangeRequest(fileID, new String[]{patch.toString()}).getRequest(response -> {
+            int status = response.getStatus();
+            if (status == 200) {
+                onAppended.accept(((FileChangeResponse) response.getData()).getFileVersion());
+            } else {
+                onInvalidResponse.handleInvalidResponse(status, "Failed to upload contents of file: " + fileID);
+            }
+        }, onSendError);
+        // Part of an upload, not an edit; don't compete with the user's changes.
+        changeReq.setTrafficClass(TrafficClass.BULK);
+        this.wsManager.sendAuthenticatedRequest(changeReq);
+    }
+
+    /**
+     * Sends a File.Delete request for a file that is not tracked in the metadata, such as a file whose upload failed.
+     *
+     * @param fileID            the file to delete
+     * @param onDeleted         called once the file was deleted
+     * @param onInvalidResponse called if the server rejected the request
+     * @param onSendError       called if the request could not be sent
+     */
+    void sendFileDelete(long fileID, Runnable onDeleted, IInvalidResponseHandler onInvalidResponse,
+                        IRequestSendErrorHandler onSendError) {
+        Request deleteFileReq = new FileDeleteRequest(fileID).getRequest(response -> {
+            int status = response.getStatus();
+            if (status == 200) {
+                onDeleted.run();
+            } else {
+                onInvalidResponse.handleInvalidResponse(status, "Failed to delete partially uploaded file: " + fileID);
+            }
+        }, onSendError);
+        this.wsManager.sendAuthenticatedRequest(deleteFileReq);
+    }
+
+    /**
+     * Blocks while the websocket's send buffer is saturated. Only for producers that run on their own threads, since
+     * this can wait for as long as the connection is down.
+     */
+    void awaitSendCapacity() {
+        try {
+            this.wsManager.getSendBuffer().awaitCapacity(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks whether the file at the given path was already created in the project with exactly the given contents,
+     * in which case it doesn't need to be sent again.
+     *
+     * @param fullPath  the absolute path of the file
+     * @param projectID the project the file is to be created in
+     * @param contents  the contents of the file, already normalized to LF
+     * @return true if the file was already created with these contents
+     */
+    boolean isAlreadyCreated(String fullPath, long projectID, byte[] contents) {
+        FileMetadata fMeta = this.dataManager.getMetadataManager().getFileMetadata(fullPath);
+        if (fMeta == null || !isContentHashCurrent(fMeta)) {
+            return false;
+        }
+        Long fileProjectID = this.dataManager.getMetadataManager().getProjectIDForFileID(fMeta.getFileID());
+        if (fileProjectID == null || fileProjectID != projectID || !fMeta.getContentHash().equals(ContentStore.hash(contents))) {
+            return false;
+        }
+        this.dataManager.getContentStore().recordBytesSaved(contents.length);
+        return true;
+    }
+
+    /**
+     * Checks whether the content hash recorded for a file still describes its current contents. The hash is only
+     * updated when the contents are known in full; once changes past its version have been acknowledged or applied,
+     * it only describes an earlier version of the file, which can still serve as the base of a pull.
+     *
+     * @param fMeta the metadata of the file; must be locked by the caller if it can be modified concurrently
+     * @return true if the hash describes the latest contents of the file that this client has seen
+     */
+    private boolean isContentHashCurrent(FileMetadata fMeta) {
+        if (fMeta.getContentHash() == null) {
+            return false;
+        }
+        long latestVersion = Math.max(fMeta.getVersion(), this.dataManager.getPatchManager().getMaxVersionSeen(fMeta.getFileID()));
+        return fMeta.getContentVersion() >= latestVersion;
+    }
+
+    void putCreatedFileMetadata(String name, String fullPath, String relativePath, long projectID, long fileID, long version,
+                                byte[] contents) {
+        FileMetadata fMeta = new FileMetadata();
+        fMeta.setFileID(fileID);
+        fMeta.setFilename(name);
+        fMeta.setRelativePath(relativePath);
+        fMeta.setVersion(version);
+        fMeta.setContentHash(version, ContentStore.hash(contents));
+        this.dataManager.getMetadataManager().putFileMetadata(fullPath, projectID, fMeta);
+        // Lets the first pull of the file only request the changes made since it was created.
+        this.dataManager.getFileContentCache().put(fileID, version, contents);
+    }
+
+    /**
+     * Converts CRLF line endings to LF, without decoding the contents.
+     *
+     * @param contents the contents of a file
+     * @return the converted contents, or the same array if it contains no CRLF
+     */
+    static byte[] normalizeLineEndings(byte[] contents) {
+        int length = 0;
+        byte[] normalized = null;
+        for (int i = 0; i < contents.length; i++) {
+            if (contents[i] == '\r' && i + 1 < contents.length && contents[i + 1] == '\n') {
+                if (normalized == null) {
+                    normalized = new byte[contents.length - 1];
+                    System.arraycopy(contents, 0, normalized, 0, i);
+                    length = i;
+                }
+                continue;
+            }
+            if (normalized != null) {
+                normalized[length] = contents[i];
+            }
+            length++;
+        }
+        return normalized == null ? contents : Arrays.copyOf(normalized, length);
+    }
+
     /**
      * Renames the given file on the server and changes the corresponding metadata.
      *
@@ -423,6 +801,120 @@ public abstract class RequestManager {
         this.wsManager.sendAuthenticatedRequest(deleteFileReq);
     }
 
+    /**
+     * Pulls the latest contents of the given file from the server.
+     * If a version of the file is cached, only the changes made since that version are requested, and they are
+     * composed and applied to the cached contents in a single pass. If the server still sends the full file,
+     * it is used instead.
+     * If the resulting contents match the last known contents of the file, and no changes have been acknowledged or
+     * applied since those were recorded, finishPullFile is not called.
+     *
+     * @param fileID
+     */
+    public void pullFile(long fileID) {
+        pullFile(fileID, null);
+    }
+
+    /**
+     * Pulls the latest contents of the given file, and reports when the pull has finished.
+     *
+     * @param fileID the file to pull
+     * @param onDone called with true once the contents were handled, or with false if the pull failed; may be null
+     */
+    void pullFile(long fileID, Consumer<Boolean> onDone) {
+        FileContentCache.CachedFile base = this.dataManager.getFileContentCache().get(fileID);
+
+        FilePullRequest pullRequest = (base == null) ? new FilePullRequest(fileID) : new FilePullRequest(fileID, base.getVersion());
+        Request pullFileReq = pullRequest.getRequest(response -> {
+            boolean pulled = false;
+            try {
+                pulled = handlePullResponse(fileID, base, response);
+            } finally {
+                if (onDone != null) {
+                    onDone.accept(pulled);
+                }
+            }
+        }, () -> {
+            requestSendErrorHandler.handleRequestSendError();
+            if (onDone != null) {
+                onDone.accept(false);
+            }
+        });
+        this.wsManager.sendAuthenticatedRequest(pullFileReq);
+    }
+
+    /**
+     * Applies the response to a FilePull, caches the resulting contents, and writes them if they changed.
+     *
+     * @param fileID   the file that was pulled
+     * @param base     the cached contents that the pull was based on, or null
+     * @param response the response from the server
+     * @return true if the contents of the file were pulled
+     */
+    private boolean handlePullResponse(long fileID, FileContentCache.CachedFile base, Response response) {
+        FileContentCache cache = this.dataManager.getFileContentCache();
+        ContentStore contentStore = this.dataManager.getContentStore();
+
+        int status = response.getStatus();
+        if (status == 200) {
+            FilePullResponse pullResponse = (FilePullResponse) response.getData();
+            String[] changes = pullResponse.getChanges();
+            PatchManager patchManager = this.dataManager.getPatchManager();
+
+            FileMetadata fMeta = this.dataManager.getMetadataManager().getFileMetadata(fileID);
+
+            byte[] contents;
+            long version;
+            if (pullResponse.getFileBytes() != null) {
+                contents = patchManager.catchUp(pullResponse.getFileBytes(), changes, 0);
+                version = (fMeta == null) ? 1 : fMeta.getVersion();
+            } else if (base != null) {
+                contents = patchManager.catchUp(base.getContents(), changes, base.getVersion());
+                version = base.getVersion();
+                contentStore.recordBytesSaved(base.getContents().length);
+            } else {
+                this.incorrectResponseStatusHandler.handleInvalidResponse(status, "Server did not send contents for file: " + fileID);
+                return false;
+            }
+
+            // The file is at one version past the last change applied.
+            if (changes != null && changes.length > 0) {
+                version = Math.max(version, new Patch(changes[changes.length - 1]).getBaseVersion() + 1);
+            }
+
+            cache.put(fileID, version, contents);
+            String hash = ContentStore.hash(contents);
+            boolean unchanged = false;
+            if (fMeta != null) {
+                synchronized (fMeta) {
+                    unchanged = isContentHashCurrent(fMeta) && hash.equals(fMeta.getContentHash());
+                    fMeta.setVersion(version);
+                    fMeta.setContentHash(version, hash);
+                }
+            }
+            if (unchanged) {
+                // The file already has these contents; don't write them again.
+                contentStore.recordBytesSaved(contents.length);
+                return true;
+            }
+            finishPullFile(fileID, version, contents);
+            return true;
+        } else {
+            this.incorrectResponseStatusHandler.handleInvalidResponse(status, "Failed to pull file from server: " + fileID);
+            return false;
+        }
+    }
+
+    /**
+     * Finish pulling a file by writing its contents. Not called if the contents match the last known contents of the
+     * file. Does nothing by default.
+     * @param fileID
+     * @param version
+     * @param contents
+     */
+    public void finishPullFile(long fileID, long version, byte[] contents) {
+    }
+
     /**
      * Renames the given project on the server.
      * Also renames the project in its corresponding metadata file.
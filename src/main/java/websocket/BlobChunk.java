@@ -0,0 +1,68 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Framing for content blobs sent in binary websocket messages. Each message carries one chunk of a blob:
+ * <pre>
+ *   tag      8 bytes, big-endian; the tag of the request that the blob belongs to
+ *   sequence 4 bytes, big-endian; index of the chunk within the blob, starting at 0
+ *   flags    1 byte; FLAG_LAST if this is the final chunk of the blob
+ *   payload  the rest of the message
+ * </pre>
+ * Blobs are split into chunks so that neither side ever has to buffer a whole file in a single frame.
+ */
+class BlobChunk {
+    static final int HEADER_SIZE = 13;
+    static final byte FLAG_LAST = 0x01;
+
+    final long tag;
+    final int sequence;
+    final boolean last;
+    final ByteBuffer payload;
+
+    private BlobChunk(long tag, int sequence, boolean last, ByteBuffer payload) {
+        this.tag = tag;
+        this.sequence = sequence;
+        this.last = last;
+        this.payload = payload;
+    }
+
+    /**
+     * Encodes a chunk of a blob into a binary message, copying the payload behind the header. The payload's position
+     * is not modified.
+     *
+     * @param tag      the tag of the request that the blob belongs to
+     * @param sequence the index of the chunk within the blob
+     * @param last     true if this is the final chunk of the blob
+     * @param payload  the contents of the chunk
+     * @return a buffer containing the encoded message, ready to be sent
+     */
+    static ByteBuffer encode(long tag, int sequence, boolean last, ByteBuffer payload) {
+        ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+        message.putLong(tag);
+        message.putInt(sequence);
+        message.put(last ? FLAG_LAST : 0);
+        message.put(payload.duplicate());
+        message.flip();
+        return message;
+    }
+
+    /**
+     * Decodes a binary message. The returned chunk's payload is a view of the message, not a copy.
+     *
+     * @param message the binary message
+     * @return the decoded chunk
+     * @throws IllegalArgumentException if the message is too short to contain a chunk header
+     */
+    static BlobChunk decode(ByteBuffer message) {
+        if (message.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException(String.format("Binary message of %d bytes is too short for a blob chunk", message.remaining()));
+        }
+        ByteBuffer buffer = message.duplicate();
+        long tag = buffer.getLong();
+        int sequence = buffer.getInt();
+        boolean last = (buffer.get() & FLAG_LAST) != 0;
+        return new BlobChunk(tag, sequence, last, buffer.slice());
+    }
+}
@@ -0,0 +1,301 @@
+package websocket;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A transport shim that simulates a slow or lossy link, so that retries, timeouts and reconnects can be reproduced
+ * locally. Each direction of the link is modelled separately:
+ * <ul>
+ * <li>A message occupies the link for size / bandwidth, after any message before it, and then arrives after the
+ * latency plus a uniformly random jitter. Messages arrive in the order they were sent.</li>
+ * <li>A dropped outgoing message fails to send, so that it is retried by the WSConnection; a dropped incoming message
+ * is lost.</li>
+ * <li>A reordered incoming message is held back for an additional delay, so that the following messages overtake
+ * it.</li>
+ * <li>A disconnect closes the session abruptly instead of passing the message on, as if the link went down. An
+ * outgoing message that causes a disconnect never finishes sending, so the WSConnection's send timeout expires.</li>
+ * </ul>
+ * Each direction draws its decisions from its own Random, seeded from the seed the FaultInjector was created with, in
+ * the order in which that direction's messages are passed to the shim. A fixed number of draws is made per message.
+ * The same seed and the same sequence of messages in each direction therefore give the same faults, regardless of
+ * the configuration in between, and of how sent and received messages interleave, which is up to thread scheduling.
+ * <p>
+ * Messages are delivered from a single daemon thread; messages that are due while their session is already closed
+ * are discarded.
+ */
+public class FaultInjector implements ITransportShim {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("FaultInjector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by this
+    private final Link outbound;
+    private final Link inbound;
+    private long latencyNanos = 0;
+    private long jitterNanos = 0;
+    private long bytesPerSecond = 0;
+    private double dropRate = 0;
+    private double reorderRate = 0;
+    private long reorderDelayNanos = 0;
+    private double disconnectRate = 0;
+
+    private final AtomicLong deliveredCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong reorderedCount = new AtomicLong(0);
+    private final AtomicLong disconnectCount = new AtomicLong(0);
+
+    /**
+     * Creates a FaultInjector that passes all messages on unchanged, until faults are configured.
+     *
+     * @param seed the seed that all decisions are drawn from
+     */
+    public FaultInjector(long seed) {
+        this.outbound = new Link(new Random(seed));
+        // A different, fixed seed, so that the two directions don't draw the same sequence.
+        this.inbound = new Link(new Random(seed ^ 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Sets the one-way delay of every message, in both directions.
+     *
+     * @param latencyMillis the fixed delay, in milliseconds
+     * @param jitterMillis  the maximum random delay added to the fixed delay, in milliseconds
+     */
+    public synchronized void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+    }
+
+    /**
+     * Caps the rate at which messages pass through each direction of the link.
+     *
+     * @param bytesPerSecond the bandwidth of each direction; 0 for unlimited. Text messages count one byte per char.
+     */
+    public synchronized void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param dropRate the fraction of messages, in both directions, that are dropped
+     */
+    public synchronized void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Sets how often incoming messages, such as responses, arrive out of order.
+     *
+     * @param reorderRate        the fraction of incoming messages that are held back
+     * @param reorderDelayMillis how long a held back message is delayed, on top of its normal delay
+     */
+    public synchronized void setReorder(double reorderRate, long reorderDelayMillis) {
+        this.reorderRate = reorderRate;
+        this.reorderDelayNanos = TimeUnit.MILLISECONDS.toNanos(reorderDelayMillis);
+    }
+
+    /**
+     * @param disconnectRate the fraction of messages, in both directions, at which the connection is dropped
+     */
+    public synchronized void setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getReorderedCount() {
+        return reorderedCount.get();
+    }
+
+    public long getDisconnectCount() {
+        return disconnectCount.get();
+    }
+
+    /**
+     * Stops the delivery thread; messages that have not been delivered yet are discarded.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public Future<Void> sendString(Session session, String message) {
+        return send(session, message.length(), (s, callback) -> s.getRemote().sendString(message, callback));
+    }
+
+    @Override
+    public Future<Void> sendBytes(Session session, ByteBuffer message) {
+        return send(session, message.remaining(), (s, callback) -> s.getRemote().sendBytes(message, callback));
+    }
+
+    private Future<Void> send(Session session, int size, BiConsumer<Session, WriteCallback> sender) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Plan plan = plan(false, size, System.nanoTime());
+        switch (plan.fate) {
+            case DISCONNECT:
+                // Like a write on a link that went down, the send never completes; the WSConnection's send timeout
+                // expires, and the message is retried once the connection has been re-established.
+                scheduler.execute(() -> disconnect(session));
+                return result;
+            case DROP:
+                droppedCount.incrementAndGet();
+                result.completeExceptionally(new IOException("Message dropped by FaultInjector"));
+                return result;
+            default:
+                break;
+        }
+
+        scheduler.schedule(() -> {
+            if (!session.isOpen()) {
+                result.completeExceptionally(new IOException("Session closed before the message was sent"));
+                return;
+            }
+            sender.accept(session, new WriteCallback() {
+                @Override
+                public void writeFailed(Throwable x) {
+                    result.completeExceptionally(x);
+                }
+
+                @Override
+                public void writeSuccess() {
+                    deliveredCount.incrementAndGet();
+                    result.complete(null);
+                }
+            });
+        }, plan.delayNanos, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    @Override
+    public void receive(Session session, int size, Runnable deliver) {
+        Plan plan = plan(true, size, System.nanoTime());
+        switch (plan.fate) {
+            case DISCONNECT:
+                scheduler.execute(() -> disconnect(session));
+                return;
+            case DROP:
+                droppedCount.incrementAndGet();
+                return;
+            default:
+                break;
+        }
+        if (plan.reordered) {
+            reorderedCount.incrementAndGet();
+        }
+
+        scheduler.schedule(() -> {
+            if (session != null && !session.isOpen()) {
+                return;
+            }
+            deliveredCount.incrementAndGet();
+            deliver.run();
+        }, plan.delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void disconnect(Session session) {
+        if (session == null || !session.isOpen()) {
+            return;
+        }
+        disconnectCount.incrementAndGet();
+        try {
+            session.disconnect();
+        } catch (IOException e) {
+            WSConnection.logger.warn(String.format("FaultInjector failed to disconnect session: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Decides what happens to a message. Always draws the same number of random values, so that later decisions
+     * don't depend on the outcome of this one.
+     *
+     * @param incoming whether the message was received, rather than sent
+     * @param size     the size of the message
+     * @param nowNanos the time the message was passed to the shim, from System.nanoTime()
+     * @return what to do with the message
+     */
+    synchronized Plan plan(boolean incoming, int size, long nowNanos) {
+        Link link = incoming ? inbound : outbound;
+        double dropDraw = link.random.nextDouble();
+        double disconnectDraw = link.random.nextDouble();
+        double jitterDraw = link.random.nextDouble();
+        double reorderDraw = link.random.nextDouble();
+
+        if (disconnectDraw < disconnectRate) {
+            return new Plan(Fate.DISCONNECT, 0, false);
+        }
+        if (dropDraw < dropRate) {
+            return new Plan(Fate.DROP, 0, false);
+        }
+
+        long transmitNanos = bytesPerSecond > 0 ? size * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond : 0;
+        link.freeAtNanos = Math.max(nowNanos, link.freeAtNanos) + transmitNanos;
+        long arrivalNanos = link.freeAtNanos + latencyNanos + (long) (jitterDraw * jitterNanos);
+
+        boolean reordered = incoming && reorderDraw < reorderRate;
+        if (reordered) {
+            // Doesn't hold back the messages after it, so they can overtake it.
+            arrivalNanos += reorderDelayNanos;
+        } else {
+            arrivalNanos = Math.max(arrivalNanos, link.lastArrivalNanos);
+            link.lastArrivalNanos = arrivalNanos;
+        }
+        return new Plan(Fate.DELIVER, arrivalNanos - nowNanos, reordered);
+    }
+
+    enum Fate {
+        DELIVER,
+        DROP,
+        DISCONNECT,
+    }
+
+    /**
+     * The decision for a single message.
+     */
+    static class Plan {
+        final Fate fate;
+        // Time from the message being passed to the shim until it is delivered
+        final long delayNanos;
+        final boolean reordered;
+
+        Plan(Fate fate, long delayNanos, boolean reordered) {
+            this.fate = fate;
+            this.delayNanos = delayNanos;
+            this.reordered = reordered;
+        }
+    }
+
+    /**
+     * State of one direction of the link; guarded by the FaultInjector.
+     */
+    private static class Link {
+        final Random random;
+        // Time at which the previous message has been fully put on the link
+        long freeAtNanos = Long.MIN_VALUE;
+        // Arrival time of the last message that was not reordered
+        long lastArrivalNanos = Long.MIN_VALUE;
+
+        Link(Random random) {
+            this.random = random;
+        }
+    }
+}
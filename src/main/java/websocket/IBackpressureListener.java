@@ -0,0 +1,8 @@
+package websocket;
+
+/**
+ * Notified when the send buffer becomes saturated, and again once it has drained enough to accept more messages.
+ */
+public interface IBackpressureListener {
+    public void handleBackpressure(boolean saturated);
+}
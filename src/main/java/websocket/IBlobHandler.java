@@ -0,0 +1,17 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the chunks of a binary content blob, in order, as they arrive.
+ */
+public interface IBlobHandler {
+    /**
+     * Handles a single chunk of a blob.
+     *
+     * @param tag   the tag of the request that the blob belongs to
+     * @param chunk the contents of the chunk; only valid for the duration of the call
+     * @param last  true if this is the final chunk of the blob
+     */
+    public void handleBlobChunk(long tag, ByteBuffer chunk, boolean last);
+}
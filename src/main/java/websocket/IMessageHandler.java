@@ -1,5 +1,9 @@
 package websocket;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
 /**
  * Created by Benedict on 4/15/2016.
  */
@@ -7,5 +11,40 @@ public interface IMessageHandler {
 
     void handleMessage(String message);
 
+    /**
+     * Handles a message that is streamed in as it is received. The reader must be consumed before returning.
+     * Handlers that can decode incrementally should override this; by default, the whole message is read into a
+     * String and passed to handleMessage(String).
+     *
+     * @param message reader over the contents of the message
+     * @throws IOException if the message could not be read
+     */
+    default void handleMessage(Reader message) throws IOException {
+        handleMessage(readFully(message));
+    }
+
     void handleMessageSendError(String message);
+
+    default void handleBinaryMessage(ByteBuffer message) {
+    }
+
+    default void handleBinaryMessageSendError(ByteBuffer message) {
+    }
+
+    /**
+     * Reads the rest of a streamed message into a String.
+     *
+     * @param message reader over the contents of the message
+     * @return the contents of the message
+     * @throws IOException if the message could not be read
+     */
+    static String readFully(Reader message) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = message.read(buffer)) != -1) {
+            builder.append(buffer, 0, read);
+        }
+        return builder.toString();
+    }
 }
@@ -0,0 +1,9 @@
+package websocket;
+
+/**
+ * Decides whether a notification is still relevant, based only on its header. Notifications that are rejected are
+ * dropped before their body is decoded.
+ */
+public interface INotificationFilter {
+    public boolean acceptNotification(String resource, String method, long resourceID);
+}
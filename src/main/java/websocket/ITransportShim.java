@@ -0,0 +1,40 @@
+package websocket;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * Carries every message between a WSConnection and its Jetty session, in both directions. Implementations can delay,
+ * drop or reorder messages to simulate a network; see FaultInjector.
+ */
+public interface ITransportShim {
+    /**
+     * Sends a text message on the given session.
+     *
+     * @param session the session to send on
+     * @param message the message to send
+     * @return a future that completes once the message was sent, or fails if it could not be sent
+     */
+    Future<Void> sendString(Session session, String message);
+
+    /**
+     * Sends a binary message on the given session.
+     *
+     * @param session the session to send on
+     * @param message the message to send; must not be modified until the returned future completes
+     * @return a future that completes once the message was sent, or fails if it could not be sent
+     */
+    Future<Void> sendBytes(Session session, ByteBuffer message);
+
+    /**
+     * Passes a message that was received on the given session on to the connection, by running deliver; possibly
+     * later, on another thread, or never.
+     *
+     * @param session the session the message was received on
+     * @param size    the size of the message
+     * @param deliver hands the message to the connection's handlers
+     */
+    void receive(Session session, int size, Runnable deliver);
+}
@@ -0,0 +1,193 @@
+package websocket;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static websocket.WSManager.logger;
+
+/**
+ * Runs the handlers of decoded server messages on a fixed set of worker lanes, so that slow handlers (for example,
+ * ones that write to disk) never block the websocket's receiving thread.
+ * <p>
+ * Each lane is a single thread, and every message is assigned to a lane based on its lane key. Messages with the same
+ * lane key are therefore always handled in the order they were received, while messages for different resources can
+ * be handled in parallel.
+ */
+public class MessageDispatcher {
+    static int DEFAULT_LANE_COUNT = 4;
+
+    // Null if handlers should be run on the calling thread.
+    private final ExecutorService[] lanes;
+    private final AtomicInteger[] laneDepths;
+
+    // Metrics
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+    private final AtomicLong handledCount = new AtomicLong(0);
+    private final AtomicLong totalQueueNanos = new AtomicLong(0);
+    private final AtomicLong totalHandlerNanos = new AtomicLong(0);
+    private final AtomicLong maxHandlerNanos = new AtomicLong(0);
+
+    /**
+     * Creates a dispatcher with DEFAULT_LANE_COUNT lanes.
+     */
+    public MessageDispatcher() {
+        this(DEFAULT_LANE_COUNT);
+    }
+
+    /**
+     * Creates a dispatcher with the given number of lanes. A dispatcher with zero lanes runs every handler directly
+     * on the calling thread.
+     *
+     * @param laneCount the number of worker threads to use
+     */
+    public MessageDispatcher(int laneCount) {
+        if (laneCount <= 0) {
+            this.lanes = null;
+            this.laneDepths = new AtomicInteger[]{new AtomicInteger(0)};
+            return;
+        }
+
+        this.lanes = new ExecutorService[laneCount];
+        this.laneDepths = new AtomicInteger[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "MessageDispatcher-" + i;
+            this.lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setName(name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.laneDepths[i] = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * Schedules a handler to run on the lane for the given key.
+     *
+     * @param laneKey key identifying the resource the message belongs to; messages with equal keys are run in order.
+     * @param handler the handler to run
+     */
+    public void dispatch(String laneKey, Runnable handler) {
+        int lane = lanes == null ? 0 : ((laneKey == null ? 0 : laneKey.hashCode()) & Integer.MAX_VALUE) % lanes.length;
+        AtomicInteger depth = laneDepths[lane];
+        long enqueueTime = System.nanoTime();
+
+        int currentDepth = depth.incrementAndGet();
+        maxQueueDepth.accumulateAndGet(currentDepth, Math::max);
+
+        Runnable task = () -> {
+            long startTime = System.nanoTime();
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                // Keep the lane alive; one bad handler must not stop all messages behind it.
+                logger.error(String.format("Handler for %s threw an exception", laneKey), e);
+            } finally {
+                long endTime = System.nanoTime();
+                depth.decrementAndGet();
+                handledCount.incrementAndGet();
+                totalQueueNanos.addAndGet(startTime - enqueueTime);
+                totalHandlerNanos.addAndGet(endTime - startTime);
+                maxHandlerNanos.accumulateAndGet(endTime - startTime, Math::max);
+            }
+        };
+
+        if (lanes == null) {
+            task.run();
+            return;
+        }
+        try {
+            lanes[lane].execute(task);
+        } catch (RejectedExecutionException e) {
+            // Messages can still arrive while the connection is closing.
+            depth.decrementAndGet();
+            logger.debug(String.format("Dropped message for %s; the dispatcher has been shut down", laneKey));
+        }
+    }
+
+    /**
+     * Stops all lanes, after the handlers that have already been dispatched have run. Messages dispatched afterwards
+     * are dropped.
+     */
+    public void shutdown() {
+        if (lanes == null) {
+            return;
+        }
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Waits for all lanes to finish after shutdown() was called.
+     *
+     * @param timeout the maximum time to wait for each lane
+     * @param unit    the unit of the timeout
+     * @return true if all lanes terminated
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (lanes == null) {
+            return true;
+        }
+        boolean terminated = true;
+        for (ExecutorService lane : lanes) {
+            terminated &= lane.awaitTermination(timeout, unit);
+        }
+        return terminated;
+    }
+
+    /**
+     * Gets the number of messages that are waiting to be handled, or are being handled, across all lanes.
+     *
+     * @return the current queue depth
+     */
+    public int getQueueDepth() {
+        int total = 0;
+        for (AtomicInteger depth : laneDepths) {
+            total += depth.get();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the deepest that any single lane has been.
+     *
+     * @return the maximum queue depth of a lane
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getHandledCount() {
+        return handledCount.get();
+    }
+
+    /**
+     * Gets the average time messages spent waiting in a lane before their handler ran.
+     *
+     * @return the average queueing latency, in nanoseconds
+     */
+    public long getAverageQueueNanos() {
+        long count = handledCount.get();
+        return count == 0 ? 0 : totalQueueNanos.get() / count;
+    }
+
+    /**
+     * Gets the average time spent in handlers.
+     *
+     * @return the average handler latency, in nanoseconds
+     */
+    public long getAverageHandlerNanos() {
+        long count = handledCount.get();
+        return count == 0 ? 0 : totalHandlerNanos.get() / count;
+    }
+
+    public long getMaxHandlerNanos() {
+        return maxHandlerNanos.get();
+    }
+}
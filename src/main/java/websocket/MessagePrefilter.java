@@ -0,0 +1,92 @@
+package websocket;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import websocket.models.ServerMessageWrapper;
+
+import java.io.IOException;
+
+/**
+ * Reads the routing fields of a server message (Type, and the Resource, Method and ResourceID of the ServerMessage)
+ * with a streaming parser, without building a tree of the rest of the message. This lets WSManager drop messages that
+ * nobody is interested in for the cost of a token scan.
+ */
+class MessagePrefilter {
+    private final JsonFactory factory = new JsonFactory();
+
+    /**
+     * The routing fields of a server message. Fields that were not found are null.
+     */
+    static class Header {
+        String type;
+        String resource;
+        String method;
+        Long resourceID;
+
+        private boolean isComplete() {
+            if (type == null) {
+                return false;
+            }
+            // Responses are routed by tag, and always fully decoded.
+            return !ServerMessageWrapper.TYPE_NOTIFICATION.equals(type) || (resource != null && method != null && resourceID != null);
+        }
+    }
+
+    /**
+     * Scans the given message for its routing fields. Scanning stops as soon as all relevant fields were found.
+     *
+     * @param message the raw message from the server
+     * @return the header of the message, or null if the message is not a JSON object.
+     */
+    Header peek(String message) {
+        Header header = new Header();
+        try (JsonParser parser = factory.createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                if ("Type".equals(field) && token == JsonToken.VALUE_STRING) {
+                    header.type = parser.getText();
+                } else if ("ServerMessage".equals(field) && token == JsonToken.START_OBJECT) {
+                    peekServerMessage(parser, header);
+                } else {
+                    parser.skipChildren();
+                }
+
+                if (header.isComplete()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Leave it to the full decode to report the error.
+            return null;
+        }
+        return header;
+    }
+
+    private void peekServerMessage(JsonParser parser, Header header) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if ("Resource".equals(field) && token == JsonToken.VALUE_STRING) {
+                header.resource = parser.getText();
+            } else if ("Method".equals(field) && token == JsonToken.VALUE_STRING) {
+                header.method = parser.getText();
+            } else if ("ResourceID".equals(field) && token == JsonToken.VALUE_NUMBER_INT) {
+                header.resourceID = parser.getLongValue();
+            } else {
+                parser.skipChildren();
+            }
+
+            if (header.isComplete()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package websocket;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Keeps the streamed text messages of a session in the order they arrived. Jetty hands each streamed message to a
+ * thread of its own, as soon as its first frame arrives, so without this, consecutive messages could be handled in
+ * either order.
+ * <p>
+ * The thread that reads the connection calls messageStarted() for the first frame of each text message, before Jetty
+ * dispatches it. That waits until the previous message has been claimed by its thread, so that each thread claims
+ * the number of its own message. The thread then waits for its turn, handles the message, and passes the turn on.
+ * Only the claim holds up the reading thread; while a message waits for its turn, the frames of the messages after
+ * it are still read.
+ */
+class MessageSequencer {
+    final Session session;
+
+    // Guarded by this
+    private long started = 0;
+    private long claimed = 0;
+    private long handled = 0;
+    private boolean closed = false;
+
+    /**
+     * @param session the session whose messages are ordered
+     */
+    MessageSequencer(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Numbers a new message; called on the reading thread, for the first frame of each text message.
+     *
+     * @throws InterruptedException if interrupted while waiting for the previous message to be claimed
+     */
+    synchronized void messageStarted() throws InterruptedException {
+        while (claimed < started && !closed) {
+            wait();
+        }
+        started++;
+    }
+
+    /**
+     * Claims the number of the latest message; called by the thread that handles it, before reading it.
+     *
+     * @return the number of the message
+     */
+    synchronized long claim() {
+        claimed = started;
+        notifyAll();
+        return claimed;
+    }
+
+    /**
+     * Waits until all messages before the given one have been handled. Keeps waiting if interrupted, since handling
+     * a message early would reorder it; the interrupt is restored before returning.
+     *
+     * @param sequence the number of the message
+     */
+    synchronized void awaitTurn(long sequence) {
+        boolean interrupted = false;
+        while (handled < sequence - 1) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Passes the turn on to the next message; must be called once the message has been handled, even if that failed.
+     *
+     * @param sequence the number of the message
+     */
+    synchronized void finished(long sequence) {
+        handled = sequence;
+        notifyAll();
+    }
+
+    /**
+     * Stops the reading thread from waiting for claims, once the session is closed.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
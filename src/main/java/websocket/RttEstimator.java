@@ -0,0 +1,99 @@
+package websocket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the round trip time to the server, and derives timeouts from it, the way TCP computes its retransmission
+ * timeout (RFC 6298):
+ * <ul>
+ * <li>The first sample R sets SRTT = R and RTTVAR = R / 2.</li>
+ * <li>Each following sample updates RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, then SRTT = 7/8 SRTT + 1/8 R.</li>
+ * <li>The timeout is SRTT + max(CLOCK_GRANULARITY_MILLIS, 4 RTTVAR), clamped to [MIN_TIMEOUT_MILLIS,
+ * MAX_TIMEOUT_MILLIS]. Before the first sample, it is INITIAL_TIMEOUT_MILLIS.</li>
+ * <li>Every timeout that expires doubles the timeout, until the next sample arrives.</li>
+ * </ul>
+ * Samples come from the time between sending a request and receiving its response, and from ping/pong round trips.
+ * Requests that had to be re-sent are not sampled, since their response can't be matched to a specific attempt.
+ */
+public class RttEstimator {
+    static long INITIAL_TIMEOUT_MILLIS = 1000;
+    static long MIN_TIMEOUT_MILLIS = 200;
+    static long MAX_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final double CLOCK_GRANULARITY_MILLIS = 10;
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    // Guarded by this; in milliseconds
+    private double smoothedRtt = -1;
+    private double rttVariation = -1;
+    private long sampleCount = 0;
+    // Number of times the timeout has expired since the last sample
+    private int backoffCount = 0;
+
+    /**
+     * Adds a measured round trip.
+     *
+     * @param rttNanos the time between sending a message and receiving its reply, in nanoseconds
+     */
+    public synchronized void addSample(long rttNanos) {
+        double rtt = rttNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        if (rtt < 0) {
+            return;
+        }
+
+        if (sampleCount == 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation = (1 - BETA) * rttVariation + BETA * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+        }
+        sampleCount++;
+        backoffCount = 0;
+    }
+
+    /**
+     * Records that a timeout derived from this estimator expired, which doubles the following timeouts until the
+     * next sample.
+     */
+    public synchronized void backoff() {
+        if (getTimeoutMillis() < MAX_TIMEOUT_MILLIS) {
+            backoffCount++;
+        }
+    }
+
+    /**
+     * Gets the time to wait for a reply before assuming that the message or its reply was lost.
+     *
+     * @return the timeout in milliseconds
+     */
+    public synchronized long getTimeoutMillis() {
+        double timeout = (sampleCount == 0)
+                ? INITIAL_TIMEOUT_MILLIS
+                : smoothedRtt + Math.max(CLOCK_GRANULARITY_MILLIS, 4 * rttVariation);
+        timeout = Math.max(MIN_TIMEOUT_MILLIS, timeout) * Math.pow(2, backoffCount);
+        return (long) Math.min(MAX_TIMEOUT_MILLIS, Math.ceil(timeout));
+    }
+
+    /**
+     * Gets the smoothed round trip time.
+     *
+     * @return SRTT in milliseconds, or -1 if there are no samples yet.
+     */
+    public synchronized double getSmoothedRttMillis() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Gets the round trip time variation.
+     *
+     * @return RTTVAR in milliseconds, or -1 if there are no samples yet.
+     */
+    public synchronized double getRttVariationMillis() {
+        return rttVariation;
+    }
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+}
@@ -0,0 +1,138 @@
+package websocket;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the total size of all outgoing messages that have not been sent yet, across every queue on the send path,
+ * against a byte budget.
+ * <p>
+ * The budget is soft: reserving space never blocks and never fails, since dropping a request would lose data and
+ * blocking could stall a UI or handler thread. Instead, the buffer becomes saturated once the budget is exceeded,
+ * and stays saturated until it has drained to half of the budget. Producers that can afford to wait (for example,
+ * bulk uploads and patch batching) check for saturation or wait for capacity, and slow down or coalesce their
+ * messages meanwhile.
+ */
+public class SendBuffer {
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    private final long capacity;
+    private final long lowWatermark;
+    private final List<IBackpressureListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private long usedBytes = 0;
+    private boolean saturated = false;
+
+    /**
+     * Creates a SendBuffer with the given budget.
+     *
+     * @param capacity the number of bytes that may be waiting to be sent before the buffer is saturated
+     */
+    public SendBuffer(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Send buffer capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.lowWatermark = capacity / 2;
+    }
+
+    /**
+     * Accounts for a message that is waiting to be sent.
+     *
+     * @param bytes the size of the message
+     */
+    public void reserve(long bytes) {
+        boolean changed;
+        synchronized (this) {
+            usedBytes += bytes;
+            changed = !saturated && usedBytes > capacity;
+            if (changed) {
+                saturated = true;
+            }
+        }
+        if (changed) {
+            notifyListeners(true);
+        }
+    }
+
+    /**
+     * Releases the space of a message that was sent, or that will not be sent anymore.
+     *
+     * @param bytes the size of the message, as it was reserved
+     */
+    public void release(long bytes) {
+        boolean changed;
+        synchronized (this) {
+            usedBytes -= bytes;
+            changed = saturated && usedBytes <= lowWatermark;
+            if (changed) {
+                saturated = false;
+                this.notifyAll();
+            }
+        }
+        if (changed) {
+            notifyListeners(false);
+        }
+    }
+
+    /**
+     * Waits until the buffer is no longer saturated.
+     *
+     * @param timeoutMillis the maximum time to wait, or 0 to wait indefinitely
+     * @return true if the buffer has capacity, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitCapacity(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (saturated) {
+            if (timeoutMillis == 0) {
+                this.wait();
+                continue;
+            }
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return false;
+            }
+            this.wait(remainingMillis);
+        }
+        return true;
+    }
+
+    public synchronized boolean isSaturated() {
+        return saturated;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Registers a listener to be notified whenever the buffer becomes saturated or drains.
+     *
+     * @param listener the listener to register
+     */
+    public void registerBackpressureListener(IBackpressureListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Deregisters the given backpressure listener.
+     *
+     * @param listener the listener to deregister
+     */
+    public void deregisterBackpressureListener(IBackpressureListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(boolean saturated) {
+        for (IBackpressureListener listener : listeners) {
+            listener.handleBackpressure(saturated);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package websocket;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
+
+import java.util.zip.Deflater;
+
+/**
+ * permessage-deflate extension that sends small messages uncompressed, and allows the compression level to be set.
+ * <p>
+ * RFC 7692 allows any message to be sent without compression (with RSV1 unset), so this needs no support from the
+ * server. Messages are only passed through whole; fragmented messages are always compressed.
+ * <p>
+ * Relies on WSConnection sending one message at a time, so an uncompressed message can never overtake a compressed
+ * one that is still queued in the deflater.
+ */
+public class ThresholdDeflateExtension extends PerMessageDeflateExtension {
+    private int threshold = 0;
+
+    /**
+     * Sets the minimum payload size for a message to be compressed.
+     *
+     * @param threshold size in bytes
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the deflate compression level, from 0 (none) to 9 (best).
+     *
+     * @param level the compression level
+     */
+    public void setCompressionLevel(int level) {
+        Deflater deflater = getDeflater();
+        deflater.setLevel(level);
+
+        // Apply the new level now, while the stream is still empty. Otherwise, the level change is applied during the
+        // first compress, where the extra flush it causes corrupts the first message.
+        deflater.setInput(new byte[0]);
+        int written = deflater.deflate(new byte[16], 0, 16, Deflater.NO_FLUSH);
+        if (written != 0) {
+            throw new IllegalStateException("Compression level must be set before the first message is compressed");
+        }
+    }
+
+    @Override
+    public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+        if (frame.isFin() && (frame.getOpCode() == OpCode.TEXT || frame.getOpCode() == OpCode.BINARY)
+                && frame.getPayloadLength() < threshold) {
+            nextOutgoingFrame(frame, callback, batchMode);
+            return;
+        }
+        super.outgoingFrame(frame, callback, batchMode);
+    }
+}
@@ -0,0 +1,43 @@
+package websocket;
+
+/**
+ * The classes that outgoing messages are scheduled in. Each class gets a share of the connection proportional to its
+ * weight, measured in bytes, so that a large upload can't hold up edits that the user is waiting on.
+ */
+public enum TrafficClass {
+    // Edits made by the user (File.Change)
+    INTERACTIVE(8),
+    // Small requests that manage the session, projects and file metadata
+    CONTROL(4),
+    // Transfers of file contents (File.Create, uploads and binary blobs)
+    BULK(1);
+
+    private final int weight;
+
+    TrafficClass(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Gets the default class for a request of the given resource and method.
+     *
+     * @param resource the resource of the request
+     * @param method   the method of the request
+     * @return the class to schedule the request in
+     */
+    public static TrafficClass of(String resource, String method) {
+        if ("File".equals(resource)) {
+            if ("Change".equals(method)) {
+                return INTERACTIVE;
+            }
+            if ("Create".equals(method)) {
+                return BULK;
+            }
+        }
+        return CONTROL;
+    }
+}
@@ -0,0 +1,133 @@
+package websocket;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * Queue of outgoing messages that schedules them across traffic classes by deficit round robin: each class, in turn,
+ * may send up to QUANTUM_BYTES times its weight, and carries over whatever it did not use while it still has messages
+ * waiting. Within a class, messages are ordered as before, by priority, retry count and age.
+ * <p>
+ * A class that has nothing to send gives up its turn, so the full connection is available to any class that is alone.
+ * <p>
+ * This class is not thread-safe; WSConnection synchronizes on it.
+ */
+class TrafficScheduler extends AbstractQueue<WSConnection.WSMessage> {
+    static int QUANTUM_BYTES = 16 * 1024;
+
+    private final ClassQueue[] queues;
+    // The class whose turn it is, and whether it has been given its quantum for this turn yet
+    private int current = 0;
+    private boolean quantumGranted = false;
+    // The message that was scheduled by peek, but not polled yet
+    private WSConnection.WSMessage scheduled;
+    private int size = 0;
+
+    TrafficScheduler() {
+        TrafficClass[] classes = TrafficClass.values();
+        queues = new ClassQueue[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            queues[i] = new ClassQueue(classes[i]);
+        }
+    }
+
+    @Override
+    public boolean offer(WSConnection.WSMessage message) {
+        queues[message.getTrafficClass().ordinal()].messages.offer(message);
+        size++;
+        return true;
+    }
+
+    @Override
+    public WSConnection.WSMessage poll() {
+        WSConnection.WSMessage message = peek();
+        if (message != null) {
+            scheduled = null;
+            size--;
+        }
+        return message;
+    }
+
+    @Override
+    public WSConnection.WSMessage peek() {
+        if (scheduled == null && size > 0) {
+            scheduled = schedule();
+        }
+        return scheduled;
+    }
+
+    /**
+     * Takes the next message out of its class queue, following the round robin. Must only be called if a message is
+     * waiting.
+     */
+    private WSConnection.WSMessage schedule() {
+        while (true) {
+            ClassQueue queue = queues[current];
+            WSConnection.WSMessage head = queue.messages.peek();
+            if (head == null) {
+                // Idle classes don't save up their share.
+                queue.deficit = 0;
+                nextClass();
+                continue;
+            }
+
+            if (!quantumGranted) {
+                queue.deficit += (long) QUANTUM_BYTES * queue.trafficClass.getWeight();
+                quantumGranted = true;
+            }
+            if (head.size() > queue.deficit) {
+                nextClass();
+                continue;
+            }
+
+            queue.messages.poll();
+            queue.deficit -= head.size();
+            if (queue.messages.isEmpty()) {
+                queue.deficit = 0;
+                nextClass();
+            }
+            return head;
+        }
+    }
+
+    @Override
+    public Iterator<WSConnection.WSMessage> iterator() {
+        Stream<WSConnection.WSMessage> queued = Arrays.stream(queues).flatMap(queue -> queue.messages.stream());
+        return (scheduled == null ? queued : Stream.concat(Stream.of(scheduled), queued)).iterator();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of messages waiting in the given class.
+     *
+     * @param trafficClass the class to look up
+     * @return the number of queued messages of that class
+     */
+    int size(TrafficClass trafficClass) {
+        int count = queues[trafficClass.ordinal()].messages.size();
+        return (scheduled != null && scheduled.getTrafficClass() == trafficClass) ? count + 1 : count;
+    }
+
+    private void nextClass() {
+        current = (current + 1) % queues.length;
+        quantumGranted = false;
+    }
+
+    private static class ClassQueue {
+        final TrafficClass trafficClass;
+        final PriorityQueue<WSConnection.WSMessage> messages = new PriorityQueue<>();
+        // Bytes this class may still send before it has to give up its turn
+        long deficit = 0;
+
+        ClassQueue(TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package websocket;
 
+import com.google.common.base.Utf8;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+import org.eclipse.jetty.util.Decorator;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketFrame;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.apache.logging.log4j.LogManager;
@@ -13,37 +19,70 @@ import org.apache.logging.log4j.Logger;
 import websocket.models.ConnectionConfig;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 /**
  * Implementation of a WSConnection that sends and receives strings.
  * <p>
  * Utilizes a queue to make sure messages enqueued while waiting for connection will be sent as soon as possible.
- * Queue further configured to prioritize previously-failed messages.
+ * The queue shares the connection between traffic classes by weight (see TrafficScheduler), and within each class
+ * prioritizes previously-failed messages. The size of the queued messages is accounted
+ * against a SendBuffer, which tells producers to slow down when the queue grows too large.
  * <p>
- * CAUTION: Has no max retry count set up. Messages that fail to send can potentially cause infinite loops.
+ * Messages that fail to send are retried up to the configured max retry count, after which the send error handlers
+ * are called. A lost connection is re-established in the background with exponential backoff, for up to the same
+ * number of attempts, after which the connection is put into the ERROR state.
  */
 
-@WebSocket(maxTextMessageSize = 512 * 1024 * 1024)
+// Text messages are streamed (see onTextMessage), so their size limit doesn't determine how much is held in memory.
+@WebSocket(maxTextMessageSize = 512 * 1024 * 1024, maxBinaryMessageSize = 4 * 1024 * 1024)
 public class WSConnection {
     public static final Logger logger = LogManager.getLogger("websocket");
     private static final int IDLE_TIMEOUT = 5;
     private static final long PING_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
-
-    // Queue of messages. Priority given to messages that need to be retried.
-    final Queue<WSMessage> messageQueue = new PriorityQueue<>();
+    // Slowest transfer rate that a send is allowed to take, on top of the round trip timeout; in bytes per millisecond
+    private static final int MIN_SEND_BYTES_PER_MILLI = 16;
+
+    // Number of retries each successfully sent message needed
+    private static final Histogram sendRetries = MetricsRegistry.getInstance().histogram("websocket.sendRetries");
+
+    // Queue of messages, scheduled fairly across traffic classes. Within a class, priority is given to messages that
+    // need to be retried.
+    final Queue<WSMessage> messageQueue = new TrafficScheduler();
+    // Accounts for the size of the messages in the queue
+    private final SendBuffer sendBuffer;
+    // Round trip times, measured by pings and by the WSManager, which determine send timeouts
+    private final RttEstimator rttEstimator = new RttEstimator();
     // List of handlers that incoming messages should be sent to.
     final List<IMessageHandler> incomingMessageHandlers = new ArrayList<>();
     final HashMap<EventType, List<Runnable>> eventHandlers;
     private final Timer pingTimer;
+    // Reconnect scheduling
+    private final ScheduledExecutorService reconnectScheduler;
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+    // Set while a connect() call is in progress, so that concurrent callers don't each open a connection
+    private final AtomicBoolean connecting = new AtomicBoolean(false);
+    private final AtomicLong reconnectAttemptCount = new AtomicLong(0);
+    private volatile long lastReconnectMillis = -1;
     // Jetty objects
     WebSocketClient client;
     Session session;
+    // Kept across clients, so that reconnects can resume the previous TLS session instead of a full handshake.
+    private SslContextFactory sslContextFactory;
     // Configuration
     ConnectionConfig config;
+    // Keeps the streamed text messages of the current session in order
+    private volatile MessageSequencer sequencer;
+    // Carries messages to and from the session, if set; used to simulate network faults.
+    private volatile ITransportShim transportShim;
     // State of program
     private volatile State state;
 
@@ -53,8 +92,48 @@ public class WSConnection {
     public WSConnection(ConnectionConfig config) {
         setState(State.CREATED);
         this.config = config;
+        this.sendBuffer = new SendBuffer(config.getSendBufferBytes());
         this.eventHandlers = new HashMap<>();
         this.pingTimer = new Timer();
+        this.reconnectScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("WSConnectionReconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public SendBuffer getSendBuffer() {
+        return sendBuffer;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    public ITransportShim getTransportShim() {
+        return transportShim;
+    }
+
+    /**
+     * Routes all messages, in both directions, through the given shim; for example, a FaultInjector. Pings and pongs
+     * bypass the shim.
+     *
+     * @param transportShim the shim to use, or null to use the session directly.
+     */
+    public void setTransportShim(ITransportShim transportShim) {
+        this.transportShim = transportShim;
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent, including ones waiting to be retried.
+     *
+     * @return the number of queued messages
+     */
+    public int getQueuedMessageCount() {
+        synchronized (messageQueue) {
+            return messageQueue.size();
+        }
     }
 
     public void handleEvent(EventType event) {
@@ -69,26 +148,93 @@ public class WSConnection {
      * Helper method to open connection to URI given during instantiation. Note that the response does not mean that the connection
      * has been successfully established. To check the connection status, check the status flag.
      * <p>
-     * This method puts the WSConnection into State.CONNECT
+     * This method puts the WSConnection into State.CONNECT. If another thread is already connecting, returns right
+     * away; messages enqueued meanwhile are sent once that connection is established. A failed attempt puts the
+     * WSConnection into State.ERROR, unless it was one of the scheduled reconnect attempts, which only give up after
+     * the last one.
      *
      * @throws Exception throws an exception for websocket connections
      */
     public void connect() throws Exception {
+        if (!connecting.compareAndSet(false, true)) {
+            logger.debug("Already connecting; not opening another connection");
+            return;
+        }
         try {
             if (this.client == null) {
-                SslContextFactory ssl = new SslContextFactory();
-                this.client = new WebSocketClient(ssl);
+                if (this.sslContextFactory == null) {
+                    this.sslContextFactory = new SslContextFactory();
+                    this.sslContextFactory.setSessionCachingEnabled(true);
+                }
+                this.client = new WebSocketClient(this.sslContextFactory);
+                if (config.isCompression()) {
+                    registerCompression(this.client);
+                }
             }
             this.client.start();
             URI uri = new URI(config.getUriString());
 
-            setState(State.CONNECT);
-            Future<Session> fut = this.client.connect(this, uri, new ClientUpgradeRequest());
+            ClientUpgradeRequest upgradeRequest = new ClientUpgradeRequest();
+            if (config.isCompression()) {
+                upgradeRequest.addExtensions(config.isCompressionNoContextTakeover()
+                        ? "permessage-deflate; client_no_context_takeover; server_no_context_takeover"
+                        : "permessage-deflate");
+            }
+
+            // Reconnects are already in the CONNECT state; don't wake anyone waiting for the next state.
+            if (getState() != State.CONNECT) {
+                setState(State.CONNECT);
+            }
+            Future<Session> fut = this.client.connect(this, uri, upgradeRequest);
             fut.get();
         } catch (Exception e) {
-            setState(State.ERROR);
+            if (!reconnecting.get()) {
+                setState(State.ERROR);
+            }
             throw e;
+        } finally {
+            connecting.set(false);
+        }
+    }
+
+    /**
+     * Replaces the client's permessage-deflate implementation with one that applies the configured compression level
+     * and threshold.
+     *
+     * @param client the client to configure
+     */
+    private void registerCompression(WebSocketClient client) {
+        client.getExtensionFactory().register("permessage-deflate", ThresholdDeflateExtension.class);
+        client.getObjectFactory().addDecorator(new Decorator() {
+            @Override
+            public <T> T decorate(T o) {
+                if (o instanceof ThresholdDeflateExtension) {
+                    ThresholdDeflateExtension extension = (ThresholdDeflateExtension) o;
+                    extension.setThreshold(config.getCompressionThreshold());
+                    extension.setCompressionLevel(config.getCompressionLevel());
+                }
+                return o;
+            }
+
+            @Override
+            public void destroy(Object o) {
+            }
+        });
+    }
+
+    /**
+     * Gets the extensions that the server agreed to for the current session.
+     *
+     * @return the negotiated extensions, or an empty list if not connected.
+     */
+    public List<String> getNegotiatedExtensions() {
+        Session currentSession = this.session;
+        if (currentSession == null || currentSession.getUpgradeResponse() == null) {
+            return Collections.emptyList();
         }
+        List<String> extensions = new ArrayList<>();
+        currentSession.getUpgradeResponse().getExtensions().forEach(extension -> extensions.add(extension.getParameterizedName()));
+        return extensions;
     }
 
     /**
@@ -102,6 +248,7 @@ public class WSConnection {
     @OnWebSocketConnect
     public void onConnect(Session session) {
         logger.info(String.format("Got connection to %s", session.getRemoteAddress().getHostName()));
+        this.sequencer = new MessageSequencer(session);
         this.session = session;
         setState(State.READY);
 
@@ -123,6 +270,7 @@ public class WSConnection {
      */
     public void close() {
         setState(State.CLOSE);
+        reconnectScheduler.shutdownNow();
         synchronized (this.messageQueue) {
             this.messageQueue.notifyAll();
         }
@@ -151,22 +299,36 @@ public class WSConnection {
     public void onClose(int statusCode, String reason) {
         logger.info(String.format("Connection closed - Reason: %s", reason));
         this.session = null;
+        MessageSequencer sequencer = this.sequencer;
+        if (sequencer != null) {
+            sequencer.close();
+        }
 
         handleEvent(EventType.ON_CLOSE);
 
         if (getState() != State.CLOSE && config.isReconnect()) {
-            for (int i = 0; i < config.getMaxRetryCount(); i++) {
-                try {
-                    connect();
-                    return;
-                } catch (Exception e) {
-                    logger.error(String.format("Error reconnecting - Exception: %s", e.getCause().getMessage()));
+            // The Jetty client is kept running, so that the reconnect can reuse it. Messages stay queued until the
+            // connection is re-established.
+            if (config.getMaxRetryCount() <= 0) {
+                logger.warn("Max retry count is 0; not reconnecting");
+                setState(State.ERROR);
+                return;
+            }
+            if (reconnecting.compareAndSet(false, true)) {
+                if (getState() == State.READY) {
+                    setState(State.CONNECT);
                 }
+                scheduleReconnect(0, System.currentTimeMillis());
             }
-            setState(State.ERROR);
             return;
         }
+        boolean closing = getState() == State.CLOSE;
         setState(State.EXIT);
+        if (closing) {
+            // close() is already stopping the client, and stop() waits for this thread, which runs on the client's
+            // thread pool, to finish.
+            return;
+        }
         try {
             if (client != null) {
                 client.stop();
@@ -176,6 +338,75 @@ public class WSConnection {
         }
     }
 
+    /**
+     * Schedules a reconnect attempt, after an exponentially increasing delay with random jitter. If the attempt fails,
+     * the next attempt is scheduled, up to the configured max retry count, after which the connection is put into the
+     * ERROR state. Until then, the connection stays in the CONNECT state, so that sending a message only queues it,
+     * rather than connecting right away.
+     *
+     * @param attempt        the number of reconnect attempts that have already failed
+     * @param disconnectTime the time at which the connection was lost, in milliseconds
+     */
+    private void scheduleReconnect(int attempt, long disconnectTime) {
+        long delay = config.getReconnectDelayMillis(attempt);
+        delay -= (long) (delay * config.getReconnectJitter() * ThreadLocalRandom.current().nextDouble());
+
+        logger.info(String.format("Reconnecting in %d ms (attempt %d of %d)", delay, attempt + 1, config.getMaxRetryCount()));
+        try {
+            reconnectScheduler.schedule(() -> reconnect(attempt, disconnectTime), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile.
+            reconnecting.set(false);
+        }
+    }
+
+    /**
+     * Makes a single reconnect attempt, and schedules the next one if it fails.
+     *
+     * @param attempt        the number of reconnect attempts that have already failed
+     * @param disconnectTime the time at which the connection was lost, in milliseconds
+     */
+    private void reconnect(int attempt, long disconnectTime) {
+        if (getState() == State.CLOSE || getState() == State.EXIT) {
+            reconnecting.set(false);
+            return;
+        }
+
+        reconnectAttemptCount.incrementAndGet();
+        try {
+            connect();
+            lastReconnectMillis = System.currentTimeMillis() - disconnectTime;
+            logger.info(String.format("Reconnected after %d ms and %d attempts", lastReconnectMillis, attempt + 1));
+            reconnecting.set(false);
+        } catch (Exception e) {
+            logger.error(String.format("Error reconnecting - Exception: %s", e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            if (attempt + 1 < config.getMaxRetryCount()) {
+                scheduleReconnect(attempt + 1, disconnectTime);
+            } else {
+                reconnecting.set(false);
+                setState(State.ERROR);
+            }
+        }
+    }
+
+    /**
+     * Gets the total number of reconnect attempts made by this connection.
+     *
+     * @return the number of reconnect attempts
+     */
+    public long getReconnectAttemptCount() {
+        return reconnectAttemptCount.get();
+    }
+
+    /**
+     * Gets the time it took to re-establish the connection the last time it was lost.
+     *
+     * @return the time to reconnect in milliseconds, or -1 if the connection has never been re-established.
+     */
+    public long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+
     /**
      * Continually loop through message queue, sending messages as they are inserted. If no messages are in the queue,
      * wait on the message queue; enqueueMessage will notifyAll when a new item is added.
@@ -217,18 +448,38 @@ public class WSConnection {
     boolean sendMessage(WSMessage msg) {
         synchronized (this) {
             if (state == State.CLOSE || state == State.EXIT) {
+                msg.release();
                 return false;
             } else if (state != State.READY) {
                 throw new IllegalStateException("Cannot send message if not in ready state");
             }
         }
-        Future<Void> fut = session.getRemote().sendStringByFuture(msg.getMessage());
+        msg.sending();
+        ITransportShim shim = transportShim;
+        Future<Void> fut;
+        if (msg.isBinary()) {
+            // Send a view, so that the message can be sent again if this attempt fails.
+            ByteBuffer view = msg.getBinaryMessage().duplicate();
+            fut = shim != null ? shim.sendBytes(session, view) : session.getRemote().sendBytesByFuture(view);
+        } else {
+            fut = shim != null ? shim.sendString(session, msg.getMessage()) : session.getRemote().sendStringByFuture(msg.getMessage());
+        }
         try {
-            fut.get(5, TimeUnit.SECONDS);
-            String printableMsg = msg.getMessage().replaceAll("\"Password\":\"(.*?)\"", "\"Password\":\"***\"");
-            logger.debug(String.format("Sent message: %s", printableMsg));
+            // Allow for a round trip, plus the time to push a large message through a slow link.
+            fut.get(rttEstimator.getTimeoutMillis() + msg.size() / MIN_SEND_BYTES_PER_MILLI, TimeUnit.MILLISECONDS);
+            msg.release();
+            sendRetries.record(msg.getRetryCount());
+            if (msg.isBinary()) {
+                logger.debug(String.format("Sent binary message of %d bytes", msg.getBinaryMessage().remaining()));
+            } else {
+                String printableMsg = msg.getMessage().replaceAll("\"Password\":\"(.*?)\"", "\"Password\":\"***\"");
+                logger.debug(String.format("Sent message: %s", printableMsg));
+            }
         } catch (CancellationException | ExecutionException | InterruptedException | TimeoutException e) {
-            logger.warn(String.format("Error sending message \"%s\" - Exception: %s", msg.getMessage(), e.getCause().getMessage()));
+            logger.warn(String.format("Error sending message \"%s\" - Exception: %s", msg, e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            if (e instanceof TimeoutException) {
+                rttEstimator.backoff();
+            }
 
             // Insert into retry queue.
             if (msg.getRetryCount() < config.getMaxRetryCount()) {
@@ -238,8 +489,13 @@ public class WSConnection {
                     this.messageQueue.notifyAll();
                 }
             } else {
+                msg.release();
                 for (IMessageHandler handler : incomingMessageHandlers) {
-                    handler.handleMessageSendError(msg.getMessage());
+                    if (msg.isBinary()) {
+                        handler.handleBinaryMessageSendError(msg.getBinaryMessage());
+                    } else {
+                        handler.handleMessageSendError(msg.getMessage());
+                    }
                 }
             }
 
@@ -249,12 +505,39 @@ public class WSConnection {
     }
 
     void enqueueMessage(String msg, int priority) {
+        enqueueMessage(msg, priority, TrafficClass.CONTROL);
+    }
+
+    /**
+     * Enqueues a text message in the given traffic class.
+     *
+     * @param msg          the message to send
+     * @param priority     the priority of the message within its class
+     * @param trafficClass the class to schedule the message in
+     */
+    void enqueueMessage(String msg, int priority, TrafficClass trafficClass) {
+        enqueueMessage(msg, priority, trafficClass, null);
+    }
+
+    /**
+     * Enqueues a text message in the given traffic class, and reports every attempt to send it.
+     *
+     * @param msg          the message to send
+     * @param priority     the priority of the message within its class
+     * @param trafficClass the class to schedule the message in
+     * @param onSend       called right before each attempt to send the message, with the number of earlier
+     *                     attempts; may be null
+     */
+    void enqueueMessage(String msg, int priority, TrafficClass trafficClass, IntConsumer onSend) {
         if (getState() == State.CLOSE || state == State.EXIT) {
             return;
         }
 
+        WSMessage message = new WSMessage(msg, priority, trafficClass);
+        message.onSend = onSend;
+        message.reserve(sendBuffer, message.size());
         synchronized (messageQueue) {
-            this.messageQueue.offer(new WSMessage(msg, priority));
+            this.messageQueue.offer(message);
             this.messageQueue.notifyAll();
             String printableMsg = msg.replaceAll("\"Password\":\"(.*?)\"", "\"Password\":\"***\"");
             logger.debug(String.format("Enqueued message: %s", printableMsg));
@@ -262,8 +545,162 @@ public class WSConnection {
 
     }
 
+    /**
+     * Enqueues a binary message, as bulk traffic. The buffer must not be modified until the message has been sent.
+     *
+     * @param msg      the binary message to send
+     * @param priority the priority of the message
+     */
+    void enqueueBinaryMessage(ByteBuffer msg, int priority) {
+        enqueueBinaryMessage(msg, priority, null);
+    }
+
+    /**
+     * Enqueues a binary message, as bulk traffic, and reports every attempt to send it. The buffer must not be
+     * modified until the message has been sent.
+     *
+     * @param msg      the binary message to send
+     * @param priority the priority of the message
+     * @param onSend   called right before each attempt to send the message, with the number of earlier attempts; may
+     *                 be null
+     */
+    void enqueueBinaryMessage(ByteBuffer msg, int priority, IntConsumer onSend) {
+        if (getState() == State.CLOSE || state == State.EXIT) {
+            return;
+        }
+
+        WSMessage message = new WSMessage(msg, priority);
+        message.onSend = onSend;
+        message.reserve(sendBuffer, message.size());
+        synchronized (messageQueue) {
+            this.messageQueue.offer(message);
+            this.messageQueue.notifyAll();
+            logger.debug(String.format("Enqueued binary message of %d bytes", msg.remaining()));
+        }
+    }
+
+    /**
+     * Numbers text messages as they start, so that they are handled in order (see MessageSequencer), and measures the
+     * round trip of pings; every ping carries the time it was sent, which the server echoes back in its pong.
+     * <p>
+     * Jetty calls this on the thread that reads the connection, before it passes the frame on.
+     *
+     * @param frame a control or data frame received from the server
+     */
+    @SuppressWarnings("WeakerAccess")
+    @OnWebSocketFrame
+    public void onFrame(Frame frame) {
+        if (frame.getType() == Frame.Type.TEXT) {
+            MessageSequencer sequencer = this.sequencer;
+            if (sequencer != null) {
+                try {
+                    sequencer.messageStarted();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return;
+        }
+        if (frame.getType() != Frame.Type.PONG || frame.getPayloadLength() != Long.BYTES) {
+            return;
+        }
+        long sentNanos = frame.getPayload().getLong(frame.getPayload().position());
+        rttEstimator.addSample(System.nanoTime() - sentNanos);
+    }
+
+    /**
+     * Sends a ping carrying the current time, so that the round trip can be measured when its pong arrives.
+     *
+     * @param session the session to send the ping on
+     * @throws IOException if the ping could not be sent
+     */
+    void sendPing(Session session) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES);
+        payload.putLong(0, System.nanoTime());
+        session.getRemote().sendPing(payload);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    @OnWebSocketMessage
+    public void onBinaryMessage(byte[] buffer, int offset, int length) {
+        logger.debug(String.format("Received binary message of %d bytes", length));
+
+        ByteBuffer msg = ByteBuffer.wrap(buffer, offset, length).asReadOnlyBuffer();
+        ITransportShim shim = transportShim;
+        if (shim != null) {
+            shim.receive(session, length, () -> deliverBinaryMessage(msg));
+        } else {
+            deliverBinaryMessage(msg);
+        }
+    }
+
+    private void deliverBinaryMessage(ByteBuffer msg) {
+        for (IMessageHandler handler : incomingMessageHandlers) {
+            handler.handleBinaryMessage(msg.duplicate());
+        }
+    }
+
+    /**
+     * Receives text messages as a stream, so that large messages (for example, the response to a FilePull) never have
+     * to be assembled into a single String. Jetty calls this on a thread of its own as soon as the first frame of a
+     * message arrives, and feeds the reader with the following frames as they are received. Messages are still
+     * passed on one at a time, in the order they arrived.
+     *
+     * @param session the session the message was received on
+     * @param reader  reader over the contents of the message
+     */
     @SuppressWarnings("WeakerAccess")
     @OnWebSocketMessage
+    public void onTextMessage(Session session, Reader reader) {
+        MessageSequencer sequencer = this.sequencer;
+        if (sequencer == null || sequencer.session != session) {
+            // The session has already been replaced, so there is nothing left to order this message against.
+            receiveTextMessage(session, reader);
+            return;
+        }
+
+        long sequence = sequencer.claim();
+        sequencer.awaitTurn(sequence);
+        try {
+            receiveTextMessage(session, reader);
+        } finally {
+            sequencer.finished(sequence);
+        }
+    }
+
+    private void receiveTextMessage(Session session, Reader reader) {
+        try {
+            ITransportShim shim = transportShim;
+            if (shim != null) {
+                // The shim delays whole messages.
+                String msg = IMessageHandler.readFully(reader);
+                shim.receive(session, msg.length(), () -> onMessage(msg));
+            } else {
+                onMessage(reader);
+            }
+        } catch (IOException e) {
+            logger.error(String.format("Error reading streamed message - Exception: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Passes a streamed message on to the handlers. A reader can only be consumed once, so the message is only
+     * streamed if there is a single handler; otherwise, it is read into a String first.
+     *
+     * @param reader reader over the contents of the message
+     * @throws IOException if the message could not be read
+     */
+    void onMessage(Reader reader) throws IOException {
+        logger.debug("Receiving streamed message");
+
+        if (incomingMessageHandlers.size() == 1) {
+            incomingMessageHandlers.get(0).handleMessage(reader);
+        } else {
+            onMessage(IMessageHandler.readFully(reader));
+        }
+    }
+
+    @SuppressWarnings("WeakerAccess")
     public void onMessage(String msg) {
         logger.debug(String.format("Received message: %s", msg));
 
@@ -337,24 +774,110 @@ public class WSConnection {
     }
 
     /**
-     * WSMessage class allows older messages to always have higher priority, even after failure and re-insertion.
+     * WSMessage class allows older messages to always have higher priority within their traffic class, even after
+     * failure and re-insertion.
      */
     static class WSMessage implements Comparable<WSMessage> {
         private static AtomicLong counter = new AtomicLong(0);
         private final int priority;
+        private final TrafficClass trafficClass;
         private final String message;
+        private final ByteBuffer binaryMessage;
+        // Size on the wire, in bytes
+        private final int size;
         private final long id = counter.getAndIncrement();
         private int retryCount = 0;
+        // The send buffer this message is accounted against, until it is sent or dropped
+        private SendBuffer sendBuffer;
+        private long reservedBytes;
+        // Called before each attempt to send the message, if set
+        private IntConsumer onSend;
 
         WSMessage(String message, int priority) {
+            this(message, priority, TrafficClass.CONTROL);
+        }
+
+        WSMessage(String message, int priority, TrafficClass trafficClass) {
             this.message = message;
+            this.binaryMessage = null;
+            this.size = utf8Length(message);
+            this.priority = priority;
+            this.trafficClass = trafficClass;
+        }
+
+        WSMessage(ByteBuffer binaryMessage, int priority) {
+            this.message = null;
+            this.binaryMessage = binaryMessage;
+            this.size = binaryMessage.remaining();
             this.priority = priority;
+            this.trafficClass = TrafficClass.BULK;
         }
 
         String getMessage() {
             return message;
         }
 
+        ByteBuffer getBinaryMessage() {
+            return binaryMessage;
+        }
+
+        boolean isBinary() {
+            return binaryMessage != null;
+        }
+
+        TrafficClass getTrafficClass() {
+            return trafficClass;
+        }
+
+        /**
+         * Gets the size of the message, in bytes; text messages are sent as UTF-8.
+         */
+        int size() {
+            return size;
+        }
+
+        private static int utf8Length(String message) {
+            try {
+                return Utf8.encodedLength(message);
+            } catch (IllegalArgumentException e) {
+                // Unpaired surrogates are replaced when the message is encoded.
+                return message.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return isBinary() ? String.format("<%d bytes>", binaryMessage.remaining()) : message;
+        }
+
+        /**
+         * Accounts for this message in the given send buffer, until it is released.
+         */
+        void reserve(SendBuffer sendBuffer, long bytes) {
+            this.sendBuffer = sendBuffer;
+            this.reservedBytes = bytes;
+            sendBuffer.reserve(bytes);
+        }
+
+        /**
+         * Releases this message from its send buffer, once it was sent or will not be sent anymore.
+         */
+        void release() {
+            if (sendBuffer != null) {
+                sendBuffer.release(reservedBytes);
+                sendBuffer = null;
+            }
+        }
+
+        /**
+         * Reports an attempt to send this message.
+         */
+        void sending() {
+            if (onSend != null) {
+                onSend.accept(retryCount);
+            }
+        }
+
         int getRetryCount() {
             return retryCount;
         }
@@ -396,7 +919,7 @@ public class WSConnection {
                 return; // Looks like we have a closed connection...
             }
             try {
-                this.session.getRemote().sendPing(null);
+                sendPing(this.session);
             } catch (IOException e) {
                 e.printStackTrace();
             }
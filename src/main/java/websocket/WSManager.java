@@ -1,8 +1,12 @@
 package websocket;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import metrics.MetricsRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import websocket.models.ConnectionConfig;
@@ -12,16 +16,26 @@ import websocket.models.Response;
 import websocket.models.ServerMessageWrapper;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 /**
  * Created by fahslaj on 4/14/2016.
  */
 public class WSManager implements IMessageHandler {
     public static Logger logger = LogManager.getLogger("websocket");
+    // size of the chunks that blobs are split into; each chunk is sent as its own binary message, which must fit
+    // within the 64KB default maximum binary message size of the server.
+    static int BLOB_CHUNK_SIZE = 64 * 1024 - BlobChunk.HEADER_SIZE;
     private OutputStream loggerOutputStream;
     // HashMap for keeping track of sent requests (Tag -> Request)
     HashMap<Long, Request> requestHashMap;
@@ -33,15 +47,62 @@ public class WSManager implements IMessageHandler {
     private String userToken;
     // Jackson Mapper
     private ObjectMapper mapper = new ObjectMapper();
-    // queued requests that require authentication
+    // queued requests that require authentication, and the size each one is accounted for in the send buffer
     private final List<Request> queuedAuthenticatedRequests;
+    private final Map<Request, Integer> queuedAuthenticatedRequestSizes = new IdentityHashMap<>();
+    // budget for all messages that have not been sent yet
+    private final SendBuffer sendBuffer;
+    // round trip time estimates, fed by the time between each request and its response
+    private final RttEstimator rttEstimator;
+    // time at which each request in flight was sent (Tag -> System.nanoTime()); only for requests sent once
+    private final Map<Long, Long> requestSendNanos = new ConcurrentHashMap<>();
+    // runs response and notification handlers off the websocket's receiving thread
+    private final MessageDispatcher dispatcher;
+    // drops notifications nobody is interested in before they are decoded
+    private final MessagePrefilter prefilter = new MessagePrefilter();
+    private volatile INotificationFilter notificationFilter;
+    private final AtomicLong discardedMessageCount = new AtomicLong(0);
+    private final AtomicLong discardedMessageBytes = new AtomicLong(0);
+    // registered blob handlers (Tag -> Handler); removed once the last chunk has been handled
+    private final Map<Long, IBlobHandler> blobHandlers = new ConcurrentHashMap<>();
+    // error handlers for blobs that are being sent (Tag -> Handler)
+    private final Map<Long, IRequestSendErrorHandler> blobSendErrorHandlers = new ConcurrentHashMap<>();
+    // registry that metrics are recorded into
+    private final MetricsRegistry metrics;
+    // gauges registered with the MetricsRegistry (Name -> Gauge); deregistered on close
+    private final Map<String, LongSupplier> gauges = new HashMap<>();
 
     public WSManager(ConnectionConfig config) {
-        this(new WSConnection(config));
+        this(config, MetricsRegistry.getInstance());
     }
 
-    // used for testing
+    /**
+     * Creates a WSManager that records its metrics into the given registry, rather than the shared one.
+     *
+     * @param config  the configuration of the connection
+     * @param metrics the registry to record metrics into
+     */
+    public WSManager(ConnectionConfig config, MetricsRegistry metrics) {
+        this(new WSConnection(config), new MessageDispatcher(), metrics);
+    }
+
+    // used for testing; handlers are run on the calling thread.
     WSManager(WSConnection socket) {
+        this(socket, new MessageDispatcher(0));
+    }
+
+    WSManager(WSConnection socket, MessageDispatcher dispatcher) {
+        this(socket, dispatcher, MetricsRegistry.getInstance());
+    }
+
+    WSManager(WSConnection socket, MessageDispatcher dispatcher, MetricsRegistry metrics) {
+        // Share the connection's send buffer, so that queued authenticated requests count towards the same budget.
+        SendBuffer socketSendBuffer = socket.getSendBuffer();
+        this.sendBuffer = socketSendBuffer != null ? socketSendBuffer : new SendBuffer(SendBuffer.DEFAULT_CAPACITY);
+        RttEstimator socketRttEstimator = socket.getRttEstimator();
+        this.rttEstimator = socketRttEstimator != null ? socketRttEstimator : new RttEstimator();
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
         this.notificationHandlerHashMap = new HashMap<>();
         this.requestHashMap = new HashMap<>();
         this.queuedAuthenticatedRequests = new ArrayList<>();
@@ -49,6 +110,11 @@ public class WSManager implements IMessageHandler {
         
         socket.registerIncomingMessageHandler(this);
 
+        gauges.put("websocket.sendQueueDepth", socket::getQueuedMessageCount);
+        gauges.put("websocket.sendBufferBytes", this.sendBuffer::getUsedBytes);
+        gauges.put("websocket.dispatcherQueueDepth", dispatcher::getQueueDepth);
+        gauges.forEach(metrics::registerGauge);
+
         mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
     }
 
@@ -63,6 +129,10 @@ public class WSManager implements IMessageHandler {
 
     public void close() {
         socket.close();
+        // Handlers that have already been dispatched still run; the lanes' threads exit once they are done.
+        dispatcher.shutdown();
+        // The gauges would keep this WSManager reachable, and keep reporting it, after it has been closed.
+        gauges.forEach(metrics::deregisterGauge);
     }
 
     public void registerEventHandler(WSConnection.EventType event, Runnable handler) {
@@ -103,9 +173,14 @@ public class WSManager implements IMessageHandler {
 
     public void sendAuthenticatedRequest(Request request) throws ConnectException {
         if (userID == null || userToken == null) {
+            // Account for the request while it waits for authentication, so that an unauthenticated session cannot
+            // grow this queue without bound unnoticed.
+            int size = estimateSize(request);
             synchronized (this.queuedAuthenticatedRequests) {
                 this.queuedAuthenticatedRequests.add(request);
+                this.queuedAuthenticatedRequestSizes.put(request, size);
             }
+            sendBuffer.reserve(size);
             return;
         }
         this.sendRequest(request);
@@ -121,6 +196,7 @@ public class WSManager implements IMessageHandler {
     }
 
     public void sendRequest(Request request, int priority) throws ConnectException {
+        // While a lost connection is being re-established, the state stays CONNECT, so this only queues the message.
         if (socket.getState() == WSConnection.State.CREATED || socket.getState() == WSConnection.State.ERROR) {
             try {
                 socket.connect();
@@ -143,12 +219,31 @@ public class WSManager implements IMessageHandler {
             logger.error("Could not map request to Json string: " + request);
             return;
         }
-        socket.enqueueMessage(messageText, priority);
-        requestHashMap.put(request.getTag(), request);
+        long tag = request.getTag();
+        Runnable sendHandler = request.getSendHandler();
+        // Registered before the request is enqueued, since the response can arrive before enqueueMessage returns.
+        requestHashMap.put(tag, request);
+        socket.enqueueMessage(messageText, priority, request.getTrafficClass(), attempt -> {
+            // A response to a request that was sent more than once can't be matched to an attempt; don't sample it.
+            if (attempt == 0) {
+                requestSendNanos.put(tag, System.nanoTime());
+            } else {
+                requestSendNanos.remove(tag);
+            }
+            if (sendHandler != null) {
+                sendHandler.run();
+            }
+        });
     }
 
     @Override
     public void handleMessage(String message) {
+        if (shouldDiscard(prefilter.peek(message))) {
+            discardedMessageCount.incrementAndGet();
+            discardedMessageBytes.addAndGet(message.length());
+            return;
+        }
+
         ServerMessageWrapper wrapper;
         try {
             wrapper = mapper.readValue(message, ServerMessageWrapper.class);
@@ -156,6 +251,112 @@ public class WSManager implements IMessageHandler {
             logger.error("Malformed message from server: " + message);
             return;
         }
+        handleServerMessage(wrapper);
+    }
+
+    /**
+     * Decodes a message incrementally, as it is read. The routing fields of the ServerMessage are read first; a
+     * nested value (such as Data) is only decoded into a tree once the routing fields show that the message is wanted.
+     * The raw text of the message is never held in memory as a whole.
+     * <p>
+     * The server sends Type, and Resource, Method and ResourceID, before Data. If they come later, the message can
+     * only be dropped after it has been decoded.
+     *
+     * @param message reader over the contents of the message
+     * @throws IOException if the message could not be read
+     */
+    @Override
+    public void handleMessage(Reader message) throws IOException {
+        ServerMessageWrapper wrapper = new ServerMessageWrapper();
+        MessagePrefilter.Header header = new MessagePrefilter.Header();
+        boolean discarded = false;
+        long messageLength;
+        try (JsonParser parser = mapper.getFactory().createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                logger.error("Malformed message from server: not a JSON object");
+                return;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                if (discarded) {
+                    parser.skipChildren();
+                } else if ("Type".equals(field) && token == JsonToken.VALUE_STRING) {
+                    wrapper.setType(parser.getText());
+                    header.type = wrapper.getType();
+                } else if ("Timestamp".equals(field) && token == JsonToken.VALUE_NUMBER_INT) {
+                    wrapper.setTimestamp(parser.getLongValue());
+                } else if ("ServerMessage".equals(field) && token == JsonToken.START_OBJECT) {
+                    ObjectNode serverMessage = mapper.createObjectNode();
+                    discarded = readServerMessage(parser, serverMessage, header);
+                    wrapper.setMessageJson(serverMessage);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            messageLength = parser.getCurrentLocation().getCharOffset();
+        } catch (JsonProcessingException e) {
+            logger.error("Malformed message from server: " + e.getOriginalMessage());
+            return;
+        }
+
+        // The routing fields may only have been complete after the ServerMessage, or after the whole message.
+        if (discarded || shouldDiscard(header)) {
+            discardedMessageCount.incrementAndGet();
+            discardedMessageBytes.addAndGet(messageLength);
+            return;
+        }
+        if (wrapper.getType() == null || wrapper.getMessageJson() == null) {
+            logger.error("Malformed message from server: missing Type or ServerMessage");
+            return;
+        }
+        handleServerMessage(wrapper);
+    }
+
+    /**
+     * Reads the fields of a ServerMessage into the given node. Scalar fields are read as they come, and update the
+     * header; before each nested value, the header is checked, and if the message is unwanted, the rest of the
+     * ServerMessage is skipped without decoding it.
+     *
+     * @param parser        parser positioned at the start of the ServerMessage object
+     * @param serverMessage node to add the fields to
+     * @param header        the routing fields read so far
+     * @return true if the message was found to be unwanted
+     * @throws IOException if the message could not be read
+     */
+    private boolean readServerMessage(JsonParser parser, ObjectNode serverMessage, MessagePrefilter.Header header) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                if (header.resource != null && header.method != null && shouldDiscard(header)) {
+                    parser.skipChildren();
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        parser.nextToken();
+                        parser.skipChildren();
+                    }
+                    return true;
+                }
+                serverMessage.set(field, mapper.readTree(parser));
+                continue;
+            }
+
+            if ("Resource".equals(field) && token == JsonToken.VALUE_STRING) {
+                header.resource = parser.getText();
+            } else if ("Method".equals(field) && token == JsonToken.VALUE_STRING) {
+                header.method = parser.getText();
+            } else if ("ResourceID".equals(field) && token == JsonToken.VALUE_NUMBER_INT) {
+                header.resourceID = parser.getLongValue();
+            }
+            serverMessage.set(field, mapper.readTree(parser));
+        }
+        return false;
+    }
+
+    private void handleServerMessage(ServerMessageWrapper wrapper) {
         switch (wrapper.getType()) {
             case ServerMessageWrapper.TYPE_NOTIFICATION:
                 handleNotification(wrapper);
@@ -166,7 +367,36 @@ public class WSManager implements IMessageHandler {
         }
     }
 
+    /**
+     * Checks the header of a message to find out whether it can be dropped without decoding it; this is the case
+     * for notifications that have no registered handler, or that are rejected by the notification filter.
+     *
+     * @param header the routing fields of the message, or null if they could not be read
+     * @return true if the message should be dropped
+     */
+    private boolean shouldDiscard(MessagePrefilter.Header header) {
+        if (header == null || !ServerMessageWrapper.TYPE_NOTIFICATION.equals(header.type)
+                || header.resource == null || header.method == null) {
+            return false;
+        }
+
+        String key = header.resource + '.' + header.method;
+        if (!notificationHandlerHashMap.containsKey(key)) {
+            logger.warn("No handler registered for notification: " + key);
+            return true;
+        }
+
+        INotificationFilter filter = notificationFilter;
+        if (filter != null && header.resourceID != null
+                && !filter.acceptNotification(header.resource, header.method, header.resourceID)) {
+            logger.debug(String.format("Dropping filtered notification %s for resource %d", key, header.resourceID));
+            return true;
+        }
+        return false;
+    }
+
     private void handleNotification(ServerMessageWrapper wrapper) {
+        long receivedNanos = metrics.startTimer();
         Notification an;
         try {
             an = mapper.convertValue(wrapper.getMessageJson(), Notification.class);
@@ -187,6 +417,7 @@ public class WSManager implements IMessageHandler {
             logger.error("Notification data class not found");
             return;
         }
+        an.setReceivedNanos(receivedNanos);
 
         String key = an.getResource() + '.' + an.getMethod();
         INotificationHandler handler = notificationHandlerHashMap.get(key);
@@ -195,7 +426,8 @@ public class WSManager implements IMessageHandler {
             logger.warn("No handler registered for notification: " + notificationMessage);
             return;
         }
-        handler.handleNotification(an);
+        // Notifications for the same resource must be handled in the order they were received.
+        dispatcher.dispatch(an.getResource() + '.' + an.getResourceID(), () -> handler.handleNotification(an));
     }
 
     private void handleResponse(ServerMessageWrapper wrapper) {
@@ -208,6 +440,12 @@ public class WSManager implements IMessageHandler {
             return;
         }
         long tag = resp.getTag();
+        Long sendNanos = requestSendNanos.remove(tag);
+        if (sendNanos != null) {
+            rttEstimator.addSample(System.nanoTime() - sendNanos);
+        }
+        // Any blob sent along with the request has been received by now.
+        blobSendErrorHandlers.remove(tag);
         Request request = requestHashMap.get(tag);
         if (request == null) {
             String responseMessage = wrapper.getMessageJson().toString();
@@ -235,7 +473,115 @@ public class WSManager implements IMessageHandler {
             logger.warn("No handler specified for request: " + responseMessage);
             return;
         }
-        handler.handleResponse(resp);
+        dispatcher.dispatch(request.resource, () -> handler.handleResponse(resp));
+    }
+
+    /**
+     * Sends file contents as a series of binary messages, instead of embedding them in a JSON request. The contents
+     * are split into chunks of BLOB_CHUNK_SIZE, and each chunk is tagged with the tag of the request that it belongs
+     * to, so the server can correlate them. Each chunk is copied into its own message behind the header, right before
+     * it is enqueued; chunks are enqueued one at a time, as the previous one is sent.
+     *
+     * @param tag          the tag of the request that the contents belong to
+     * @param contents     the contents to send; must not be modified until it has been sent
+     * @param priority     the priority of the binary messages
+     * @param errorHandler handler to call if any chunk fails to send, or null
+     */
+    public void sendBlob(long tag, ByteBuffer contents, int priority, IRequestSendErrorHandler errorHandler) throws ConnectException {
+        // While a lost connection is being re-established, the state stays CONNECT, so this only queues the message.
+        if (socket.getState() == WSConnection.State.CREATED || socket.getState() == WSConnection.State.ERROR) {
+            try {
+                socket.connect();
+            } catch (Exception e) {
+                logger.error("WebSocket connection could not connect: " + e.getMessage());
+                throw new ConnectException("Could not connect to WebSocket.", e);
+            }
+        }
+
+        if (errorHandler != null) {
+            blobSendErrorHandlers.put(tag, errorHandler);
+        }
+
+        enqueueBlobChunk(tag, contents.duplicate(), 0, priority);
+    }
+
+    /**
+     * Encodes and enqueues the next chunk of a blob. The chunk after it is only encoded and enqueued once this one
+     * is first being sent, so that at most two chunks of a blob are held in memory at a time.
+     *
+     * @param tag       the tag of the request that the blob belongs to
+     * @param remaining the rest of the blob; its position is advanced past the chunk
+     * @param sequence  the index of the chunk within the blob
+     * @param priority  the priority of the binary messages
+     */
+    private void enqueueBlobChunk(long tag, ByteBuffer remaining, int sequence, int priority) {
+        ByteBuffer chunk = remaining.slice();
+        chunk.limit(Math.min(BLOB_CHUNK_SIZE, remaining.remaining()));
+        remaining.position(remaining.position() + chunk.remaining());
+
+        boolean last = !remaining.hasRemaining();
+        socket.enqueueBinaryMessage(BlobChunk.encode(tag, sequence, last, chunk), priority, last ? null : attempt -> {
+            if (attempt == 0) {
+                enqueueBlobChunk(tag, remaining, sequence + 1, priority);
+            }
+        });
+    }
+
+    /**
+     * Register an IBlobHandler to receive the chunks of the blob with the given tag. The handler is removed after
+     * the last chunk has been handled.
+     *
+     * @param tag     the tag of the request that the blob belongs to
+     * @param handler the handler for the chunks of the blob
+     */
+    public void registerBlobHandler(long tag, IBlobHandler handler) {
+        blobHandlers.put(tag, handler);
+    }
+
+    /**
+     * Deregister the IBlobHandler saved for the given tag.
+     *
+     * @param tag the tag of the request that the blob belongs to
+     */
+    public void deregisterBlobHandler(long tag) {
+        blobHandlers.remove(tag);
+        blobSendErrorHandlers.remove(tag);
+    }
+
+    @Override
+    public void handleBinaryMessage(ByteBuffer message) {
+        BlobChunk chunk;
+        try {
+            chunk = BlobChunk.decode(message);
+        } catch (IllegalArgumentException e) {
+            logger.error("Malformed binary message from server: " + e.getMessage());
+            return;
+        }
+
+        IBlobHandler handler = chunk.last ? blobHandlers.remove(chunk.tag) : blobHandlers.get(chunk.tag);
+        if (handler == null) {
+            logger.warn(String.format("No handler registered for blob with tag %d", chunk.tag));
+            return;
+        }
+        // Chunks of the same blob must be handled in the order they were received.
+        dispatcher.dispatch("Blob." + chunk.tag, () -> handler.handleBlobChunk(chunk.tag, chunk.payload, chunk.last));
+    }
+
+    @Override
+    public void handleBinaryMessageSendError(ByteBuffer message) {
+        BlobChunk chunk;
+        try {
+            chunk = BlobChunk.decode(message);
+        } catch (IllegalArgumentException e) {
+            logger.error("Binary message that failed to send was malformed");
+            return;
+        }
+
+        // Report each failed blob once, even if several of its chunks fail.
+        IRequestSendErrorHandler handler = blobSendErrorHandlers.remove(chunk.tag);
+        if (handler != null) {
+            handler.handleRequestSendError();
+        }
     }
 
     @Override
@@ -247,6 +593,7 @@ public class WSManager implements IMessageHandler {
             logger.error("Request that failed to send was malformed");
             return;
         }
+        requestSendNanos.remove(request.getTag());
         request = requestHashMap.get(request.getTag());
         IRequestSendErrorHandler handler = request.getErrorHandler();
         handler.handleRequestSendError();
@@ -262,13 +609,113 @@ public class WSManager implements IMessageHandler {
         synchronized (this.queuedAuthenticatedRequests) {
             List<Request> reqList = new ArrayList<>(this.queuedAuthenticatedRequests);
             this.queuedAuthenticatedRequests.clear();
-            reqList.forEach(this::sendAuthenticatedRequest);
+            for (Request request : reqList) {
+                // Reserved again by the connection once it is enqueued there.
+                sendBuffer.release(this.queuedAuthenticatedRequestSizes.remove(request));
+                sendAuthenticatedRequest(request);
+            }
+        }
+    }
+
+    /**
+     * Estimates the size of a request on the wire.
+     *
+     * @param request the request to measure
+     * @return the length of the request's JSON representation in UTF-8, or 0 if it cannot be serialized
+     */
+    private int estimateSize(Request request) {
+        try {
+            return mapper.writeValueAsBytes(request).length;
+        } catch (JsonProcessingException e) {
+            return 0;
         }
     }
 
+    /**
+     * Gets the buffer that all unsent messages are accounted against. Producers can check it, or wait on it, to slow
+     * down when the connection can't keep up.
+     *
+     * @return the SendBuffer of this manager
+     */
+    public SendBuffer getSendBuffer() {
+        return sendBuffer;
+    }
+
+    /**
+     * Gets the estimate of the round trip time to the server, which request timeouts should be based on.
+     *
+     * @return the RttEstimator of this manager
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * Routes all messages to and from the server through the given shim, such as a FaultInjector.
+     *
+     * @param shim the shim to use, or null to talk to the server directly.
+     */
+    public void setTransportShim(ITransportShim shim) {
+        socket.setTransportShim(shim);
+    }
+
+    /**
+     * Sets a filter that is consulted for every notification before it is decoded.
+     *
+     * @param filter the filter to use, or null to accept all notifications that have a handler.
+     */
+    public void setNotificationFilter(INotificationFilter filter) {
+        this.notificationFilter = filter;
+    }
+
+    /**
+     * Gets the number of messages that were dropped before being decoded.
+     *
+     * @return the number of discarded messages
+     */
+    public long getDiscardedMessageCount() {
+        return discardedMessageCount.get();
+    }
+
+    /**
+     * Gets the total size of the messages that were dropped before being decoded.
+     *
+     * @return the size of the discarded messages, in characters
+     */
+    public long getDiscardedMessageBytes() {
+        return discardedMessageBytes.get();
+    }
+
+    /**
+     * Gets the dispatcher that runs response and notification handlers, for its queue depth and latency metrics.
+     *
+     * @return the MessageDispatcher used by this manager
+     */
+    public MessageDispatcher getMessageDispatcher() {
+        return dispatcher;
+    }
+
     public WSConnection.State getConnectionState() {
         return socket.getState();
     }
+
+    /**
+     * Gets the total number of reconnect attempts made since this manager was created.
+     *
+     * @return the number of reconnect attempts
+     */
+    public long getReconnectAttemptCount() {
+        return socket.getReconnectAttemptCount();
+    }
+
+    /**
+     * Gets the time it took to re-establish the connection the last time it was lost.
+     *
+     * @return the time to reconnect in milliseconds, or -1 if the connection has never been re-established.
+     */
+    public long getLastReconnectMillis() {
+        return socket.getLastReconnectMillis();
+    }
     
     public OutputStream getLoggingOutputStream() {
     	return loggerOutputStream;
@@ -16,6 +16,39 @@ public class ConnectionConfig {
     @JsonProperty("MaxRetryCount")
     protected int maxRetryCount;
 
+    // Reconnect backoff; the delay before reconnect attempt n is min(max, initial * multiplier^n), less up to
+    // jitter * delay, chosen at random so that clients don't all reconnect at the same time.
+    @JsonProperty("ReconnectInitialDelayMillis")
+    protected long reconnectInitialDelayMillis = 500;
+
+    @JsonProperty("ReconnectMaxDelayMillis")
+    protected long reconnectMaxDelayMillis = 30000;
+
+    @JsonProperty("ReconnectBackoffMultiplier")
+    protected double reconnectBackoffMultiplier = 2.0;
+
+    @JsonProperty("ReconnectJitter")
+    protected double reconnectJitter = 0.5;
+
+    // permessage-deflate; messages smaller than the threshold are sent uncompressed, since compressing them costs
+    // more CPU than it saves on the wire. Without context takeover, each message is compressed on its own, which
+    // lowers the compression ratio but avoids holding a 32KB sliding window per direction for the connection lifetime.
+    @JsonProperty("Compression")
+    protected boolean compression = false;
+
+    @JsonProperty("CompressionLevel")
+    protected int compressionLevel = 6;
+
+    @JsonProperty("CompressionThreshold")
+    protected int compressionThreshold = 256;
+
+    @JsonProperty("CompressionNoContextTakeover")
+    protected boolean compressionNoContextTakeover = false;
+
+    // Total size of unsent messages at which producers are asked to slow down; see SendBuffer.
+    @JsonProperty("SendBufferBytes")
+    protected long sendBufferBytes = 64 * 1024 * 1024;
+
     public ConnectionConfig(
             @JsonProperty("URIString") String uriString,
             @JsonProperty("Reconnect") boolean reconnect,
@@ -41,6 +74,89 @@ public class ConnectionConfig {
         this.reconnect = reconnect;
     }
 
+    public long getReconnectInitialDelayMillis() {
+        return reconnectInitialDelayMillis;
+    }
+
+    public void setReconnectInitialDelayMillis(long reconnectInitialDelayMillis) {
+        this.reconnectInitialDelayMillis = reconnectInitialDelayMillis;
+    }
+
+    public long getReconnectMaxDelayMillis() {
+        return reconnectMaxDelayMillis;
+    }
+
+    public void setReconnectMaxDelayMillis(long reconnectMaxDelayMillis) {
+        this.reconnectMaxDelayMillis = reconnectMaxDelayMillis;
+    }
+
+    public double getReconnectBackoffMultiplier() {
+        return reconnectBackoffMultiplier;
+    }
+
+    public void setReconnectBackoffMultiplier(double reconnectBackoffMultiplier) {
+        this.reconnectBackoffMultiplier = reconnectBackoffMultiplier;
+    }
+
+    public double getReconnectJitter() {
+        return reconnectJitter;
+    }
+
+    public void setReconnectJitter(double reconnectJitter) {
+        this.reconnectJitter = reconnectJitter;
+    }
+
+    /**
+     * Gets the delay before the given reconnect attempt, before jitter is applied.
+     *
+     * @param attempt the number of reconnect attempts that have already failed
+     * @return the delay in milliseconds
+     */
+    public long getReconnectDelayMillis(int attempt) {
+        double delay = reconnectInitialDelayMillis * Math.pow(reconnectBackoffMultiplier, attempt);
+        return (long) Math.min(delay, reconnectMaxDelayMillis);
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isCompressionNoContextTakeover() {
+        return compressionNoContextTakeover;
+    }
+
+    public void setCompressionNoContextTakeover(boolean compressionNoContextTakeover) {
+        this.compressionNoContextTakeover = compressionNoContextTakeover;
+    }
+
+    public long getSendBufferBytes() {
+        return sendBufferBytes;
+    }
+
+    public void setSendBufferBytes(long sendBufferBytes) {
+        this.sendBufferBytes = sendBufferBytes;
+    }
+
     public String getUriString() {
         return uriString;
     }
@@ -1,5 +1,6 @@
 package websocket.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -21,6 +22,14 @@ public class Notification extends AbstractServerMessage {
 
     protected INotificationData data;
 
+    // When the notification was received, from MetricsRegistry.startTimer; 0 if metrics were disabled.
+    @JsonIgnore
+    private long receivedNanos;
+
+    // Whether this was pulled to catch up after a reconnect, and may repeat changes that were already applied.
+    @JsonIgnore
+    private boolean catchUp;
+
     public void parseData() throws JsonProcessingException, ClassNotFoundException {
         Class<? extends INotificationData> type;
         String classname = this.getClass().getPackage().getName() + ".notifications." + resource + method + "Notification";
@@ -62,4 +71,24 @@ public class Notification extends AbstractServerMessage {
     public INotificationData getData() {
         return data;
     }
+
+    public void setData(INotificationData data) {
+        this.data = data;
+    }
+
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    public boolean isCatchUp() {
+        return catchUp;
+    }
+
+    public void setCatchUp(boolean catchUp) {
+        this.catchUp = catchUp;
+    }
 }
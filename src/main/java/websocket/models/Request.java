@@ -5,6 +5,7 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import websocket.IRequestSendErrorHandler;
 import websocket.IResponseHandler;
+import websocket.TrafficClass;
 
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -45,6 +46,14 @@ public class Request {
     @JsonIgnore
     private IRequestSendErrorHandler errorHandler;
 
+    // The class to schedule this request in; derived from the resource and method if not set.
+    @JsonIgnore
+    private TrafficClass trafficClass;
+
+    // Called right before each attempt to write this request to the connection.
+    @JsonIgnore
+    private Runnable sendHandler;
+
     /**
      * Default Request constructor that should only be used for testing requests.
      */
@@ -93,4 +102,27 @@ public class Request {
     public IRequestSendErrorHandler getErrorHandler() {
         return errorHandler;
     }
+
+    @JsonIgnore
+    public TrafficClass getTrafficClass() {
+        return trafficClass != null ? trafficClass : TrafficClass.of(resource, method);
+    }
+
+    public void setTrafficClass(TrafficClass trafficClass) {
+        this.trafficClass = trafficClass;
+    }
+
+    public Runnable getSendHandler() {
+        return sendHandler;
+    }
+
+    /**
+     * Sets a handler that is called right before each attempt to write this request to the connection, as opposed
+     * to when it is queued.
+     *
+     * @param sendHandler the handler to call; may be null
+     */
+    public void setSendHandler(Runnable sendHandler) {
+        this.sendHandler = sendHandler;
+    }
 }
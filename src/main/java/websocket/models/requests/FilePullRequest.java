@@ -1,6 +1,7 @@
 package websocket.models.requests;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import websocket.IRequestSendErrorHandler;
 import websocket.IResponseHandler;
@@ -15,10 +16,20 @@ public class FilePullRequest implements IRequestData {
     @JsonProperty("FileID")
     protected long fileID;
 
+    // If set, only changes made since this version are requested, and FileBytes may be omitted from the response.
+    @JsonProperty("BaseVersion")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    protected Long baseVersion;
+
     public FilePullRequest(long fileID) {
         this.fileID = fileID;
     }
 
+    public FilePullRequest(long fileID, long baseVersion) {
+        this.fileID = fileID;
+        this.baseVersion = baseVersion;
+    }
+
     @JsonIgnore
     @Override
     public Request getRequest(IResponseHandler responseHandler, IRequestSendErrorHandler requestSendErrorHandler) {
@@ -0,0 +1,23 @@
+package dataMgmt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class TestContentStore {
+    @Test
+    public void testHash() {
+        String hash = ContentStore.hash("test contents".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(ContentStore.hash("test contents".getBytes(StandardCharsets.UTF_8)), hash);
+        Assert.assertNotEquals(ContentStore.hash("test content".getBytes(StandardCharsets.UTF_8)), hash);
+    }
+
+    @Test
+    public void testBytesSaved() {
+        ContentStore store = new ContentStore();
+        store.recordBytesSaved(10);
+        store.recordBytesSaved(5);
+        Assert.assertEquals(15, store.getBytesSaved());
+    }
+}
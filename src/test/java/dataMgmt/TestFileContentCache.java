@@ -0,0 +1,83 @@
+package dataMgmt;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class TestFileContentCache {
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("fileContentCache");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testPutKeepsNewestVersion() {
+        FileContentCache cache = new FileContentCache();
+        cache.put(1, 3, bytes("version 3"));
+        cache.put(1, 2, bytes("version 2"));
+        Assert.assertEquals(3, cache.get(1).getVersion());
+        Assert.assertArrayEquals(bytes("version 3"), cache.get(1).getContents());
+
+        cache.put(1, 4, bytes("version 4"));
+        Assert.assertArrayEquals(bytes("version 4"), cache.get(1).getContents());
+
+        cache.invalidate(1);
+        Assert.assertNull(cache.get(1));
+    }
+
+    @Test
+    public void testPersistedAcrossReopen() throws IOException {
+        FileContentCache cache = new FileContentCache(directory, 1024);
+        cache.put(1, 1, bytes("file 1"));
+        cache.put(2, 5, bytes("file 2, version 5"));
+        cache.put(2, 6, bytes("file 2, version 6"));
+        cache.put(2, 6, bytes("file 2, version 6"));
+
+        FileContentCache reopened = new FileContentCache(directory, 1024);
+        Assert.assertEquals(1, reopened.get(1).getVersion());
+        Assert.assertArrayEquals(bytes("file 1"), reopened.get(1).getContents());
+        Assert.assertEquals(6, reopened.get(2).getVersion());
+        Assert.assertEquals(bytes("file 2, version 6").length, reopened.get(2).getBuffer().remaining());
+        Assert.assertTrue(Files.exists(directory.resolve("2-6.cache")));
+        Assert.assertFalse(Files.exists(directory.resolve("2-5.cache")));
+
+        reopened.invalidate(1);
+        Assert.assertFalse(Files.exists(directory.resolve("1-1.cache")));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        FileContentCache cache = new FileContentCache(directory, 10);
+        cache.put(1, 1, bytes("aaaa"));
+        cache.put(2, 1, bytes("bbbb"));
+        cache.get(1);
+        cache.put(3, 1, bytes("cccc"));
+
+        Assert.assertNotNull(cache.get(1));
+        Assert.assertNull(cache.get(2));
+        Assert.assertNotNull(cache.get(3));
+        Assert.assertFalse(Files.exists(directory.resolve("2-1.cache")));
+        Assert.assertNull(new FileContentCache(directory, 10).get(2));
+    }
+
+    private static byte[] bytes(String contents) {
+        return contents.getBytes(StandardCharsets.UTF_8);
+    }
+}
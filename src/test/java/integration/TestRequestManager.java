@@ -94,6 +94,11 @@ public class TestRequestManager extends UserBasedIntegrationTest {
 			public void finishMoveFile(FileMetadata fMeta) {
 				
 			}
+
+            @Override
+            public void finishPullFile(long fileID, long version, byte[] contents) {
+
+            }
         };
     }
 
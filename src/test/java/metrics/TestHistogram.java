@@ -0,0 +1,65 @@
+package metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHistogram {
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = Histogram.bucketIndex(value);
+            Assert.assertTrue(value <= Histogram.bucketUpperBound(index));
+            if (index > 0) {
+                Assert.assertTrue(value > Histogram.bucketUpperBound(index - 1));
+            }
+            // Buckets are at most 1/8th as wide as the values they hold.
+            Assert.assertTrue(Histogram.bucketUpperBound(index) - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.setEnabled(true);
+        Histogram histogram = registry.histogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500.5, snapshot.getMean(), 0.001);
+        Assert.assertEquals(1000, snapshot.getMax());
+        assertWithin(500, snapshot.getP50());
+        assertWithin(900, snapshot.getP90());
+        assertWithin(990, snapshot.getP99());
+        Assert.assertEquals(1000, snapshot.getP999());
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+        Assert.assertEquals(0, histogram.snapshot().getP99());
+    }
+
+    @Test
+    public void testDisabled() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.histogram("test");
+
+        long start = registry.startTimer();
+        Assert.assertEquals(0, start);
+        histogram.record(5);
+        registry.setEnabled(true);
+        // A measurement that was started while disabled is not recorded.
+        histogram.recordSince(start);
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+
+        histogram.recordSince(registry.startTimer());
+        Assert.assertEquals(1, histogram.snapshot().getCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue(String.format("expected %d, was %d", expected, actual),
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
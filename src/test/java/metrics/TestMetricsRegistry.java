@@ -0,0 +1,102 @@
+package metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+public class TestMetricsRegistry {
+    @Test
+    public void testSnapshot() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.setEnabled(true);
+        registry.histogram("latency").record(100);
+        registry.counter("timeouts").increment();
+        registry.counter("timeouts").add(2);
+        registry.registerGauge("depth", () -> 7);
+        registry.registerGauge("depth", () -> 4);
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        Assert.assertEquals(1, snapshot.getHistograms().get("latency").getCount());
+        Assert.assertEquals(3L, (long) snapshot.getCounters().get("timeouts"));
+        Assert.assertEquals(4L, (long) snapshot.getGauges().get("depth"));
+
+        Map<String, Double> values = snapshot.toMap();
+        Assert.assertEquals(100.0, values.get("latency.max"), 0);
+        Assert.assertEquals(3.0, values.get("timeouts"), 0);
+        Assert.assertEquals(4.0, values.get("depth"), 0);
+
+        // Disabled counters are left unchanged; values recorded before are kept.
+        registry.setEnabled(false);
+        registry.counter("timeouts").increment();
+        Assert.assertEquals(3L, (long) registry.snapshot().getCounters().get("timeouts"));
+
+        registry.reset();
+        Assert.assertEquals(0L, (long) registry.snapshot().getCounters().get("timeouts"));
+        registry.deregisterGauge("depth");
+        Assert.assertFalse(registry.snapshot().getGauges().containsKey("depth"));
+    }
+
+    @Test
+    public void testDeregisterReplacedGauge() {
+        MetricsRegistry registry = new MetricsRegistry();
+        LongSupplier first = () -> 7;
+        LongSupplier second = () -> 4;
+        registry.registerGauge("depth", first);
+        registry.registerGauge("depth", second);
+
+        // The gauge that was replaced can't remove its replacement.
+        registry.deregisterGauge("depth", first);
+        Assert.assertEquals(4L, (long) registry.snapshot().getGauges().get("depth"));
+        registry.deregisterGauge("depth", second);
+        Assert.assertFalse(registry.snapshot().getGauges().containsKey("depth"));
+    }
+
+    @Test
+    public void testReporting() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.setEnabled(true);
+        registry.histogram("latency").record(42);
+
+        CountDownLatch reported = new CountDownLatch(2);
+        AtomicReference<MetricsSnapshot> latest = new AtomicReference<>();
+        registry.startReporting(snapshot -> {
+            latest.set(snapshot);
+            reported.countDown();
+        }, 10);
+        try {
+            Assert.assertTrue(reported.await(5, TimeUnit.SECONDS));
+        } finally {
+            registry.stopReporting();
+        }
+        Assert.assertEquals(42, latest.get().getHistograms().get("latency").getMax());
+    }
+
+    @Test
+    public void testJmxReporter() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.setEnabled(true);
+        registry.counter("timeouts").increment();
+
+        String name = "CodeCollaborate:type=Metrics,name=TestMetricsRegistry";
+        JmxMetricsReporter reporter = new JmxMetricsReporter(name);
+        try {
+            reporter.report(registry.snapshot());
+
+            MetricsMXBean bean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName(name),
+                    MetricsMXBean.class);
+            Map<String, Double> metrics = bean.getMetrics();
+            Assert.assertEquals(1.0, metrics.get("timeouts"), 0);
+        } finally {
+            reporter.unregister();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(name)));
+    }
+}
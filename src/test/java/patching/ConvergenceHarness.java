@@ -0,0 +1,391 @@
+package patching;
+
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+import websocket.ReferenceServer.ReferenceServer;
+import websocket.WSManager;
+import websocket.models.ConnectionConfig;
+import websocket.models.Notification;
+import websocket.models.notifications.FileChangeNotification;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a number of simulated editors, each with its own WSManager and PatchManager, typing concurrently into the same
+ * file on a local ReferenceServer, and checks that all of them end up with the same contents as the server.
+ * <p>
+ * Each editor inserts or deletes a single character at a random position at a fixed rate. Everything is seeded, but
+ * thread scheduling still varies between runs, so the exact interleaving of edits does not repeat.
+ * <p>
+ * Can be run from the command line with key=value arguments, for example:
+ * <pre>
+ *     ConvergenceHarness clients=8 keystrokesPerSecond=30 durationMillis=10000 latencyMillis=40 jitterMillis=20
+ * </pre>
+ */
+public class ConvergenceHarness {
+    private int clients = 3;
+    private int keystrokesPerSecond = 20;
+    private long durationMillis = 2000;
+    private long latencyMillis = 0;
+    private long jitterMillis = 0;
+    private long seed = 0;
+    private long convergenceTimeoutMillis = 15000;
+    private String initialContents = "The quick brown fox\njumps over the lazy dog\n";
+
+    public ConvergenceHarness setClients(int clients) {
+        this.clients = clients;
+        return this;
+    }
+
+    public ConvergenceHarness setKeystrokesPerSecond(int keystrokesPerSecond) {
+        this.keystrokesPerSecond = keystrokesPerSecond;
+        return this;
+    }
+
+    public ConvergenceHarness setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    /**
+     * Sets the one-way delay of every message between the clients and the server.
+     *
+     * @param latencyMillis the fixed delay, in milliseconds
+     * @param jitterMillis  the maximum random delay added to the fixed delay, in milliseconds
+     * @return this harness
+     */
+    public ConvergenceHarness setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    public ConvergenceHarness setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public ConvergenceHarness setConvergenceTimeoutMillis(long convergenceTimeoutMillis) {
+        this.convergenceTimeoutMillis = convergenceTimeoutMillis;
+        return this;
+    }
+
+    public ConvergenceHarness setInitialContents(String initialContents) {
+        this.initialContents = initialContents;
+        return this;
+    }
+
+    /**
+     * Starts a server and the clients, types for the configured duration, and then waits for all clients to converge.
+     *
+     * @return the throughput, latency, and convergence of the run
+     * @throws Exception if the server or a client could not be started
+     */
+    public Result run() throws Exception {
+        // The clients record into their own registry, so that runs don't affect each other or the shared registry.
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.setEnabled(true);
+
+        ReferenceServer server = new ReferenceServer(0);
+        server.start();
+        List<SimulatedClient> simulatedClients = new ArrayList<>();
+        try {
+            server.setLatency(latencyMillis, jitterMillis, seed);
+            long fileID = server.createFile(initialContents);
+            for (int i = 0; i < clients; i++) {
+                simulatedClients.add(new SimulatedClient(i, server.getPort(), fileID, initialContents, seed + i, metrics));
+            }
+
+            long start = System.currentTimeMillis();
+            List<Thread> typists = new ArrayList<>();
+            for (SimulatedClient client : simulatedClients) {
+                Thread typist = new Thread(() -> client.type(start + durationMillis, keystrokesPerSecond));
+                typist.setName("ConvergenceHarnessTypist");
+                typist.start();
+                typists.add(typist);
+            }
+            for (Thread typist : typists) {
+                typist.join();
+            }
+            long typingMillis = System.currentTimeMillis() - start;
+
+            long keystrokes = 0;
+            for (SimulatedClient client : simulatedClients) {
+                keystrokes += client.keystrokes;
+            }
+
+            // Converged once every keystroke has been acknowledged, and every client matches the server.
+            long deadline = System.currentTimeMillis() + convergenceTimeoutMillis;
+            boolean converged = false;
+            while (!converged && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+                converged = isConverged(simulatedClients, server.getContents(fileID), keystrokes,
+                        metrics.histogram("patching.sendPatchToAckNanos").snapshot().getCount());
+            }
+            long totalMillis = System.currentTimeMillis() - start;
+
+            List<String> clientContents = new ArrayList<>();
+            for (SimulatedClient client : simulatedClients) {
+                clientContents.add(client.getContents());
+            }
+            return new Result(clients, keystrokes, server.getCommitCount(), typingMillis, totalMillis,
+                    metrics.histogram("patching.sendPatchToAckNanos").snapshot(),
+                    metrics.histogram("patching.notificationToApplyNanos").snapshot(),
+                    converged, server.getContents(fileID), clientContents);
+        } finally {
+            for (SimulatedClient client : simulatedClients) {
+                client.close();
+            }
+            server.stop();
+        }
+    }
+
+    private static boolean isConverged(List<SimulatedClient> clients, String serverContents, long keystrokes,
+                                       long acknowledged) {
+        if (acknowledged < keystrokes) {
+            return false;
+        }
+        for (SimulatedClient client : clients) {
+            if (!client.getContents().equals(serverContents)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ConvergenceHarness harness = new ConvergenceHarness();
+        long latencyMillis = 0;
+        long jitterMillis = 0;
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            switch (keyValue[0]) {
+                case "clients":
+                    harness.setClients(Integer.parseInt(keyValue[1]));
+                    break;
+                case "keystrokesPerSecond":
+                    harness.setKeystrokesPerSecond(Integer.parseInt(keyValue[1]));
+                    break;
+                case "durationMillis":
+                    harness.setDurationMillis(Long.parseLong(keyValue[1]));
+                    break;
+                case "latencyMillis":
+                    latencyMillis = Long.parseLong(keyValue[1]);
+                    break;
+                case "jitterMillis":
+                    jitterMillis = Long.parseLong(keyValue[1]);
+                    break;
+                case "seed":
+                    harness.setSeed(Long.parseLong(keyValue[1]));
+                    break;
+                case "convergenceTimeoutMillis":
+                    harness.setConvergenceTimeoutMillis(Long.parseLong(keyValue[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + keyValue[0]);
+            }
+        }
+        harness.setLatency(latencyMillis, jitterMillis);
+
+        Result result = harness.run();
+        System.out.println(result);
+        System.exit(result.isConverged() ? 0 : 1);
+    }
+
+    /**
+     * An editor with a single open file, connected to the server through its own WSManager and PatchManager.
+     */
+    private static class SimulatedClient {
+        private final long fileID;
+        private final Random random;
+        private final WSManager wsManager;
+        private final PatchManager patchManager;
+
+        // Guarded by this.
+        private String contents;
+        private long modificationStamp = 0;
+        private long version = 1;
+        long keystrokes = 0;
+
+        SimulatedClient(int index, int port, long fileID, String contents, long seed, MetricsRegistry metrics)
+                throws Exception {
+            this.fileID = fileID;
+            this.contents = contents;
+            this.random = new Random(seed);
+            this.patchManager = new PatchManager(metrics);
+
+            wsManager = new WSManager(new ConnectionConfig("ws://localhost:" + port + "/", false, 0), metrics);
+            wsManager.setAuthInfo("client" + index, "token" + index);
+            wsManager.registerNotificationHandler("File", "Change", patchManager);
+            patchManager.setWsMgr(wsManager);
+            patchManager.setNotifHandler(this::applyNotification);
+            patchManager.setModificationStamp(fileID, modificationStamp);
+            wsManager.connect();
+        }
+
+        /**
+         * Types at the given rate until the deadline.
+         */
+        void type(long deadline, int keystrokesPerSecond) {
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / keystrokesPerSecond;
+            long next = System.nanoTime();
+            while (System.currentTimeMillis() < deadline) {
+                typeKeystroke();
+                next += intervalNanos;
+                long sleepNanos = next - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private synchronized void typeKeystroke() {
+            Diff diff;
+            // Delete a quarter of the time, so that the document stays roughly the same size.
+            if (contents.length() > 0 && random.nextInt(4) == 0) {
+                int index = random.nextInt(contents.length());
+                diff = new Diff(false, index, contents.substring(index, index + 1));
+                contents = contents.substring(0, index) + contents.substring(index + 1);
+            } else {
+                int index = random.nextInt(contents.length() + 1);
+                String text = String.valueOf((char) ('a' + random.nextInt(26)));
+                diff = new Diff(true, index, text);
+                contents = contents.substring(0, index) + text + contents.substring(index);
+            }
+            keystrokes++;
+            modificationStamp++;
+
+            // The base version is the last version whose changes have all been applied to the contents. It is not
+            // raised by our own responses, since the changes they report as missing may not have been applied yet.
+            patchManager.sendPatch(fileID, new Patch[]{new Patch(version, Collections.singletonList(diff))},
+                    null, null);
+            patchManager.setModificationStamp(fileID, modificationStamp);
+        }
+
+        private synchronized Long applyNotification(Notification notification, long expectedModificationStamp) {
+            if (expectedModificationStamp != modificationStamp) {
+                return null;
+            }
+            FileChangeNotification fileChangeNotif = (FileChangeNotification) notification.getData();
+            List<Patch> patches = new ArrayList<>();
+            for (String change : fileChangeNotif.changes) {
+                patches.add(new Patch(change));
+            }
+            contents = patchManager.applyPatch(contents, patches);
+            version = Math.max(version, fileChangeNotif.fileVersion);
+            return ++modificationStamp;
+        }
+
+        synchronized String getContents() {
+            return contents;
+        }
+
+        void close() {
+            wsManager.close();
+            patchManager.close();
+        }
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Result {
+        private final int clients;
+        private final long keystrokes;
+        private final long commits;
+        private final long typingMillis;
+        private final long totalMillis;
+        private final Histogram.Snapshot sendToAck;
+        private final Histogram.Snapshot notificationToApply;
+        private final boolean converged;
+        private final String serverContents;
+        private final List<String> clientContents;
+
+        Result(int clients, long keystrokes, long commits, long typingMillis, long totalMillis,
+               Histogram.Snapshot sendToAck, Histogram.Snapshot notificationToApply, boolean converged,
+               String serverContents, List<String> clientContents) {
+            this.clients = clients;
+            this.keystrokes = keystrokes;
+            this.commits = commits;
+            this.typingMillis = typingMillis;
+            this.totalMillis = totalMillis;
+            this.sendToAck = sendToAck;
+            this.notificationToApply = notificationToApply;
+            this.converged = converged;
+            this.serverContents = serverContents;
+            this.clientContents = clientContents;
+        }
+
+        public long getKeystrokes() {
+            return keystrokes;
+        }
+
+        /**
+         * @return the number of File.Change requests the server committed; less than the number of keystrokes if
+         * patches were batched.
+         */
+        public long getCommits() {
+            return commits;
+        }
+
+        /**
+         * @return the number of keystrokes acknowledged per second, from the start of typing until convergence
+         */
+        public double getKeystrokesPerSecond() {
+            return keystrokes * 1000.0 / Math.max(1, totalMillis);
+        }
+
+        /**
+         * @return the latency from sendPatch to the server's acknowledgement
+         */
+        public Histogram.Snapshot getSendToAck() {
+            return sendToAck;
+        }
+
+        /**
+         * @return the latency from a notification's arrival to it being written to the editor
+         */
+        public Histogram.Snapshot getNotificationToApply() {
+            return notificationToApply;
+        }
+
+        public boolean isConverged() {
+            return converged;
+        }
+
+        public String getServerContents() {
+            return serverContents;
+        }
+
+        public List<String> getClientContents() {
+            return clientContents;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("clients=%d keystrokes=%d commits=%d typing=%dms total=%dms throughput=%.1f keystrokes/s%n",
+                    clients, keystrokes, commits, typingMillis, totalMillis, getKeystrokesPerSecond()));
+            builder.append(String.format("sendPatchToAck: p50=%.2fms p99=%.2fms max=%.2fms%n",
+                    sendToAck.getP50() / 1e6, sendToAck.getP99() / 1e6, sendToAck.getMax() / 1e6));
+            builder.append(String.format("notificationToApply: p50=%.2fms p99=%.2fms max=%.2fms%n",
+                    notificationToApply.getP50() / 1e6, notificationToApply.getP99() / 1e6, notificationToApply.getMax() / 1e6));
+            builder.append(converged ? "converged" : "DIVERGED");
+            if (!converged) {
+                builder.append(String.format("%nserver: %s", serverContents.replace("\n", "\\n")));
+                for (int i = 0; i < clientContents.size(); i++) {
+                    builder.append(String.format("%nclient %d: %s", i, clientContents.get(i).replace("\n", "\\n")));
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
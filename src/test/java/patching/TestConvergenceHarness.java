@@ -0,0 +1,37 @@
+package patching;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConvergenceHarness {
+    @Test(timeout = 60000)
+    public void testConcurrentClientsConverge() throws Exception {
+        ConvergenceHarness.Result result = new ConvergenceHarness()
+                .setClients(3)
+                .setKeystrokesPerSecond(20)
+                .setDurationMillis(1000)
+                .run();
+
+        Assert.assertTrue(result.toString(), result.isConverged());
+        Assert.assertTrue(result.getKeystrokes() > 0);
+        Assert.assertEquals(result.getKeystrokes(), result.getSendToAck().getCount());
+        for (String contents : result.getClientContents()) {
+            Assert.assertEquals(result.getServerContents(), contents);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentClientsConvergeWithLatencyAndJitter() throws Exception {
+        ConvergenceHarness.Result result = new ConvergenceHarness()
+                .setClients(4)
+                .setKeystrokesPerSecond(20)
+                .setDurationMillis(1000)
+                .setLatency(20, 30)
+                .setSeed(42)
+                .run();
+
+        Assert.assertTrue(result.toString(), result.isConverged());
+        Assert.assertTrue(result.getCommits() > 0);
+        Assert.assertTrue(result.getCommits() <= result.getKeystrokes());
+    }
+}
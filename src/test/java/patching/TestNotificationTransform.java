@@ -0,0 +1,83 @@
+package patching;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestNotificationTransform {
+
+    @Test
+    public void testTransformAgainstBatchingQueue() {
+        String[] changes = new String[]{"v3:\n3:+5:test3"};
+        List<Patch> batchingQueue = new ArrayList<>(Arrays.asList(
+                new Patch("v0:\n0:+5:test0"), new Patch("v1:\n1:+5:test1"), new Patch("v1:\n2:+5:test2")));
+
+        NotificationTransform transform = new NotificationTransform(changes);
+        String[] result = transform.transform(new PatchDoneQueue(), batchingQueue, 0);
+
+        Patch expected = new Patch(changes[0]).transform(true, batchingQueue);
+        Assert.assertEquals(1, result.length);
+        Assert.assertEquals(expected.toString(), result[0]);
+
+        // The actual queue must not be touched until commit
+        Assert.assertEquals("v0:\n0:+5:test0", batchingQueue.get(0).toString());
+    }
+
+    @Test
+    public void testIncrementalRetryMatchesFullTransform() {
+        String[] changes = new String[]{"v2:\n3:+5:test3", "v3:\n10:-4:abcd"};
+
+        PatchDoneQueue doneQueue = new PatchDoneQueue();
+        doneQueue.add(new Patch("v2:\n0:+2:ab"));
+
+        List<Patch> batchingQueue = new ArrayList<>(Arrays.asList(
+                new Patch("v3:\n0:+5:test0"), new Patch("v3:\n20:+5:test1")));
+
+        // First attempt, then simulate the user typing before the retry.
+        NotificationTransform incremental = new NotificationTransform(changes);
+        incremental.transform(doneQueue, batchingQueue, 0);
+        batchingQueue.add(new Patch("v3:\n1:+3:new"));
+        batchingQueue.add(new Patch("v3:\n12:-2:xy"));
+        String[] incrementalResult = incremental.transform(doneQueue, batchingQueue, 0);
+
+        NotificationTransform full = new NotificationTransform(changes);
+        String[] fullResult = full.transform(doneQueue, batchingQueue, 0);
+
+        Assert.assertArrayEquals(fullResult, incrementalResult);
+
+        // Both should write back the same queues.
+        List<Patch> incrementalQueue = new ArrayList<>(batchingQueue);
+        incremental.commit(doneQueue, incrementalQueue);
+        PatchDoneQueue otherDoneQueue = new PatchDoneQueue();
+        otherDoneQueue.add(new Patch("v2:\n0:+2:ab"));
+        List<Patch> fullQueue = new ArrayList<>(batchingQueue);
+        full = new NotificationTransform(changes);
+        full.transform(otherDoneQueue, fullQueue, 0);
+        full.commit(otherDoneQueue, fullQueue);
+
+        Assert.assertEquals(fullQueue, incrementalQueue);
+        Assert.assertEquals(otherDoneQueue.toString(), doneQueue.toString());
+    }
+
+    @Test
+    public void testRestartsWhenQueuesChange() {
+        String[] changes = new String[]{"v2:\n3:+5:test3"};
+
+        PatchDoneQueue doneQueue = new PatchDoneQueue();
+        List<Patch> batchingQueue = new ArrayList<>(Arrays.asList(new Patch("v1:\n0:+5:test0")));
+
+        NotificationTransform transform = new NotificationTransform(changes);
+        transform.transform(doneQueue, batchingQueue, 0);
+
+        // Simulate a late response, moving the batched patch into the done queue.
+        batchingQueue.remove(0);
+        doneQueue.add(new Patch("v1:\n0:+5:test0"));
+        String[] result = transform.transform(doneQueue, batchingQueue, 1);
+
+        String[] expected = new NotificationTransform(changes).transform(doneQueue, batchingQueue, 1);
+        Assert.assertArrayEquals(expected, result);
+    }
+}
@@ -3,9 +3,11 @@ package patching;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 public class TestPatch {
     @Test
@@ -168,6 +170,95 @@ public class TestPatch {
         Assert.assertEquals("v3:\n1:-8:deletion,\n1:+6:insert", newPatch.toString());
     }
 
+    @Test
+    public void testCompose() {
+        PatchManager mgr = new PatchManager();
+        String base = "The quick brown fox jumped over the lazy dog";
+
+        // Independent changes are merged into one patch
+        Patch patch1 = new Patch("v1:\n4:-6:quick+");
+        Patch patch2 = new Patch("v2:\n21:-5:over+");
+        Patch composed = patch1.compose(patch2);
+        Assert.assertEquals("v1:\n4:-6:quick+,\n27:-5:over+", composed.toString());
+        Assert.assertEquals(mgr.applyPatch(base, Arrays.asList(patch1, patch2)), mgr.applyPatch(base, Collections.singletonList(composed)));
+
+        // Consecutive typing is merged into a single insertion
+        patch1 = new Patch("v1:\n3:+1:a");
+        patch2 = new Patch("v2:\n4:+1:b");
+        Patch patch3 = new Patch("v3:\n5:+1:c");
+        composed = Patch.compose(Arrays.asList(patch1, patch2, patch3));
+        Assert.assertEquals("v1:\n3:+3:abc", composed.toString());
+
+        // Deleting inserted text cancels out
+        patch1 = new Patch("v1:\n3:+5:hello");
+        patch2 = new Patch("v2:\n4:-3:ell");
+        composed = patch1.compose(patch2);
+        Assert.assertEquals("v1:\n3:+2:ho", composed.toString());
+
+        // Deleting across inserted and original text
+        patch1 = new Patch("v1:\n4:+3:big");
+        patch2 = new Patch("v2:\n5:-6:igquic");
+        composed = patch1.compose(patch2);
+        Assert.assertEquals("v1:\n4:+1:b,\n4:-4:quic", composed.toString());
+        Assert.assertEquals(mgr.applyPatch(base, Arrays.asList(patch1, patch2)), mgr.applyPatch(base, Collections.singletonList(composed)));
+
+        try {
+            Patch.compose(new ArrayList<>());
+            Assert.fail("Should have failed; no patches to compose");
+        } catch (IllegalArgumentException e) {
+            // Succeed
+        }
+    }
+
+    @Test
+    public void testComposeRandom() {
+        PatchManager mgr = new PatchManager();
+        Random random = new Random(42);
+
+        for (int round = 0; round < 200; round++) {
+            String base = randomString(random, random.nextInt(30));
+            String content = base;
+            List<Patch> patches = new ArrayList<>();
+
+            for (int i = 0; i < 1 + random.nextInt(6); i++) {
+                Patch patch = randomPatch(random, content, i);
+                patches.add(patch);
+                content = mgr.applyPatch(content, Collections.singletonList(patch));
+            }
+
+            Patch composed = Patch.compose(patches);
+            Assert.assertEquals(String.format("Composing %s onto \"%s\"", patches, base),
+                    content, mgr.applyPatch(base, Collections.singletonList(composed)));
+        }
+    }
+
+    private Patch randomPatch(Random random, String content, long version) {
+        List<Diff> diffs = new ArrayList<>();
+        int index = 0;
+        while (index <= content.length() && diffs.size() < 4) {
+            index += random.nextInt(5);
+            if (index > content.length()) {
+                break;
+            }
+            if (random.nextBoolean() || index == content.length()) {
+                diffs.add(new Diff(true, index, randomString(random, 1 + random.nextInt(3))));
+            } else {
+                int length = 1 + random.nextInt(Math.min(3, content.length() - index));
+                diffs.add(new Diff(false, index, content.substring(index, index + length)));
+                index += length;
+            }
+        }
+        return new Patch(version, diffs);
+    }
+
+    private String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
     @Test
     public void testHashCode() {
         Diff diff1, diff2;
@@ -0,0 +1,98 @@
+package patching;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPatchDoneQueue {
+
+    @Test
+    public void testAddKeepsVersionOrder() {
+        PatchDoneQueue queue = new PatchDoneQueue();
+        queue.add(new Patch("v1:\n0:+1:a"));
+        queue.add(new Patch("v3:\n0:+1:c"));
+        queue.add(new Patch("v2:\n0:+1:b"));
+        queue.add(new Patch("v3:\n0:+1:d"));
+
+        Assert.assertEquals(4, queue.size());
+        Assert.assertEquals("v1:\n0:+1:a", queue.get(0).toString());
+        Assert.assertEquals("v2:\n0:+1:b", queue.get(1).toString());
+        Assert.assertEquals("v3:\n0:+1:c", queue.get(2).toString());
+        Assert.assertEquals("v3:\n0:+1:d", queue.get(3).toString());
+    }
+
+    @Test
+    public void testIndexOfBaseVersion() {
+        PatchDoneQueue queue = new PatchDoneQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.add(new Patch("v" + (i * 2) + ":\n0:+1:a"));
+        }
+
+        Assert.assertEquals(0, queue.indexOfBaseVersion(-1));
+        Assert.assertEquals(0, queue.indexOfBaseVersion(0));
+        Assert.assertEquals(1, queue.indexOfBaseVersion(1));
+        Assert.assertEquals(1, queue.indexOfBaseVersion(2));
+        Assert.assertEquals(9, queue.indexOfBaseVersion(18));
+        Assert.assertEquals(10, queue.indexOfBaseVersion(19));
+    }
+
+    @Test
+    public void testRemoveBelowWrapsAround() {
+        PatchDoneQueue queue = new PatchDoneQueue();
+
+        // Repeatedly fill and prune, so that the ring buffer wraps around and grows.
+        long version = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 13; i++) {
+                queue.add(new Patch("v" + version++ + ":\n0:+1:a"));
+            }
+            queue.removeBelow(version - 3);
+            Assert.assertEquals(3, queue.size());
+            Assert.assertEquals(version - 3, queue.get(0).getBaseVersion());
+            Assert.assertEquals(version - 1, queue.get(2).getBaseVersion());
+        }
+
+        queue.removeBelow(version);
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testSnapshotCopyOnWrite() {
+        PatchDoneQueue queue = new PatchDoneQueue();
+        queue.add(new Patch("v1:\n0:+1:a"));
+        queue.add(new Patch("v2:\n0:+1:b"));
+        queue.add(new Patch("v3:\n0:+1:c"));
+
+        PatchDoneQueue.Snapshot snapshot = queue.snapshot();
+        snapshot.set(1, new Patch("v2:\n5:+1:b"));
+
+        // Original queue must not change until the snapshot is committed
+        Assert.assertEquals("v2:\n0:+1:b", queue.get(1).toString());
+        Assert.assertEquals("v2:\n5:+1:b", snapshot.get(1).toString());
+        Assert.assertEquals("v3:\n0:+1:c", snapshot.get(2).toString());
+
+        snapshot.set(0, new Patch("v1:\n5:+1:a"));
+        Assert.assertEquals("v1:\n5:+1:a", snapshot.get(0).toString());
+        Assert.assertEquals("v2:\n5:+1:b", snapshot.get(1).toString());
+
+        snapshot.commit();
+        Assert.assertEquals("v1:\n5:+1:a", queue.get(0).toString());
+        Assert.assertEquals("v2:\n5:+1:b", queue.get(1).toString());
+        Assert.assertEquals("v3:\n0:+1:c", queue.get(2).toString());
+    }
+
+    @Test
+    public void testStaleSnapshot() {
+        PatchDoneQueue queue = new PatchDoneQueue();
+        queue.add(new Patch("v1:\n0:+1:a"));
+
+        PatchDoneQueue.Snapshot snapshot = queue.snapshot();
+        queue.add(new Patch("v2:\n0:+1:b"));
+
+        try {
+            snapshot.get(0);
+            Assert.fail("Should have failed; queue was modified after the snapshot was taken");
+        } catch (IllegalStateException e) {
+            // Succeed
+        }
+    }
+}
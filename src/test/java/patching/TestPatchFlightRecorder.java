@@ -0,0 +1,52 @@
+package patching;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+public class TestPatchFlightRecorder {
+    @Test
+    public void testRecordAndWrapAround() {
+        PatchFlightRecorder recorder = new PatchFlightRecorder(3);
+        Assert.assertEquals(4, recorder.getCapacity());
+        Assert.assertTrue(recorder.getEvents().isEmpty());
+
+        for (int i = 0; i < 6; i++) {
+            recorder.record(PatchFlightRecorder.EventType.ENQUEUE, i % 2, i, 0);
+        }
+
+        // Only the most recent events are kept, oldest first.
+        List<PatchFlightRecorder.Event> events = recorder.getEvents();
+        Assert.assertEquals(4, events.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(i + 2, events.get(i).getSequence());
+            Assert.assertEquals(i + 2, events.get(i).getFirstArg());
+        }
+        Assert.assertTrue(events.get(0).getTimestampNanos() <= events.get(3).getTimestampNanos());
+
+        List<PatchFlightRecorder.Event> fileEvents = recorder.getEvents(1);
+        Assert.assertEquals(2, fileEvents.size());
+        Assert.assertEquals(3, fileEvents.get(0).getFirstArg());
+        Assert.assertEquals(5, fileEvents.get(1).getFirstArg());
+    }
+
+    @Test
+    public void testDump() throws IOException {
+        PatchFlightRecorder recorder = new PatchFlightRecorder();
+        recorder.record(PatchFlightRecorder.EventType.SEND, 7, 2, 4);
+        recorder.record(PatchFlightRecorder.EventType.ACK, 8, 2, 5);
+
+        StringWriter writer = new StringWriter();
+        recorder.dump(writer, 7);
+        String dump = writer.toString();
+        Assert.assertTrue(dump, dump.matches("#0 -?\\d+ SEND file=7 patches=2 baseVersion=4\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new PatchFlightRecorder(0);
+    }
+}
@@ -0,0 +1,78 @@
+package patching;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class TestPatchJournal {
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("patchJournal");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testAppendAndRecover() throws IOException {
+        PatchJournal journal = new PatchJournal(directory);
+        journal.append(1, new Patch[]{new Patch("v1:\n0:+5:test0"), new Patch("v1:\n5:+5:test1")});
+        journal.append(2, new Patch[]{new Patch("v3:\n2:-2:ab")});
+        journal.append(1, new Patch[]{new Patch("v2:\n10:+5:test2")});
+        journal.close();
+
+        Map<Long, List<Patch>> recovered = new PatchJournal(directory).recover();
+        Assert.assertEquals(2, recovered.size());
+        Assert.assertEquals(Arrays.asList(new Patch("v1:\n0:+5:test0"), new Patch("v1:\n5:+5:test1"), new Patch("v2:\n10:+5:test2")),
+                recovered.get(1L));
+        Assert.assertEquals(Collections.singletonList(new Patch("v3:\n2:-2:ab")), recovered.get(2L));
+    }
+
+    @Test
+    public void testRewrite() throws IOException {
+        PatchJournal journal = new PatchJournal(directory);
+        journal.append(1, new Patch[]{new Patch("v1:\n0:+5:test0"), new Patch("v1:\n5:+5:test1")});
+        journal.sync();
+
+        // First patch acknowledged; only the second should remain
+        journal.rewrite(1, Collections.singletonList(new Patch("v1:\n5:+5:test1")));
+        journal.append(1, new Patch[]{new Patch("v2:\n10:+5:test2")});
+        Assert.assertEquals(Arrays.asList(new Patch("v1:\n5:+5:test1"), new Patch("v2:\n10:+5:test2")),
+                journal.recover().get(1L));
+
+        // Everything acknowledged
+        journal.rewrite(1, Collections.emptyList());
+        Assert.assertTrue(journal.recover().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws IOException {
+        PatchJournal journal = new PatchJournal(directory);
+        journal.append(1, new Patch[]{new Patch("v1:\n0:+5:test0")});
+        journal.close();
+
+        // Simulate a crash in the middle of writing the next record
+        Files.write(directory.resolve("1.journal"), new byte[]{0, 0, 0, 40, 'v', '1'}, StandardOpenOption.APPEND);
+
+        Map<Long, List<Patch>> recovered = new PatchJournal(directory).recover();
+        Assert.assertEquals(Collections.singletonList(new Patch("v1:\n0:+5:test0")), recovered.get(1L));
+    }
+}
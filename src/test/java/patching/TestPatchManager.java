@@ -2,10 +2,13 @@ package patching;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import metrics.MetricsRegistry;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import websocket.RttEstimator;
+import websocket.SendBuffer;
 import websocket.WSManager;
 import websocket.models.Notification;
 import websocket.models.Request;
@@ -14,15 +17,18 @@ import websocket.models.notifications.FileChangeNotification;
 import websocket.models.requests.FileChangeRequest;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Matchers.argThat;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.verify;
-import static patching.PatchManager.PATCH_TIMEOUT_MILLIS;
+import static org.mockito.Mockito.*;
 
 /**
  * Created by Benedict on 5/9/2016.
@@ -73,9 +79,55 @@ public class TestPatchManager {
         }
     }
 
+    @Test
+    public void testApplyPatchStreaming() throws IOException {
+        String baseString = "The quick brown fox jumped over the lazy dog";
+        Patch patch = Patch.compose(Arrays.asList(new Patch("v1:\n4:-6:quick+,\n44:+1:."), new Patch("v2:\n21:-5:over+")));
+
+        PatchManager mgr = new PatchManager();
+
+        StringWriter out = new StringWriter();
+        mgr.applyPatch(new StringReader(baseString), out, patch);
+        Assert.assertEquals("The brown fox jumped the lazy dog.", out.toString());
+
+        try {
+            mgr.applyPatch(new StringReader(baseString), new StringWriter(), new Patch("v1:\n4:-6:slow++"));
+            Assert.fail("Should have failed; deleted text does not match");
+        } catch (IllegalStateException e) {
+            // Succeed
+        }
+    }
+
+    @Test
+    public void testCatchUp() {
+        String baseString = "The quick brown fox jumped over the lazy dog";
+        String[] changes = new String[]{"v1:\n4:-6:quick+", "v2:\n38:+1:.", "v3:\n21:-5:over+"};
+
+        PatchManager mgr = new PatchManager();
+
+        // All changes since the base
+        byte[] result = mgr.catchUp(baseString.getBytes(StandardCharsets.UTF_8), changes, 1);
+        Assert.assertEquals("The brown fox jumped the lazy dog.", new String(result, StandardCharsets.UTF_8));
+
+        // Contents already at version 3; only the last change should be applied
+        result = mgr.catchUp("The brown fox jumped over the lazy dog.".getBytes(StandardCharsets.UTF_8), changes, 3);
+        Assert.assertEquals("The brown fox jumped the lazy dog.", new String(result, StandardCharsets.UTF_8));
+
+        // No changes
+        Assert.assertArrayEquals(baseString.getBytes(StandardCharsets.UTF_8),
+                mgr.catchUp(baseString.getBytes(StandardCharsets.UTF_8), new String[0], 1));
+
+        // The changes count line breaks as \n; a file with \r\n line breaks keeps them.
+        String[] lineChanges = new String[]{"v1:\n3:+1:X", "v2:\n7:-1:e", "v3:\n5:-2:d%0A"};
+        result = mgr.catchUp("ab\r\ncd\r\nef".getBytes(StandardCharsets.UTF_8), lineChanges, 1);
+        Assert.assertEquals("ab\r\nXcf", new String(result, StandardCharsets.UTF_8));
+        result = mgr.catchUp("ab\ncd\nef".getBytes(StandardCharsets.UTF_8), lineChanges, 1);
+        Assert.assertEquals("ab\nXcf", new String(result, StandardCharsets.UTF_8));
+    }
+
     @Test
     public void testNotificationHandler() throws IOException, ClassNotFoundException {
-        WSManager fakeWSMgr = mock(WSManager.class);
+        WSManager fakeWSMgr = mockWSManager();
         PatchManager patchMgr = new PatchManager();
         patchMgr.setWsMgr(fakeWSMgr);
         ArgumentCaptor<Request> argument = ArgumentCaptor.forClass(Request.class);
@@ -119,6 +171,206 @@ public class TestPatchManager {
         }
     }
 
+    @Test
+    public void testNotificationCoalescing() throws IOException, ClassNotFoundException, InterruptedException {
+        PatchManager patchMgr = new PatchManager();
+        patchMgr.setWsMgr(mockWSManager());
+        final Semaphore firstHandled = new Semaphore(0);
+        final Semaphore releaseFirst = new Semaphore(0);
+        final Semaphore coalescedHandled = new Semaphore(0);
+        final String[][] received = new String[2][];
+        final int[] calls = new int[1];
+
+        patchMgr.setNotifHandler((notification, expectedModificationStamp) -> {
+            received[calls[0]++] = ((FileChangeNotification) notification.getData()).changes.clone();
+            if (calls[0] == 1) {
+                // Block the handler, so that the following notifications queue up behind this one.
+                firstHandled.release();
+                releaseFirst.acquireUninterruptibly();
+            } else {
+                coalescedHandled.release();
+            }
+            return 1L;
+        });
+
+        patchMgr.handleNotification(createFileChangeNotification(1, 1, "[\"v1:\\n0:+1:a\"]"));
+        Assert.assertTrue(firstHandled.tryAcquire(1, TimeUnit.SECONDS));
+
+        patchMgr.handleNotification(createFileChangeNotification(1, 2, "[\"v2:\\n1:+1:b\"]"));
+        patchMgr.handleNotification(createFileChangeNotification(1, 3, "[\"v3:\\n2:+1:c\", \"v3:\\n3:+1:d\"]"));
+        releaseFirst.release();
+
+        Assert.assertTrue(coalescedHandled.tryAcquire(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, calls[0]);
+        Assert.assertArrayEquals(new String[]{"v1:\n0:+1:a"}, received[0]);
+        Assert.assertArrayEquals(new String[]{"v2:\n1:+1:b", "v3:\n2:+1:c", "v3:\n3:+1:d"}, received[1]);
+    }
+
+    @Test
+    public void testNoLingerWhileHoldingLock() throws IOException, ClassNotFoundException, InterruptedException {
+        PatchManager patchMgr = new PatchManager();
+        patchMgr.setWsMgr(mockWSManager());
+        final Semaphore firstHandled = new Semaphore(0);
+        final Semaphore releaseFirst = new Semaphore(0);
+        final Semaphore coalescedHandled = new Semaphore(0);
+        final int[] calls = new int[1];
+
+        patchMgr.setNotifHandler((notification, expectedModificationStamp) -> {
+            if (++calls[0] == 1) {
+                firstHandled.release();
+                releaseFirst.acquireUninterruptibly();
+            } else {
+                coalescedHandled.release();
+            }
+            return 1L;
+        });
+
+        long lingerMillis = PatchManager.NOTIFICATION_COALESCE_LINGER_MILLIS;
+        long maxDelayMillis = PatchManager.NOTIFICATION_COALESCE_MAX_DELAY_MILLIS;
+        PatchManager.NOTIFICATION_COALESCE_LINGER_MILLIS = 5000;
+        PatchManager.NOTIFICATION_COALESCE_MAX_DELAY_MILLIS = 5000;
+        try {
+            patchMgr.handleNotification(createFileChangeNotification(1, 1, "[\"v1:\\n0:+1:a\"]"));
+            Assert.assertTrue(firstHandled.tryAcquire(1, TimeUnit.SECONDS));
+
+            // The handler holds the lock while these queue up, so it merges them, but doesn't wait for any more.
+            patchMgr.handleNotification(createFileChangeNotification(1, 2, "[\"v2:\\n1:+1:b\"]"));
+            patchMgr.handleNotification(createFileChangeNotification(1, 3, "[\"v3:\\n2:+1:c\"]"));
+            releaseFirst.release();
+
+            Assert.assertTrue(coalescedHandled.tryAcquire(1, TimeUnit.SECONDS));
+            Assert.assertEquals(2, calls[0]);
+        } finally {
+            PatchManager.NOTIFICATION_COALESCE_LINGER_MILLIS = lingerMillis;
+            PatchManager.NOTIFICATION_COALESCE_MAX_DELAY_MILLIS = maxDelayMillis;
+            patchMgr.close();
+        }
+    }
+
+    @Test
+    public void testNewerModificationStampIsKept() throws IOException, ClassNotFoundException, InterruptedException {
+        PatchManager patchMgr = new PatchManager();
+        patchMgr.setWsMgr(mockWSManager());
+        patchMgr.setModificationStamp(1, 0);
+        final Semaphore handled = new Semaphore(0);
+        final List<Long> expectedStamps = Collections.synchronizedList(new ArrayList<>());
+
+        patchMgr.setNotifHandler((notification, expectedModificationStamp) -> {
+            expectedStamps.add(expectedModificationStamp);
+            if (expectedStamps.size() == 1) {
+                // The editor reports a change of its own while the notification is being written.
+                patchMgr.setModificationStamp(1, 5);
+            }
+            handled.release();
+            return expectedModificationStamp + 1;
+        });
+
+        patchMgr.handleNotification(createFileChangeNotification(1, 1, "[\"v1:\\n0:+1:a\"]"));
+        Assert.assertTrue(handled.tryAcquire(1, TimeUnit.SECONDS));
+
+        // The stamp returned for the first notification is older than the one the editor reported, and must not
+        // replace it.
+        patchMgr.handleNotification(createFileChangeNotification(1, 2, "[\"v2:\\n1:+1:b\"]"));
+        Assert.assertTrue(handled.tryAcquire(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(0L, 5L), expectedStamps);
+    }
+
+    @Test
+    public void testCloseDeregistersGauge() {
+        PatchManager patchMgr = new PatchManager();
+        Assert.assertTrue(MetricsRegistry.getInstance().snapshot().getGauges().containsKey("patching.notificationQueueDepth"));
+        patchMgr.close();
+        Assert.assertFalse(MetricsRegistry.getInstance().snapshot().getGauges().containsKey("patching.notificationQueueDepth"));
+    }
+
+    @Test
+    public void testCatchUpAppliesChangesOnce() throws IOException, ClassNotFoundException, InterruptedException {
+        PatchManager patchMgr = new PatchManager();
+        patchMgr.setWsMgr(mockWSManager());
+        final Semaphore handled = new Semaphore(0);
+        final List<String[]> received = Collections.synchronizedList(new ArrayList<>());
+
+        patchMgr.setNotifHandler((notification, expectedModificationStamp) -> {
+            received.add(((FileChangeNotification) notification.getData()).changes.clone());
+            handled.release();
+            return 1L;
+        });
+
+        // Live notifications are held back while the missed changes are pulled.
+        patchMgr.beginCatchUp(1);
+        patchMgr.handleNotification(createFileChangeNotification(1, 2, "[\"v2:\\n1:+1:b\"]"));
+        Assert.assertFalse(handled.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        // The pulled changes overlap with the held notification, which is then dropped.
+        patchMgr.finishCatchUp(1, createFileChangeNotification(1, 2, "[\"v1:\\n0:+1:a\", \"v2:\\n1:+1:b\"]"));
+        Assert.assertTrue(handled.tryAcquire(1, TimeUnit.SECONDS));
+        Assert.assertFalse(handled.tryAcquire(200, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(3, patchMgr.getMaxVersionSeen(1));
+
+        // Later notifications are applied as usual.
+        patchMgr.handleNotification(createFileChangeNotification(1, 3, "[\"v3:\\n2:+1:c\"]"));
+        Assert.assertTrue(handled.tryAcquire(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, received.size());
+        Assert.assertArrayEquals(new String[]{"v1:\n0:+1:a", "v2:\n1:+1:b"}, received.get(0));
+        Assert.assertArrayEquals(new String[]{"v3:\n2:+1:c"}, received.get(1));
+    }
+
+    @Test
+    public void testLatencyMetrics()throws IOException, ClassNotFoundException, InterruptedException {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.reset();
+        metrics.setEnabled(true);
+        try {
+            WSManager fakeWSMgr = mockWSManager();
+            PatchManager patchMgr = new PatchManager();
+            patchMgr.setWsMgr(fakeWSMgr);
+
+            Request[] req = new Request[1];
+            patchMgr.sendPatch(2, new Patch[]{new Patch("v0:\n0:+1:a")}, null, null);
+            Thread.sleep(100); // Wait for transformAndSendPatch thread to spool up
+            verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v0:\\n0:+1:a\"]")));
+            Assert.assertEquals(0, metrics.histogram("patching.sendPatchToAckNanos").snapshot().getCount());
+
+            Response resp = mapper.readValue("{\"Tag\":0,\"Status\":200,\"Data\":{\"FileVersion\":1,\"MissingPatches\":[],\"Changes\":[\"v0:\\n0:+1:a\"]}}",
+                    Response.class);
+            resp.parseData(FileChangeRequest.class);
+            req[0].getResponseHandler().handleResponse(resp);
+            Assert.assertEquals(1, metrics.histogram("patching.sendPatchToAckNanos").snapshot().getCount());
+            Assert.assertTrue(metrics.histogram("patching.transformNanos").snapshot().getCount() >= 1);
+
+            Semaphore applied = new Semaphore(0);
+            patchMgr.setNotifHandler((notification, expectedModificationStamp) -> {
+                applied.release();
+                return 1L;
+            });
+            Notification notif = createFileChangeNotification(2, 1, "[\"v1:\\n1:+1:b\"]");
+            notif.setReceivedNanos(metrics.startTimer());
+            patchMgr.handleNotification(notif);
+            Assert.assertTrue(applied.tryAcquire(1, TimeUnit.SECONDS));
+            Thread.sleep(100); // The latency is recorded after the handler returns
+            Assert.assertEquals(1, metrics.histogram("patching.notificationToApplyNanos").snapshot().getCount());
+            Assert.assertTrue(metrics.snapshot().getGauges().containsKey("patching.notificationQueueDepth"));
+
+            // The whole pipeline was recorded for the file.
+            List<PatchFlightRecorder.EventType> events = new ArrayList<>();
+            for (PatchFlightRecorder.Event event : patchMgr.getFlightRecorder().getEvents(2)) {
+                events.add(event.getType());
+            }
+            Assert.assertEquals(Arrays.asList(PatchFlightRecorder.EventType.ENQUEUE, PatchFlightRecorder.EventType.TRANSFORM,
+                    PatchFlightRecorder.EventType.SEND, PatchFlightRecorder.EventType.ACK, PatchFlightRecorder.EventType.APPLY), events);
+        } finally {
+            metrics.setEnabled(false);
+            metrics.reset();
+        }
+    }
+
+    private Notification createFileChangeNotification(long fileID, long baseVersion, String changes) throws IOException, ClassNotFoundException {
+        Notification notif = mapper.readValue(String.format("{\"Resource\": \"File\", \"Method\": \"Change\", \"ResourceID\": %d, \"Data\": {\"BaseFileVersion\": %d, \"FileVersion\": %d, \"Changes\": %s}}",
+                fileID, baseVersion, baseVersion + 1, changes), Notification.class);
+        notif.parseData();
+        return notif;
+    }
+
 //    @Test
 //    public void testSynchronizationFinishRequestBeforeHandleNotification() throws IOException, ClassNotFoundException {
 //        final String[] testText = {"jhb"};
@@ -196,7 +448,7 @@ public class TestPatchManager {
 
     @Test
     public void testSendBatchedRequest() throws IOException, ClassNotFoundException, InterruptedException {
-        WSManager fakeWSMgr = mock(WSManager.class);
+        WSManager fakeWSMgr = mockWSManager();
         PatchManager patchMgr = new PatchManager();
         patchMgr.setWsMgr(fakeWSMgr);
         ArgumentCaptor<Request> argument = ArgumentCaptor.forClass(Request.class);
@@ -267,30 +519,146 @@ public class TestPatchManager {
         resp.parseData(FileChangeRequest.class);
         req[0].getResponseHandler().handleResponse(resp);
 
-        patchMgr.sendPatch(1, new Patch[]{new Patch(patches[6]), new Patch(patches[7])}, null, null);
+        // Time out on the RTT estimate alone, so that the auto-release below doesn't wait for the minimum timeout.
+        long minPatchTimeoutMillis = PatchManager.MIN_PATCH_TIMEOUT_MILLIS;
+        PatchManager.MIN_PATCH_TIMEOUT_MILLIS = 0;
+        try {
+            patchMgr.sendPatch(1, new Patch[]{new Patch(patches[6]), new Patch(patches[7])}, null, null);
+
+            Thread.sleep(100); // Wait for transformAndSendPatch thread to spool up
+            verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v4:\\n20:+6:test10\",\"v4:\\n15:+6:test15\"]")));
 
-        Thread.sleep(100); // Wait for transformAndSendPatch thread to spool up
-        verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v4:\\n20:+6:test10\",\"v4:\\n15:+6:test15\"]")));
+            // Test the auto-release after timeout
+            patchMgr.sendPatch(1, new Patch[]{new Patch(patches[8])}, null, null);
 
-        // Test the auto-release after timeout
-        patchMgr.sendPatch(1, new Patch[]{new Patch(patches[8])}, null, null);
+            try {
+                Thread.sleep(fakeWSMgr.getRttEstimator().getTimeoutMillis() + 500);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            Thread.sleep(100); // Wait for transformAndSendPatch thread to spool up
+            verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v4:\\n20:+6:test10\",\"v4:\\n15:+6:test15\",\"v4:\\n20:+6:test16\"]")));
+        } finally {
+            PatchManager.MIN_PATCH_TIMEOUT_MILLIS = minPatchTimeoutMillis;
+        }
 
         try {
-            Thread.sleep(PATCH_TIMEOUT_MILLIS + 500);
+            Thread.sleep(1000);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+    }
 
-        Thread.sleep(100); // Wait for transformAndSendPatch thread to spool up
-        verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v4:\\n20:+6:test10\",\"v4:\\n15:+6:test15\",\"v4:\\n20:+6:test16\"]")));
+    @Test
+    public void testSaturatedSendBufferCoalesces() throws InterruptedException {
+        SendBuffer sendBuffer = new SendBuffer(10);
+        RttEstimator rttEstimator = new RttEstimator();
+        WSManager fakeWSMgr = mock(WSManager.class);
+        when(fakeWSMgr.getSendBuffer()).thenReturn(sendBuffer);
+        when(fakeWSMgr.getRttEstimator()).thenReturn(rttEstimator);
+        PatchManager patchMgr = new PatchManager();
+        patchMgr.setWsMgr(fakeWSMgr);
+        Request[] req = new Request[1];
+
+        // The first patch waits for the buffer to drain, while the second is enqueued behind it.
+        sendBuffer.reserve(11);
+        patchMgr.sendPatch(2, new Patch[]{new Patch("v0:\n0:+5:test0")}, null, null);
+        Thread.sleep(50);
+        patchMgr.sendPatch(2, new Patch[]{new Patch("v0:\n5:+5:test1")}, null, null);
+        verify(fakeWSMgr, never()).sendAuthenticatedRequest(any(Request.class));
+
+        // The buffer never drained, so both patches are sent as one.
+        Thread.sleep(rttEstimator.getTimeoutMillis() + 100);
+        verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v0:\\n0:+10:test0test1\"]")));
+    }
 
+    @Test
+    public void testLateAckAfterCompaction() throws IOException, ClassNotFoundException, InterruptedException {
+        SendBuffer sendBuffer = new SendBuffer(10);
+        RttEstimator rttEstimator = mock(RttEstimator.class);
+        when(rttEstimator.getTimeoutMillis()).thenReturn(100L);
+        WSManager fakeWSMgr = mock(WSManager.class);
+        when(fakeWSMgr.getSendBuffer()).thenReturn(sendBuffer);
+        when(fakeWSMgr.getRttEstimator()).thenReturn(rttEstimator);
+        writeRequestsImmediately(fakeWSMgr);
+        PatchManager patchMgr = new PatchManager();
+        patchMgr.setWsMgr(fakeWSMgr);
+        Request[] req = new Request[1];
+
+        long minPatchTimeoutMillis = PatchManager.MIN_PATCH_TIMEOUT_MILLIS;
+        PatchManager.MIN_PATCH_TIMEOUT_MILLIS = 0;
         try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            patchMgr.sendPatch(2, new Patch[]{new Patch("v0:\n0:+1:a")}, null, null);
+            Thread.sleep(50);
+            verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v0:\\n0:+1:a\"]")));
+            Request timedOut = req[0];
+
+            // While the first request is unacknowledged, the connection saturates, so the retry compacts the queue.
+            sendBuffer.reserve(11);
+            patchMgr.sendPatch(2, new Patch[]{new Patch("v0:\n1:+1:b")}, null, null);
+            patchMgr.sendPatch(2, new Patch[]{new Patch("v0:\n2:+1:c")}, null, null);
+            Thread.sleep(250);
+            verify(fakeWSMgr, atLeastOnce()).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v0:\\n0:+1:a\",\"v0:\\n1:+2:bc\"]")));
+
+            // The late acknowledgement only removes the patch that was sent in the first request.
+            Response resp = mapper.readValue("{\"Tag\":0,\"Status\":200,\"Data\":{\"FileVersion\":1,\"MissingPatches\":[],\"Changes\":[\"v0:\\n0:+1:a\"]}}",
+                    Response.class);
+            resp.parseData(FileChangeRequest.class);
+            timedOut.getResponseHandler().handleResponse(resp);
+            Thread.sleep(250);
+            verify(fakeWSMgr, atLeastOnce()).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v1:\\n1:+2:bc\"]")));
+        } finally {
+            PatchManager.MIN_PATCH_TIMEOUT_MILLIS = minPatchTimeoutMillis;
+        }
+    }
+
+    @Test
+    public void testPatchTimeoutStartsWhenWritten() throws InterruptedException {
+        RttEstimator rttEstimator = mock(RttEstimator.class);
+        when(rttEstimator.getTimeoutMillis()).thenReturn(100L);
+        WSManager fakeWSMgr = mock(WSManager.class);
+        when(fakeWSMgr.getSendBuffer()).thenReturn(new SendBuffer(SendBuffer.DEFAULT_CAPACITY));
+        when(fakeWSMgr.getRttEstimator()).thenReturn(rttEstimator);
+        PatchManager patchMgr = new PatchManager();
+        patchMgr.setWsMgr(fakeWSMgr);
+        Request[] req = new Request[1];
+
+        long minPatchTimeoutMillis = PatchManager.MIN_PATCH_TIMEOUT_MILLIS;
+        PatchManager.MIN_PATCH_TIMEOUT_MILLIS = 0;
+        try {
+            // The request sits in the send queue for longer than the timeout; it is not retried until it is written.
+            patchMgr.sendPatch(2, new Patch[]{new Patch("v0:\n0:+1:a")}, null, null);
+            Thread.sleep(300);
+            verify(fakeWSMgr).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v0:\\n0:+1:a\"]")));
+
+            req[0].getSendHandler().run();
+            Thread.sleep(300);
+            verify(fakeWSMgr, times(2)).sendAuthenticatedRequest(argThat(createArgChecker(req, "[\"v0:\\n0:+1:a\"]")));
+        } finally {
+            PatchManager.MIN_PATCH_TIMEOUT_MILLIS = minPatchTimeoutMillis;
         }
     }
 
+    private static WSManager mockWSManager() {
+        WSManager fakeWSMgr = mock(WSManager.class);
+        when(fakeWSMgr.getSendBuffer()).thenReturn(new SendBuffer(SendBuffer.DEFAULT_CAPACITY));
+        when(fakeWSMgr.getRttEstimator()).thenReturn(new RttEstimator());
+        writeRequestsImmediately(fakeWSMgr);
+        return fakeWSMgr;
+    }
+
+    // Makes the mock report every request as written as soon as it is sent.
+    private static void writeRequestsImmediately(WSManager fakeWSMgr) {
+        doAnswer(invocation -> {
+            Runnable sendHandler = ((Request) invocation.getArguments()[0]).getSendHandler();
+            if (sendHandler != null) {
+                sendHandler.run();
+            }
+            return null;
+        }).when(fakeWSMgr).sendAuthenticatedRequest(any(Request.class));
+    }
+
     private ArgumentMatcher<Request> createArgChecker(Request[] req, String str) {
         return new ArgumentMatcher<Request>() {
             @Override
@@ -0,0 +1,323 @@
+package requestMgmt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dataMgmt.ContentStore;
+import dataMgmt.DataManager;
+import dataMgmt.FileContentCache;
+import dataMgmt.MetadataManager;
+import dataMgmt.models.FileMetadata;
+import patching.PatchManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import patching.Diff;
+import patching.Patch;
+import websocket.SendBuffer;
+import websocket.TrafficClass;
+import websocket.WSManager;
+import websocket.models.File;
+import websocket.models.Project;
+import websocket.models.Request;
+import websocket.models.Response;
+import websocket.models.requests.FileChangeRequest;
+import websocket.models.requests.FileCreateRequest;
+import websocket.models.requests.FileDeleteRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.*;
+
+public class TestBulkUpload {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private Path directory;
+    private int defaultChunkSize;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("bulkUpload");
+        defaultChunkSize = BulkUpload.CHUNK_SIZE;
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        BulkUpload.CHUNK_SIZE = defaultChunkSize;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testNormalizeLineEndings() {
+        byte[] lf = "a\nb\n".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame(lf, RequestManager.normalizeLineEndings(lf));
+        Assert.assertArrayEquals("a\nb\n\r".getBytes(StandardCharsets.UTF_8),
+                RequestManager.normalizeLineEndings("a\r\nb\r\n\r".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertArrayEquals(new byte[0], RequestManager.normalizeLineEndings(new byte[0]));
+    }
+
+    @Test
+    public void testCreateFiles() throws IOException, InterruptedException {
+        BulkUpload.CHUNK_SIZE = 12;
+        String largeText = "0123456789abcdefghij\nklmno";
+        List<FileUpload> uploads = Arrays.asList(
+                upload("small.txt", "small\r\nfile\r\n"),
+                upload("large.txt", largeText),
+                new FileUpload("missing.txt", directory.resolve("missing.txt").toString(), "."));
+
+        // Fake server; keeps the content of every file it was sent.
+        Map<Long, StringBuilder> serverFiles = new HashMap<>();
+        AtomicInteger nextFileID = new AtomicInteger(1);
+        WSManager wsManager = mock(WSManager.class);
+        doAnswer(invocation -> {
+            Request request = (Request) invocation.getArguments()[0];
+            JsonNode data = mapper.valueToTree(request.data);
+            String responseJson;
+            synchronized (serverFiles) {
+                if (request.data instanceof FileCreateRequest) {
+                    long fileID = nextFileID.getAndIncrement();
+                    serverFiles.put(fileID, new StringBuilder(new String(data.get("FileBytes").binaryValue(), StandardCharsets.UTF_8)));
+                    responseJson = String.format("{\"Tag\":%d,\"Status\":200,\"Data\":{\"FileID\":%d}}", request.tag, fileID);
+                } else {
+                    Assert.assertEquals(TrafficClass.BULK, request.getTrafficClass());
+                    Patch patch = new Patch(data.get("Changes").get(0).asText());
+                    Diff diff = patch.getDiffs().get(0);
+                    StringBuilder content = serverFiles.get(data.get("FileID").asLong());
+                    Assert.assertEquals(content.length(), diff.getStartIndex());
+                    content.append(diff.getChanges());
+                    responseJson = String.format("{\"Tag\":%d,\"Status\":200,\"Data\":{\"FileVersion\":%d}}", request.tag, patch.getBaseVersion() + 1);
+                }
+            }
+            Response response = mapper.readValue(responseJson, Response.class);
+            response.parseData(request.data.getClass());
+            request.getResponseHandler().handleResponse(response);
+            return null;
+        }).when(wsManager).sendAuthenticatedRequest(any(Request.class));
+        when(wsManager.getSendBuffer()).thenReturn(new SendBuffer(SendBuffer.DEFAULT_CAPACITY));
+
+        MetadataManager metadataManager = mock(MetadataManager.class);
+        DataManager dataManager = mock(DataManager.class);
+        when(dataManager.getMetadataManager()).thenReturn(metadataManager);
+        when(dataManager.getContentStore()).thenReturn(mock(ContentStore.class));
+        FileContentCache cache = mock(FileContentCache.class);
+        when(dataManager.getFileContentCache()).thenReturn(cache);
+
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        int[] lastProgress = new int[2];
+        RequestManager requestManager = createRequestManager(dataManager, wsManager);
+        requestManager.createFiles(1, uploads, new IUploadProgressHandler() {
+            @Override
+            public void handleUploadProgress(int filesCompleted, int filesFailed, int filesTotal, long bytesCompleted) {
+                Assert.assertEquals(3, filesTotal);
+                if (filesCompleted + filesFailed == filesTotal) {
+                    lastProgress[0] = filesCompleted;
+                    lastProgress[1] = filesFailed;
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void handleUploadFailed(FileUpload file, String message) {
+                failures.add(file.getName());
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(2, lastProgress[0]);
+        Assert.assertEquals(1, lastProgress[1]);
+        Assert.assertEquals(Collections.singletonList("missing.txt"), failures);
+        Assert.assertTrue(serverFiles.values().stream().anyMatch(content -> content.toString().equals("small\nfile\n")));
+        Assert.assertTrue(serverFiles.values().stream().anyMatch(content -> content.toString().equals(largeText)));
+
+        // The large file was created with its first chunk, then had two more appended.
+        ArgumentCaptor<FileMetadata> metadata = ArgumentCaptor.forClass(FileMetadata.class);
+        verify(metadataManager, times(2)).putFileMetadata(anyString(), eq(1L), metadata.capture());
+        for (FileMetadata fMeta : metadata.getAllValues()) {
+            Assert.assertEquals("large.txt".equals(fMeta.getFilename()) ? 3 : 1, fMeta.getVersion());
+        }
+        verify(wsManager, times(2)).sendAuthenticatedRequest(argThat(new RequestDataMatcher(FileChangeRequest.class)));
+
+        // The created contents are cached, so that a later pull only needs the changes since.
+        verify(cache).put(anyLong(), eq(3L), eq(largeText.getBytes(StandardCharsets.UTF_8)));
+        verify(cache).put(anyLong(), eq(1L), eq("small\nfile\n".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testChunkEndCountsBytes() {
+        BulkUpload.CHUNK_SIZE = 4;
+        // 1, 2, 3 and 4 bytes in UTF-8; the last one is a surrogate pair.
+        String text = "a\u00e9\u20ac\ud83d\ude00";
+        Assert.assertEquals(2, BulkUpload.chunkEnd(text, 0));
+        Assert.assertEquals(3, BulkUpload.chunkEnd(text, 2));
+        Assert.assertEquals(5, BulkUpload.chunkEnd(text, 3));
+
+        // A code point larger than a chunk is still sent whole.
+        BulkUpload.CHUNK_SIZE = 2;
+        Assert.assertEquals(5, BulkUpload.chunkEnd(text, 3));
+    }
+
+    @Test
+    public void testFailedAppendDeletesFile() throws IOException, InterruptedException {
+        BulkUpload.CHUNK_SIZE = 4;
+        FileUpload large = upload("large.txt", "0123456789");
+
+        List<Long> deleted = Collections.synchronizedList(new ArrayList<>());
+        WSManager wsManager = mock(WSManager.class);
+        doAnswer(invocation -> {
+            Request request = (Request) invocation.getArguments()[0];
+            String responseJson;
+            if (request.data instanceof FileCreateRequest) {
+                responseJson = String.format("{\"Tag\":%d,\"Status\":200,\"Data\":{\"FileID\":7}}", request.tag);
+            } else if (request.data instanceof FileDeleteRequest) {
+                deleted.add(mapper.valueToTree(request.data).get("FileID").asLong());
+                responseJson = String.format("{\"Tag\":%d,\"Status\":200,\"Data\":{}}", request.tag);
+            } else {
+                responseJson = String.format("{\"Tag\":%d,\"Status\":500,\"Data\":{}}", request.tag);
+            }
+            Response response = mapper.readValue(responseJson, Response.class);
+            response.parseData(request.data.getClass());
+            request.getResponseHandler().handleResponse(response);
+            return null;
+        }).when(wsManager).sendAuthenticatedRequest(any(Request.class));
+        when(wsManager.getSendBuffer()).thenReturn(new SendBuffer(SendBuffer.DEFAULT_CAPACITY));
+
+        MetadataManager metadataManager = mock(MetadataManager.class);
+        DataManager dataManager = mock(DataManager.class);
+        when(dataManager.getMetadataManager()).thenReturn(metadataManager);
+        when(dataManager.getContentStore()).thenReturn(mock(ContentStore.class));
+
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        createRequestManager(dataManager, wsManager).createFiles(1, Collections.singletonList(large), new IUploadProgressHandler() {
+            @Override
+            public void handleUploadProgress(int filesCompleted, int filesFailed, int filesTotal, long bytesCompleted) {
+                Assert.assertEquals(0, filesCompleted);
+                Assert.assertEquals(1, filesFailed);
+                done.countDown();
+            }
+
+            @Override
+            public void handleUploadFailed(FileUpload file, String message) {
+                failures.add(file.getName());
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // The truncated file was deleted before the failure was reported, and was never added to the metadata.
+        Assert.assertEquals(Collections.singletonList(7L), deleted);
+        Assert.assertEquals(Collections.singletonList("large.txt"), failures);
+        verify(metadataManager, never()).putFileMetadata(anyString(), anyLong(), any(FileMetadata.class));
+        verify(metadataManager, never()).fileDeleted(anyLong());
+    }
+
+    @Test
+    public void testCreateFilesSkipsUnchanged() throws IOException, InterruptedException {
+        FileUpload unchanged = upload("unchanged.txt", "same\r\ncontents");
+        FileMetadata fMeta = new FileMetadata();
+        fMeta.setFileID(5);
+        fMeta.setContentHash(1, ContentStore.hash("same\ncontents".getBytes(StandardCharsets.UTF_8)));
+
+        MetadataManager metadataManager = mock(MetadataManager.class);
+        when(metadataManager.getFileMetadata(unchanged.getFullPath())).thenReturn(fMeta);
+        when(metadataManager.getProjectIDForFileID(5)).thenReturn(1L);
+        ContentStore contentStore = mock(ContentStore.class);
+        PatchManager patchManager = mock(PatchManager.class);
+        when(patchManager.getMaxVersionSeen(5)).thenReturn(1L);
+        DataManager dataManager = mock(DataManager.class);
+        when(dataManager.getMetadataManager()).thenReturn(metadataManager);
+        when(dataManager.getContentStore()).thenReturn(contentStore);
+        when(dataManager.getPatchManager()).thenReturn(patchManager);
+        WSManager wsManager = mock(WSManager.class);
+        when(wsManager.getSendBuffer()).thenReturn(new SendBuffer(SendBuffer.DEFAULT_CAPACITY));
+
+        CountDownLatch done = new CountDownLatch(1);
+        createRequestManager(dataManager, wsManager).createFiles(1, Collections.singletonList(unchanged), new IUploadProgressHandler() {
+            @Override
+            public void handleUploadProgress(int filesCompleted, int filesFailed, int filesTotal, long bytesCompleted) {
+                Assert.assertEquals(1, filesCompleted);
+                done.countDown();
+            }
+
+            @Override
+            public void handleUploadFailed(FileUpload file, String message) {
+                Assert.fail(message);
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        verify(wsManager, never()).sendAuthenticatedRequest(any(Request.class));
+        verify(contentStore).recordBytesSaved(13);
+
+        // A file with different contents at the same path is sent.
+        createRequestManager(dataManager, wsManager).createFile("unchanged.txt", unchanged.getFullPath(), ".", 1,
+                "new contents".getBytes(StandardCharsets.UTF_8));
+        verify(wsManager, times(1)).sendAuthenticatedRequest(any(Request.class));
+
+        // Once a later version has been seen, the recorded hash is stale, and the same contents are sent again.
+        when(patchManager.getMaxVersionSeen(5)).thenReturn(2L);
+        createRequestManager(dataManager, wsManager).createFile("unchanged.txt", unchanged.getFullPath(), ".", 1,
+                "same\ncontents".getBytes(StandardCharsets.UTF_8));
+        verify(wsManager, times(2)).sendAuthenticatedRequest(any(Request.class));
+    }
+
+    private FileUpload upload(String name, String contents) throws IOException {
+        Path path = directory.resolve(name);
+        Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+        return new FileUpload(name, path.toString(), ".");
+    }
+
+    private static RequestManager createRequestManager(DataManager dataManager, WSManager wsManager) {
+        return new RequestManager(dataManager, wsManager,
+                () -> Assert.fail("Error sending request"), (e, m) -> Assert.fail("Wrong status code")) {
+            @Override
+            public void finishSubscribeToProject(long id, File[] files) {
+            }
+
+            @Override
+            public void finishCreateProject(Project project) {
+            }
+
+            @Override
+            public void finishDeleteProject(Project project) {
+            }
+
+            @Override
+            public void finishRenameFile(FileMetadata fMeta) {
+            }
+
+            @Override
+            public void finishMoveFile(FileMetadata fMeta) {
+            }
+
+            @Override
+            public void finishPullFile(long fileID, long version, byte[] contents) {
+            }
+        };
+    }
+
+    private static class RequestDataMatcher extends org.mockito.ArgumentMatcher<Request> {
+        private final Class<?> dataClass;
+
+        RequestDataMatcher(Class<?> dataClass) {
+            this.dataClass = dataClass;
+        }
+
+        @Override
+        public boolean matches(Object argument) {
+            return argument instanceof Request && dataClass.isInstance(((Request) argument).data);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package requestMgmt;
+
+import dataMgmt.DataManager;
+import dataMgmt.FileContentCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import websocket.models.File;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.mockito.Mockito.*;
+
+public class TestFilePrefetcher {
+    private final int defaultMaxConcurrentPrefetches = FilePrefetcher.MAX_CONCURRENT_PREFETCHES;
+    private final long defaultPullTimeoutMillis = FilePrefetcher.PULL_TIMEOUT_MILLIS;
+
+    @After
+    public void cleanup() {
+        FilePrefetcher.MAX_CONCURRENT_PREFETCHES = defaultMaxConcurrentPrefetches;
+        FilePrefetcher.PULL_TIMEOUT_MILLIS = defaultPullTimeoutMillis;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPrefetchOrder() {
+        FilePrefetcher.MAX_CONCURRENT_PREFETCHES = 2;
+
+        FileContentCache cache = mock(FileContentCache.class);
+        FileContentCache.CachedFile upToDate = mock(FileContentCache.CachedFile.class);
+        when(upToDate.getVersion()).thenReturn(3L);
+        FileContentCache.CachedFile outdated = mock(FileContentCache.CachedFile.class);
+        when(outdated.getVersion()).thenReturn(1L);
+        when(outdated.getSize()).thenReturn(10);
+        when(cache.get(4)).thenReturn(outdated);
+        when(cache.get(5)).thenReturn(upToDate);
+        DataManager dataManager = mock(DataManager.class);
+        when(dataManager.getFileContentCache()).thenReturn(cache);
+
+        // Record the order of the pulls, and hold on to their callbacks.
+        List<Long> pulled = new ArrayList<>();
+        Map<Long, Consumer<Boolean>> callbacks = new HashMap<>();
+        RequestManager requestManager = mock(RequestManager.class);
+        doAnswer(invocation -> {
+            long fileID = (long) invocation.getArguments()[0];
+            pulled.add(fileID);
+            callbacks.put(fileID, (Consumer<Boolean>) invocation.getArguments()[1]);
+            return null;
+        }).when(requestManager).pullFile(anyLong(), any(Consumer.class));
+
+        FilePrefetcher prefetcher = new FilePrefetcher(requestManager, dataManager);
+        prefetcher.enqueue(1, new File[]{
+                new File(1, "1.txt", "a", 2, "", ""),
+                new File(2, "2.txt", "b", 2, "", ""),
+                new File(3, "3.txt", "b", 2, "", ""),
+                new File(4, "4.txt", "a", 2, "", ""),
+                new File(5, "5.txt", "c", 3, "", ""),
+        });
+
+        // File 5 is already cached; file 4 is known to be small.
+        Assert.assertTrue(prefetcher.isMaterialized(5));
+        Assert.assertEquals(Arrays.asList(4L, 1L), pulled);
+        Assert.assertEquals(2, prefetcher.getPendingCount());
+
+        // Opening a file pulls it immediately, and prefers its directory afterwards.
+        prefetcher.open(3);
+        Assert.assertEquals(Arrays.asList(4L, 1L, 3L), pulled);
+        callbacks.get(4L).accept(true);
+        Assert.assertEquals(Arrays.asList(4L, 1L, 3L, 2L), pulled);
+        Assert.assertEquals(0, prefetcher.getPendingCount());
+
+        callbacks.get(3L).accept(true);
+        callbacks.get(1L).accept(false);
+        Assert.assertTrue(prefetcher.isMaterialized(3));
+        Assert.assertTrue(prefetcher.isMaterialized(4));
+        Assert.assertFalse(prefetcher.isMaterialized(1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRecentlyOpenedFirstAndCancel() {
+        FilePrefetcher.MAX_CONCURRENT_PREFETCHES = 1;
+
+        DataManager dataManager = mock(DataManager.class);
+        when(dataManager.getFileContentCache()).thenReturn(mock(FileContentCache.class));
+        List<Long> pulled = new ArrayList<>();
+        RequestManager requestManager = mock(RequestManager.class);
+        doAnswer(invocation -> {
+            pulled.add((long) invocation.getArguments()[0]);
+            return null;
+        }).when(requestManager).pullFile(anyLong(), any(Consumer.class));
+
+        FilePrefetcher prefetcher = new FilePrefetcher(requestManager, dataManager);
+        prefetcher.markRecentlyOpened(Collections.singletonList(3L));
+        prefetcher.enqueue(1, new File[]{
+                new File(1, "1.txt", "a", 1, "", ""),
+                new File(2, "2.txt", "a", 1, "", ""),
+                new File(3, "3.txt", "a", 1, "", ""),
+        });
+        Assert.assertEquals(Collections.singletonList(3L), pulled);
+
+        prefetcher.cancel(1);
+        Assert.assertEquals(0, prefetcher.getPendingCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLostPullReleasesSlot() throws InterruptedException {
+        FilePrefetcher.MAX_CONCURRENT_PREFETCHES = 1;
+        FilePrefetcher.PULL_TIMEOUT_MILLIS = 100;
+
+        DataManager dataManager = mock(DataManager.class);
+        when(dataManager.getFileContentCache()).thenReturn(mock(FileContentCache.class));
+        List<Long> pulled = Collections.synchronizedList(new ArrayList<>());
+        Map<Long, Consumer<Boolean>> callbacks = Collections.synchronizedMap(new HashMap<>());
+        RequestManager requestManager = mock(RequestManager.class);
+        doAnswer(invocation -> {
+            long fileID = (long) invocation.getArguments()[0];
+            pulled.add(fileID);
+            callbacks.put(fileID, (Consumer<Boolean>) invocation.getArguments()[1]);
+            return null;
+        }).when(requestManager).pullFile(anyLong(), any(Consumer.class));
+
+        FilePrefetcher prefetcher = new FilePrefetcher(requestManager, dataManager);
+        prefetcher.enqueue(1, new File[]{
+                new File(1, "1.txt", "a", 1, "", ""),
+                new File(2, "2.txt", "a", 1, "", ""),
+        });
+        Assert.assertEquals(Collections.singletonList(1L), pulled);
+
+        // The response to the first pull never arrives; the next file is pulled once it times out.
+        Thread.sleep(500);
+        Assert.assertEquals(Arrays.asList(1L, 2L), pulled);
+        Assert.assertFalse(prefetcher.isMaterialized(1));
+
+        // A response that arrives after all still counts.
+        callbacks.get(1L).accept(true);
+        Assert.assertTrue(prefetcher.isMaterialized(1));
+    }
+}
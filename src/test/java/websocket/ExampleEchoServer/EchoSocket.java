@@ -6,6 +6,8 @@ import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
 
+import java.nio.ByteBuffer;
+
 @WebSocket
 public class EchoSocket {
     private static final Logger LOG = Log.getLogger(EchoSocket.class);
@@ -34,4 +36,11 @@ public class EchoSocket {
             this.remote.sendStringByFuture(message);
         }
     }
+
+    @OnWebSocketMessage
+    public void onWebSocketBinary(byte[] payload, int offset, int length) {
+        if (this.session != null && this.session.isOpen() && this.remote != null) {
+            this.remote.sendBytesByFuture(ByteBuffer.wrap(payload, offset, length));
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,309 @@
+package websocket.ReferenceServer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import patching.Patch;
+import patching.PatchManager;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the CodeCollaborate server, implementing the File.Change request and notification with
+ * server-side operational transformation, so that PatchManager clients can be tested against each other offline.
+ * <p>
+ * Every request is handled on a single thread, so requests are totally ordered. A File.Change request is transformed
+ * against all changes committed since the lowest base version of its patches, committed as one new version, and then
+ * sent as a notification to every other connected client. Any other request is rejected.
+ * <p>
+ * Each direction of each connection can be delayed by a fixed latency plus a random jitter; messages on the same
+ * connection stay in order, as they would on a TCP connection.
+ */
+public class ReferenceServer {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Server server;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setName("ReferenceServer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // All state below is only accessed from the executor thread.
+    private final List<ReferenceSocket> sockets = new ArrayList<>();
+    private final Map<Long, ServerFile> files = new HashMap<>();
+    private final AtomicLong nextFileID = new AtomicLong(1);
+    private final PatchManager patchManager = new PatchManager();
+    private long latencyMillis = 0;
+    private long jitterMillis = 0;
+    private Random random = new Random(0);
+    private long commitCount = 0;
+
+    /**
+     * Creates a server on the given port; 0 picks a free port.
+     *
+     * @param port the port to listen on
+     */
+    public ReferenceServer(int port) {
+        server = new Server(port);
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/");
+        server.setHandler(context);
+        context.addServlet(new ServletHolder("reference", new ReferenceSocketServlet(this)), "/");
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    /**
+     * Sets the one-way delay of every message, to latency plus a uniformly random jitter.
+     *
+     * @param latencyMillis the fixed delay, in milliseconds
+     * @param jitterMillis  the maximum random delay added to the fixed delay, in milliseconds
+     * @param seed          the seed for the random jitter
+     */
+    public void setLatency(long latencyMillis, long jitterMillis, long seed) {
+        call(() -> {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.random = new Random(seed);
+            return null;
+        });
+    }
+
+    /**
+     * Creates a file with the given contents, at version 1.
+     *
+     * @param contents the initial contents
+     * @return the fileID of the new file
+     */
+    public long createFile(String contents) {
+        return call(() -> {
+            long fileID = nextFileID.getAndIncrement();
+            files.put(fileID, new ServerFile(contents));
+            return fileID;
+        });
+    }
+
+    public String getContents(long fileID) {
+        return call(() -> files.get(fileID).contents);
+    }
+
+    public long getVersion(long fileID) {
+        return call(() -> files.get(fileID).version);
+    }
+
+    /**
+     * @return the number of File.Change requests that have been committed
+     */
+    public long getCommitCount() {
+        return call(() -> commitCount);
+    }
+
+    void connected(ReferenceSocket socket) {
+        executor.execute(() -> sockets.add(socket));
+    }
+
+    void disconnected(ReferenceSocket socket) {
+        executor.execute(() -> sockets.remove(socket));
+    }
+
+    void received(ReferenceSocket socket, String message) {
+        executor.execute(() -> {
+            socket.inbound.add(message);
+            executor.schedule(() -> handle(socket, socket.inbound.poll()), delay(), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void handle(ReferenceSocket socket, String message) {
+        JsonNode request;
+        try {
+            request = mapper.readTree(message);
+        } catch (IOException e) {
+            return;
+        }
+        long tag = request.path("Tag").asLong();
+        JsonNode data = request.has("data") ? request.get("data") : request.path("Data");
+
+        if (!"File".equals(request.path("Resource").asText()) || !"Change".equals(request.path("Method").asText())) {
+            send(socket, "Response", response(tag, 400, mapper.createObjectNode()));
+            return;
+        }
+        ServerFile file = files.get(data.path("FileID").asLong());
+        if (file == null) {
+            send(socket, "Response", response(tag, 404, mapper.createObjectNode()));
+            return;
+        }
+
+        List<Patch> patches = new ArrayList<>();
+        for (JsonNode change : data.path("Changes")) {
+            patches.add(new Patch(change.asText()));
+        }
+        if (patches.isEmpty()) {
+            send(socket, "Response", response(tag, 400, mapper.createObjectNode()));
+            return;
+        }
+        long baseVersion = Long.MAX_VALUE;
+        for (Patch patch : patches) {
+            baseVersion = Math.min(baseVersion, patch.getBaseVersion());
+        }
+        if (baseVersion > file.version) {
+            send(socket, "Response", response(tag, 409, mapper.createObjectNode()));
+            return;
+        }
+
+        // Transform the patches past every change committed since their base version, and those changes past the
+        // patches; the client's patches take precedence. The transformed changes are the client's missing patches.
+        List<Patch> missing = file.changesSince(baseVersion);
+        long commitVersion = file.version;
+        String[] committed = new String[patches.size()];
+        for (int i = 0; i < patches.size(); i++) {
+            Patch patch = patches.get(i);
+            for (int j = 0; j < missing.size(); j++) {
+                Patch change = missing.get(j);
+                Patch transformedPatch = withBaseVersion(patch.transform(false, change), commitVersion);
+                missing.set(j, withBaseVersion(change.transform(true, patch), change.getBaseVersion()));
+                patch = transformedPatch;
+            }
+            patch = withBaseVersion(patch, commitVersion);
+            committed[i] = patch.toString();
+            file.contents = patchManager.applyPatch(file.contents, Collections.singletonList(patch));
+            file.changes.add(patch);
+        }
+        file.version++;
+        commitCount++;
+
+        ObjectNode responseData = mapper.createObjectNode();
+        responseData.put("FileVersion", file.version);
+        responseData.set("Changes", toArray(Arrays.asList(committed)));
+        List<String> missingStrings = new ArrayList<>();
+        for (Patch change : missing) {
+            missingStrings.add(change.toString());
+        }
+        responseData.set("MissingPatches", toArray(missingStrings));
+        send(socket, "Response", response(tag, 200, responseData));
+
+        ObjectNode notification = mapper.createObjectNode();
+        notification.put("Resource", "File");
+        notification.put("Method", "Change");
+        notification.put("ResourceID", data.path("FileID").asLong());
+        ObjectNode notificationData = notification.putObject("Data");
+        notificationData.put("BaseFileVersion", commitVersion);
+        notificationData.put("FileVersion", file.version);
+        notificationData.set("Changes", toArray(Arrays.asList(committed)));
+        for (ReferenceSocket other : sockets) {
+            if (other != socket) {
+                send(other, "Notification", notification);
+            }
+        }
+    }
+
+    private void send(ReferenceSocket socket, String type, ObjectNode serverMessage) {
+        ObjectNode wrapper = mapper.createObjectNode();
+        wrapper.put("Type", type);
+        wrapper.put("Timestamp", System.currentTimeMillis());
+        wrapper.set("ServerMessage", serverMessage);
+        String text = wrapper.toString();
+
+        socket.outbound.add(text);
+        executor.schedule(() -> socket.send(socket.outbound.poll()), delay(), TimeUnit.MILLISECONDS);
+    }
+
+    private long delay() {
+        return latencyMillis + (jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0);
+    }
+
+    private static ObjectNode response(long tag, int status, ObjectNode data) {
+        ObjectNode response = mapper.createObjectNode();
+        response.put("Tag", tag);
+        response.put("Status", status);
+        response.set("Data", data);
+        return response;
+    }
+
+    private static ArrayNode toArray(List<String> values) {
+        ArrayNode array = mapper.createArrayNode();
+        values.forEach(array::add);
+        return array;
+    }
+
+    private static Patch withBaseVersion(Patch patch, long baseVersion) {
+        patch.setBaseVersion(baseVersion);
+        return patch;
+    }
+
+    private <T> T call(java.util.concurrent.Callable<T> callable) {
+        try {
+            return executor.submit(callable).get();
+        } catch (Exception e) {
+            throw new IllegalStateException("ReferenceServer call failed", e);
+        }
+    }
+
+    /**
+     * A file, with every change that was committed to it; each change is relative to the contents after the previous
+     * one.
+     */
+    private static class ServerFile {
+        String contents;
+        long version = 1;
+        final List<Patch> changes = new ArrayList<>();
+
+        ServerFile(String contents) {
+            this.contents = contents;
+        }
+
+        /**
+         * Gets copies of all changes committed at or after the given version, in order.
+         */
+        List<Patch> changesSince(long baseVersion) {
+            List<Patch> result = new ArrayList<>();
+            for (Patch change : changes) {
+                if (change.getBaseVersion() >= baseVersion) {
+                    result.add(new Patch(change.getBaseVersion(), change.getDiffs()));
+                }
+            }
+            return result;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ReferenceSocketServlet extends WebSocketServlet {
+        private final transient ReferenceServer server;
+
+        ReferenceSocketServlet(ReferenceServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public void configure(WebSocketServletFactory factory) {
+            factory.setCreator((request, response) -> new ReferenceSocket(server));
+        }
+    }
+}
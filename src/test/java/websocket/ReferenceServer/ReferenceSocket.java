@@ -0,0 +1,53 @@
+package websocket.ReferenceServer;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A single client connection to the ReferenceServer. All messages are passed on to the server.
+ */
+@WebSocket
+public class ReferenceSocket {
+    private final ReferenceServer server;
+    private volatile Session session;
+
+    // Messages in each direction that are waiting out their delay. Each delayed delivery takes the oldest message, so
+    // messages on a connection are never reordered, however the delays fall.
+    // Only accessed from the server's scheduler thread.
+    final Queue<String> inbound = new ArrayDeque<>();
+    final Queue<String> outbound = new ArrayDeque<>();
+
+    ReferenceSocket(ReferenceServer server) {
+        this.server = server;
+    }
+
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        this.session = session;
+        server.connected(this);
+    }
+
+    @OnWebSocketClose
+    public void onClose(int statusCode, String reason) {
+        this.session = null;
+        server.disconnected(this);
+    }
+
+    @OnWebSocketMessage
+    public void onMessage(String message) {
+        server.received(this, message);
+    }
+
+    void send(String message) {
+        Session current = session;
+        if (current != null && current.isOpen()) {
+            current.getRemote().sendStringByFuture(message);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package websocket;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class TestFaultInjector {
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testDeterministicFromSeed() {
+        FaultInjector first = newLossyInjector(7);
+        FaultInjector second = newLossyInjector(7);
+        FaultInjector other = newLossyInjector(8);
+
+        boolean differs = false;
+        for (int i = 0; i < 100; i++) {
+            boolean incoming = i % 3 == 0;
+            FaultInjector.Plan expected = first.plan(incoming, 100, i * MILLI);
+            FaultInjector.Plan actual = second.plan(incoming, 100, i * MILLI);
+            Assert.assertEquals(expected.fate, actual.fate);
+            Assert.assertEquals(expected.delayNanos, actual.delayNanos);
+            Assert.assertEquals(expected.reordered, actual.reordered);
+
+            FaultInjector.Plan otherPlan = other.plan(incoming, 100, i * MILLI);
+            differs |= otherPlan.fate != expected.fate || otherPlan.delayNanos != expected.delayNanos;
+        }
+        Assert.assertTrue(differs);
+    }
+
+    @Test
+    public void testDirectionsAreIndependent() {
+        // The same messages, but sent and received in a different interleaving.
+        FaultInjector first = newLossyInjector(7);
+        FaultInjector second = newLossyInjector(7);
+        List<FaultInjector.Plan> firstIncoming = new ArrayList<>();
+        List<FaultInjector.Plan> firstOutgoing = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            firstIncoming.add(first.plan(true, 100, 0));
+            firstOutgoing.add(first.plan(false, 100, 0));
+        }
+        List<FaultInjector.Plan> secondOutgoing = new ArrayList<>();
+        List<FaultInjector.Plan> secondIncoming = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            secondOutgoing.add(second.plan(false, 100, 0));
+        }
+        for (int i = 0; i < 100; i++) {
+            secondIncoming.add(second.plan(true, 100, 0));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(firstIncoming.get(i).fate, secondIncoming.get(i).fate);
+            Assert.assertEquals(firstIncoming.get(i).delayNanos, secondIncoming.get(i).delayNanos);
+            Assert.assertEquals(firstOutgoing.get(i).fate, secondOutgoing.get(i).fate);
+            Assert.assertEquals(firstOutgoing.get(i).delayNanos, secondOutgoing.get(i).delayNanos);
+        }
+    }
+
+    @Test
+    public void testPassThroughByDefault() {
+        FaultInjector injector = new FaultInjector(0);
+        for (int i = 0; i < 10; i++) {
+            FaultInjector.Plan plan = injector.plan(i % 2 == 0, 1000, i * MILLI);
+            Assert.assertEquals(FaultInjector.Fate.DELIVER, plan.fate);
+            Assert.assertEquals(0, plan.delayNanos);
+            Assert.assertFalse(plan.reordered);
+        }
+    }
+
+    @Test
+    public void testLatencyKeepsOrder() {
+        FaultInjector injector = new FaultInjector(1);
+        injector.setLatency(20, 50);
+
+        long lastArrival = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            FaultInjector.Plan plan = injector.plan(true, 10, i * MILLI);
+            Assert.assertTrue(plan.delayNanos >= 20 * MILLI);
+            Assert.assertTrue(plan.delayNanos < 70 * MILLI || i * MILLI + plan.delayNanos == lastArrival);
+            Assert.assertTrue(i * MILLI + plan.delayNanos >= lastArrival);
+            lastArrival = i * MILLI + plan.delayNanos;
+        }
+    }
+
+    @Test
+    public void testBandwidth() {
+        FaultInjector injector = new FaultInjector(0);
+        injector.setBandwidth(1000);
+
+        // 500 bytes at 1000 bytes/s take 500ms; the second message waits for the first one.
+        Assert.assertEquals(500 * MILLI, injector.plan(false, 500, 0).delayNanos);
+        Assert.assertEquals(1000 * MILLI, injector.plan(false, 500, 0).delayNanos);
+        // The other direction is not affected.
+        Assert.assertEquals(500 * MILLI, injector.plan(true, 500, 0).delayNanos);
+        // Once the link is idle, messages don't wait.
+        Assert.assertEquals(100 * MILLI, injector.plan(false, 100, 2000 * MILLI).delayNanos);
+    }
+
+    @Test
+    public void testReorder() {
+        FaultInjector injector = new FaultInjector(0);
+        injector.setLatency(10, 0);
+        injector.setReorder(1, 100);
+
+        FaultInjector.Plan held = injector.plan(true, 10, 0);
+        Assert.assertTrue(held.reordered);
+        Assert.assertEquals(110 * MILLI, held.delayNanos);
+
+        // Outgoing messages are never reordered.
+        FaultInjector.Plan outgoing = injector.plan(false, 10, 0);
+        Assert.assertFalse(outgoing.reordered);
+        Assert.assertEquals(10 * MILLI, outgoing.delayNanos);
+
+        injector.setReorder(0, 100);
+        FaultInjector.Plan next = injector.plan(true, 10, MILLI);
+        Assert.assertFalse(next.reordered);
+        Assert.assertTrue(MILLI + next.delayNanos < held.delayNanos);
+    }
+
+    @Test
+    public void testDropAndDisconnectRates() {
+        FaultInjector injector = new FaultInjector(3);
+        injector.setDropRate(1);
+        Assert.assertEquals(FaultInjector.Fate.DROP, injector.plan(false, 10, 0).fate);
+        Assert.assertEquals(FaultInjector.Fate.DROP, injector.plan(true, 10, 0).fate);
+
+        injector.setDisconnectRate(1);
+        Assert.assertEquals(FaultInjector.Fate.DISCONNECT, injector.plan(false, 10, 0).fate);
+
+        injector.setDropRate(0.25);
+        injector.setDisconnectRate(0);
+        int dropped = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (injector.plan(i % 2 == 0, 10, 0).fate == FaultInjector.Fate.DROP) {
+                dropped++;
+            }
+        }
+        Assert.assertEquals(2500, dropped, 250);
+    }
+
+    @Test
+    public void testSendAndReceive() throws Exception {
+        FaultInjector injector = new FaultInjector(0);
+        injector.setLatency(30, 0);
+        Session session = mockSession(true);
+
+        long start = System.nanoTime();
+        Future<Void> fut = injector.sendString(session, "HELLO");
+        fut.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(System.nanoTime() - start >= 30 * MILLI);
+        verify(session.getRemote()).sendString(eq("HELLO"), any(WriteCallback.class));
+
+        List<String> received = new ArrayList<>();
+        synchronized (received) {
+            injector.receive(session, 5, () -> {
+                synchronized (received) {
+                    received.add("WORLD");
+                    received.notifyAll();
+                }
+            });
+            Assert.assertTrue(received.isEmpty());
+            received.wait(5000);
+        }
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(2, injector.getDeliveredCount());
+        injector.shutdown();
+    }
+
+    @Test
+    public void testDroppedSendFails() throws Exception {
+        FaultInjector injector = new FaultInjector(0);
+        injector.setDropRate(1);
+        Session session = mockSession(true);
+
+        try {
+            injector.sendString(session, "HELLO").get(5, TimeUnit.SECONDS);
+            Assert.fail("Dropped message should fail to send");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        verify(session.getRemote(), never()).sendString(anyString(), any(WriteCallback.class));
+        Assert.assertEquals(1, injector.getDroppedCount());
+        injector.shutdown();
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        FaultInjector injector = new FaultInjector(0);
+        injector.setDisconnectRate(1);
+        Session session = mockSession(true);
+
+        Future<Void> fut = injector.sendString(session, "HELLO");
+        verify(session, timeout(5000)).disconnect();
+        Assert.assertFalse(fut.isDone());
+        verify(session.getRemote(), never()).sendString(anyString(), any(WriteCallback.class));
+        Assert.assertEquals(1, injector.getDisconnectCount());
+        injector.shutdown();
+    }
+
+    private static FaultInjector newLossyInjector(long seed) {
+        FaultInjector injector = new FaultInjector(seed);
+        injector.setLatency(10, 40);
+        injector.setDropRate(0.1);
+        injector.setReorder(0.1, 50);
+        injector.setDisconnectRate(0.02);
+        return injector;
+    }
+
+    private static Session mockSession(boolean open) {
+        Session session = mock(Session.class);
+        RemoteEndpoint remote = mock(RemoteEndpoint.class);
+        when(session.isOpen()).thenReturn(open);
+        when(session.getRemote()).thenReturn(remote);
+        doAnswer(invocation -> {
+            ((WriteCallback) invocation.getArguments()[1]).writeSuccess();
+            return null;
+        }).when(remote).sendString(anyString(), any(WriteCallback.class));
+        return session;
+    }
+}
@@ -0,0 +1,87 @@
+package websocket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestMessageDispatcher {
+
+    @Test
+    public void testOrderedPerLaneKey() throws InterruptedException {
+        MessageDispatcher dispatcher = new MessageDispatcher(4);
+        List<Integer> file1 = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> file2 = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 1000; i++) {
+            int index = i;
+            dispatcher.dispatch("File.1", () -> file1.add(index));
+            dispatcher.dispatch("File.2", () -> file2.add(index));
+        }
+        dispatcher.shutdown();
+        Assert.assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, (int) file1.get(i));
+            Assert.assertEquals(i, (int) file2.get(i));
+        }
+        Assert.assertEquals(2000, dispatcher.getHandledCount());
+        Assert.assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testSlowHandlerDoesNotBlockCaller() throws InterruptedException {
+        MessageDispatcher dispatcher = new MessageDispatcher(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+
+        // If handlers ran on the calling thread, this would never return.
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch("File", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Just return.
+                }
+                done.countDown();
+            });
+        }
+        Assert.assertEquals(3, dispatcher.getQueueDepth());
+        Assert.assertEquals(3, dispatcher.getMaxQueueDepth());
+
+        release.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+        Assert.assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertTrue(dispatcher.getAverageQueueNanos() > 0);
+    }
+
+    @Test
+    public void testHandlerExceptionKeepsLaneAlive() throws InterruptedException {
+        MessageDispatcher dispatcher = new MessageDispatcher(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        dispatcher.dispatch("File", () -> {
+            throw new IllegalStateException("test");
+        });
+        dispatcher.dispatch("File", done::countDown);
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testDispatchAfterShutdownIsDropped() throws InterruptedException {
+        MessageDispatcher dispatcher = new MessageDispatcher(1);
+        dispatcher.shutdown();
+        Assert.assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+
+        dispatcher.dispatch("File", () -> Assert.fail("Handler should not run after shutdown"));
+        Assert.assertEquals(0, dispatcher.getQueueDepth());
+        Assert.assertEquals(0, dispatcher.getHandledCount());
+    }
+}
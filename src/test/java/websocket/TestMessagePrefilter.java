@@ -0,0 +1,46 @@
+package websocket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMessagePrefilter {
+
+    @Test
+    public void testPeekNotification() {
+        String message = "{\"Type\":\"Notification\",\"Timestamp\":5,\"ServerMessage\":{" +
+                "\"Data\":{\"Changes\":[\"v1:\\n0:+1:a\"],\"Nested\":{\"Resource\":\"Wrong\"}}," +
+                "\"Resource\":\"File\",\"Method\":\"Change\",\"ResourceID\":12}}";
+
+        MessagePrefilter.Header header = new MessagePrefilter().peek(message);
+        Assert.assertEquals("Notification", header.type);
+        Assert.assertEquals("File", header.resource);
+        Assert.assertEquals("Change", header.method);
+        Assert.assertEquals(Long.valueOf(12), header.resourceID);
+    }
+
+    @Test
+    public void testPeekTypeAfterServerMessage() {
+        String message = "{\"ServerMessage\":{\"Resource\":\"Project\",\"Method\":\"Rename\",\"ResourceID\":3},\"Type\":\"Notification\"}";
+
+        MessagePrefilter.Header header = new MessagePrefilter().peek(message);
+        Assert.assertEquals("Notification", header.type);
+        Assert.assertEquals("Project", header.resource);
+        Assert.assertEquals(Long.valueOf(3), header.resourceID);
+    }
+
+    @Test
+    public void testPeekResponse() {
+        String message = "{\"Type\":\"Response\",\"ServerMessage\":{\"Tag\":100,\"Status\":200}}";
+
+        MessagePrefilter.Header header = new MessagePrefilter().peek(message);
+        Assert.assertEquals("Response", header.type);
+        Assert.assertNull(header.resource);
+    }
+
+    @Test
+    public void testPeekMalformed() {
+        MessagePrefilter prefilter = new MessagePrefilter();
+        Assert.assertNull(prefilter.peek("not json"));
+        Assert.assertNull(prefilter.peek("\"dank\""));
+    }
+}
@@ -0,0 +1,72 @@
+package websocket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class TestMessageSequencer {
+    @Test
+    public void testHandledInOrderOfArrival() throws InterruptedException {
+        MessageSequencer sequencer = new MessageSequencer(null);
+        List<Integer> handled = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        Random random = new Random(0);
+
+        // Like Jetty: the reading thread numbers each message, then hands it to a thread of its own.
+        for (int i = 0; i < 50; i++) {
+            sequencer.messageStarted();
+            int message = i;
+            long delay = random.nextInt(3);
+            Thread thread = new Thread(() -> {
+                long sequence = sequencer.claim();
+                try {
+                    // Later messages often get to run first.
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sequencer.awaitTurn(sequence);
+                synchronized (handled) {
+                    handled.add(message);
+                }
+                sequencer.finished(sequence);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        Assert.assertEquals(50, handled.size());
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(i, (int) handled.get(i));
+        }
+    }
+
+    @Test
+    public void testCloseReleasesReadingThread() throws InterruptedException {
+        MessageSequencer sequencer = new MessageSequencer(null);
+        sequencer.messageStarted();
+
+        // The first message was never claimed; the second one waits for it until the session is closed.
+        Thread reader = new Thread(() -> {
+            try {
+                sequencer.messageStarted();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        reader.start();
+        reader.join(100);
+        Assert.assertTrue(reader.isAlive());
+
+        sequencer.close();
+        reader.join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertFalse(reader.isAlive());
+    }
+}
@@ -0,0 +1,63 @@
+package websocket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestRttEstimator {
+
+    @Test
+    public void testSamples() {
+        RttEstimator estimator = new RttEstimator();
+        Assert.assertEquals(RttEstimator.INITIAL_TIMEOUT_MILLIS, estimator.getTimeoutMillis());
+        Assert.assertEquals(-1, estimator.getSmoothedRttMillis(), 0);
+
+        // First sample: SRTT = R, RTTVAR = R / 2
+        estimator.addSample(TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertEquals(100, estimator.getSmoothedRttMillis(), 0.001);
+        Assert.assertEquals(50, estimator.getRttVariationMillis(), 0.001);
+        Assert.assertEquals(300, estimator.getTimeoutMillis());
+
+        // RTTVAR = 3/4 * 50 + 1/4 * |100 - 200| = 62.5; SRTT = 7/8 * 100 + 1/8 * 200 = 112.5
+        estimator.addSample(TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertEquals(112.5, estimator.getSmoothedRttMillis(), 0.001);
+        Assert.assertEquals(62.5, estimator.getRttVariationMillis(), 0.001);
+        Assert.assertEquals(363, estimator.getTimeoutMillis());
+        Assert.assertEquals(2, estimator.getSampleCount());
+    }
+
+    @Test
+    public void testBounds() {
+        RttEstimator estimator = new RttEstimator();
+        estimator.addSample(TimeUnit.MILLISECONDS.toNanos(1));
+        Assert.assertEquals(RttEstimator.MIN_TIMEOUT_MILLIS, estimator.getTimeoutMillis());
+
+        estimator = new RttEstimator();
+        estimator.addSample(TimeUnit.MINUTES.toNanos(5));
+        Assert.assertEquals(RttEstimator.MAX_TIMEOUT_MILLIS, estimator.getTimeoutMillis());
+
+        // Negative samples (clock issues) are ignored.
+        estimator.addSample(-1);
+        Assert.assertEquals(1, estimator.getSampleCount());
+    }
+
+    @Test
+    public void testBackoff() {
+        RttEstimator estimator = new RttEstimator();
+        estimator.addSample(TimeUnit.MILLISECONDS.toNanos(100));
+        estimator.backoff();
+        Assert.assertEquals(600, estimator.getTimeoutMillis());
+        estimator.backoff();
+        Assert.assertEquals(1200, estimator.getTimeoutMillis());
+
+        for (int i = 0; i < 100; i++) {
+            estimator.backoff();
+        }
+        Assert.assertEquals(RttEstimator.MAX_TIMEOUT_MILLIS, estimator.getTimeoutMillis());
+
+        // A new sample resets the backoff.
+        estimator.addSample(TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertTrue(estimator.getTimeoutMillis() < 600);
+    }
+}
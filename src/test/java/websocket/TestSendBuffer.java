@@ -0,0 +1,66 @@
+package websocket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestSendBuffer {
+
+    @Test
+    public void testSaturation() {
+        SendBuffer buffer = new SendBuffer(100);
+        List<Boolean> signals = new ArrayList<>();
+        buffer.registerBackpressureListener(signals::add);
+
+        buffer.reserve(60);
+        buffer.reserve(40);
+        Assert.assertFalse(buffer.isSaturated());
+        buffer.reserve(1);
+        Assert.assertTrue(buffer.isSaturated());
+        Assert.assertEquals(101, buffer.getUsedBytes());
+
+        // Stays saturated until drained to half of the capacity.
+        buffer.release(40);
+        Assert.assertTrue(buffer.isSaturated());
+        buffer.release(11);
+        Assert.assertFalse(buffer.isSaturated());
+        buffer.release(50);
+        Assert.assertEquals(0, buffer.getUsedBytes());
+
+        Assert.assertEquals(2, signals.size());
+        Assert.assertTrue(signals.get(0));
+        Assert.assertFalse(signals.get(1));
+    }
+
+    @Test
+    public void testAwaitCapacity() throws InterruptedException {
+        SendBuffer buffer = new SendBuffer(10);
+        Assert.assertTrue(buffer.awaitCapacity(10));
+
+        buffer.reserve(20);
+        Assert.assertFalse(buffer.awaitCapacity(10));
+
+        CountDownLatch waited = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                if (buffer.awaitCapacity(0)) {
+                    waited.countDown();
+                }
+            } catch (InterruptedException e) {
+                // Fails the test below.
+            }
+        }).start();
+        Assert.assertFalse(waited.await(50, TimeUnit.MILLISECONDS));
+        buffer.release(20);
+        Assert.assertTrue(waited.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new SendBuffer(0);
+    }
+}
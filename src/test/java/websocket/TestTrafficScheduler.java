@@ -0,0 +1,90 @@
+package websocket;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+public class TestTrafficScheduler {
+    private final int defaultQuantum = TrafficScheduler.QUANTUM_BYTES;
+
+    @After
+    public void cleanup() {
+        TrafficScheduler.QUANTUM_BYTES = defaultQuantum;
+    }
+
+    @Test
+    public void testWeightedShares() {
+        TrafficScheduler.QUANTUM_BYTES = 1024;
+        TrafficScheduler scheduler = new TrafficScheduler();
+        for (int i = 0; i < 100; i++) {
+            for (TrafficClass trafficClass : TrafficClass.values()) {
+                scheduler.offer(new WSConnection.WSMessage(message(1024), 0, trafficClass));
+            }
+        }
+        Assert.assertEquals(300, scheduler.size());
+
+        // Ten rounds; each class sends its weight in quanta per round.
+        Map<TrafficClass, Integer> sent = new EnumMap<>(TrafficClass.class);
+        for (int i = 0; i < 130; i++) {
+            sent.merge(scheduler.poll().getTrafficClass(), 1, Integer::sum);
+        }
+        Assert.assertEquals(80, (int) sent.get(TrafficClass.INTERACTIVE));
+        Assert.assertEquals(40, (int) sent.get(TrafficClass.CONTROL));
+        Assert.assertEquals(10, (int) sent.get(TrafficClass.BULK));
+        Assert.assertEquals(170, scheduler.size());
+    }
+
+    @Test
+    public void testInteractiveNotBlockedByBulk() {
+        TrafficScheduler scheduler = new TrafficScheduler();
+        for (int i = 0; i < 10; i++) {
+            scheduler.offer(new WSConnection.WSMessage(message(100 * 1024), 0, TrafficClass.BULK));
+        }
+
+        // A lone class gets the whole connection, even for messages larger than its quantum.
+        Assert.assertEquals(TrafficClass.BULK, scheduler.poll().getTrafficClass());
+
+        scheduler.offer(new WSConnection.WSMessage("edit", 0, TrafficClass.INTERACTIVE));
+        Assert.assertEquals("edit", scheduler.poll().getMessage());
+        Assert.assertEquals(9, scheduler.size(TrafficClass.BULK));
+        Assert.assertEquals(0, scheduler.size(TrafficClass.INTERACTIVE));
+    }
+
+    @Test
+    public void testPeekMatchesPoll() {
+        TrafficScheduler scheduler = new TrafficScheduler();
+        Assert.assertNull(scheduler.peek());
+        Assert.assertNull(scheduler.poll());
+
+        WSConnection.WSMessage bulk = new WSConnection.WSMessage(message(10), 0, TrafficClass.BULK);
+        scheduler.offer(bulk);
+        Assert.assertSame(bulk, scheduler.peek());
+
+        // Once scheduled, the message stays next, and is still counted.
+        scheduler.offer(new WSConnection.WSMessage("edit", 0, TrafficClass.INTERACTIVE));
+        Assert.assertEquals(2, scheduler.size());
+        Assert.assertEquals(1, scheduler.size(TrafficClass.BULK));
+        Assert.assertTrue(scheduler.contains(bulk));
+        Assert.assertSame(bulk, scheduler.poll());
+        Assert.assertEquals("edit", scheduler.poll().getMessage());
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void testRequestTrafficClass() {
+        Assert.assertEquals(TrafficClass.INTERACTIVE, TrafficClass.of("File", "Change"));
+        Assert.assertEquals(TrafficClass.BULK, TrafficClass.of("File", "Create"));
+        Assert.assertEquals(TrafficClass.CONTROL, TrafficClass.of("File", "Pull"));
+        Assert.assertEquals(TrafficClass.CONTROL, TrafficClass.of("Project", "Subscribe"));
+    }
+
+    private static String message(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+}
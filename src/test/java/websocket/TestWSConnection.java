@@ -10,10 +10,14 @@ import org.junit.Test;
 import websocket.ExampleEchoServer.ServerRunner;
 import websocket.models.ConnectionConfig;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.mock;
@@ -101,6 +105,25 @@ public class TestWSConnection {
         }
     }
 
+    @Test
+    public void testSendBufferAccounting() {
+        WSConnection conn = new WSConnection(TEST_CONFIG);
+
+        conn.enqueueMessage("Test1", 0);
+        conn.enqueueBinaryMessage(ByteBuffer.allocate(10), 0);
+        Assert.assertEquals(15, conn.getSendBuffer().getUsedBytes());
+        // Text is accounted as UTF-8: 2, 3 and 4 bytes.
+        conn.enqueueMessage("\u00e9\u20ac\ud83d\ude00", 0);
+        Assert.assertEquals(24, conn.getSendBuffer().getUsedBytes());
+
+        // Messages that are dropped are released as well.
+        conn.setState(WSConnection.State.CLOSE);
+        Assert.assertFalse(conn.sendMessage(conn.messageQueue.poll()));
+        Assert.assertFalse(conn.sendMessage(conn.messageQueue.poll()));
+        Assert.assertFalse(conn.sendMessage(conn.messageQueue.poll()));
+        Assert.assertEquals(0, conn.getSendBuffer().getUsedBytes());
+    }
+
     @Test
     public void testSendMessageStateChecker() {
         WSConnection conn = new WSConnection(TEST_CONFIG);
@@ -466,6 +489,38 @@ public class TestWSConnection {
         }
 
         Assert.assertEquals(receivedMessages.size(), 5);
+        Assert.assertEquals(1, conn.getReconnectAttemptCount());
+        Assert.assertTrue(conn.getLastReconnectMillis() >= 0);
+    }
+
+    @Test
+    public void testReconnectBackoff() throws Exception {
+        ConnectionConfig config = new ConnectionConfig("ws://localhost:1", true, 3);
+        config.setReconnectInitialDelayMillis(50);
+        config.setReconnectJitter(0);
+        Assert.assertEquals(50, config.getReconnectDelayMillis(0));
+        Assert.assertEquals(100, config.getReconnectDelayMillis(1));
+        Assert.assertEquals(config.getReconnectMaxDelayMillis(), config.getReconnectDelayMillis(100));
+
+        WSConnection conn = new WSConnection(config);
+        conn.setState(WSConnection.State.READY);
+
+        long startTime = System.currentTimeMillis();
+        conn.onClose(1001, "SHUTDOWN");
+        Assert.assertEquals(WSConnection.State.CONNECT, conn.getState());
+
+        long deadline = startTime + 5000;
+        while (conn.getState() != WSConnection.State.ERROR || conn.getReconnectAttemptCount() < 3) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("Failed to give up reconnecting");
+            }
+            Thread.sleep(10);
+        }
+
+        // 50 + 100 + 200 ms of backoff between the attempts
+        Assert.assertTrue(System.currentTimeMillis() - startTime >= 350);
+        Assert.assertEquals(3, conn.getReconnectAttemptCount());
+        Assert.assertEquals(-1, conn.getLastReconnectMillis());
     }
 
     @Test
@@ -509,8 +564,219 @@ public class TestWSConnection {
     }
 
     @Test
-    public void testConnectAndReconnectError() {
-        WSConnection conn = new WSConnection(TEST_CONFIG_ERROR);
+    public void testStreamedMessagesKeepOrder() throws Exception {
+        List<String> receivedMessages = new ArrayList<>();
+
+        WSConnection conn = new WSConnection(TEST_CONFIG);
+        conn.registerIncomingMessageHandler(new IMessageHandler() {
+            @Override
+            public void handleMessage(String message) {
+                synchronized (receivedMessages) {
+                    receivedMessages.add(message);
+                    receivedMessages.notifyAll();
+                }
+            }
+
+            @Override
+            public void handleMessageSendError(String message) {
+                throw new IllegalStateException("Should not have any message send errors");
+            }
+        });
+        conn.connect();
+
+        if (!conn.waitForNextState(WSConnection.State.READY, 5000)) {
+            Assert.fail("Failed to get to Ready state");
+        }
+
+        // Each message is streamed on a thread of its own; a large one in between takes longer to read.
+        // The echo server accepts up to 64KB.
+        char[] large = new char[60 * 1024];
+        Arrays.fill(large, 'x');
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            sent.add(i == 10 ? new String(large) : "HELLO" + i);
+        }
+        for (String message : sent) {
+            conn.enqueueMessage(message, 0);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (receivedMessages) {
+            while (receivedMessages.size() < sent.size() && System.currentTimeMillis() < deadline) {
+                receivedMessages.wait(100);
+            }
+            Assert.assertEquals(sent, receivedMessages);
+        }
+        conn.close();
+    }
+
+    @Test
+    public void testCompressionAgainstEcho() throws Exception {
+        ConnectionConfig config = new ConnectionConfig("ws://localhost:" + TEST_PORT, false, 5);
+        config.setCompression(true);
+
+        // Typical bootstrap payload: a large, repetitive JSON array. Kept below the echo server's 64KB message limit.
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 600; i++) {
+            sb.append(String.format("{\"FileID\":%d,\"Filename\":\"File%d.java\",\"RelativePath\":\"src/main/java\",\"Version\":%d},", i, i, i % 7));
+        }
+        String largePayload = sb.append("{}]").toString();
+
+        WSConnection conn = new WSConnection(config);
+        List<String> received = echo(conn, Arrays.asList("small", largePayload));
+        Assert.assertTrue(conn.getNegotiatedExtensions().toString(), conn.getNegotiatedExtensions().stream().anyMatch(e -> e.startsWith("permessage-deflate")));
+        conn.close();
+        Assert.assertEquals(Arrays.asList("small", largePayload), received);
+
+        // Measure the CPU cost of compression, against the same server without it. On loopback, the bandwidth saved
+        // is free, so this is the worst case for compression.
+        List<String> payloads = Collections.nCopies(50, largePayload);
+        ConnectionConfig plainConfig = new ConnectionConfig("ws://localhost:" + TEST_PORT, false, 5);
+        long plainNanos = timeEcho(new WSConnection(plainConfig), payloads);
+        long compressedNanos = timeEcho(new WSConnection(config), payloads);
+
+        Deflater deflater = new Deflater(config.getCompressionLevel(), true);
+        deflater.setInput(largePayload.getBytes(StandardCharsets.UTF_8));
+        deflater.finish();
+        byte[] buffer = new byte[largePayload.length()];
+        int compressedSize = deflater.deflate(buffer);
+        deflater.end();
+
+        WSConnection.logger.info(String.format("permessage-deflate: %d byte message compressed to %d bytes; " +
+                        "%d echoes took %d ms uncompressed, %d ms compressed", largePayload.length(), compressedSize,
+                payloads.size(), TimeUnit.NANOSECONDS.toMillis(plainNanos), TimeUnit.NANOSECONDS.toMillis(compressedNanos)));
+    }
+
+    private List<String> echo(WSConnection conn, List<String> messages) throws Exception {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(messages.size());
+        conn.registerIncomingMessageHandler(new IMessageHandler() {
+            @Override
+            public void handleMessage(String message) {
+                received.add(message);
+                latch.countDown();
+            }
+
+            @Override
+            public void handleMessageSendError(String message) {
+                throw new IllegalStateException("Should not have any message send errors");
+            }
+        });
+        conn.connect();
+        if (!conn.waitForNextState(WSConnection.State.READY, 5000)) {
+            Assert.fail("Failed to get to Ready state");
+        }
+
+        for (String message : messages) {
+            conn.enqueueMessage(message, 0);
+        }
+        Assert.assertTrue("Did not receive all echoes", latch.await(30, TimeUnit.SECONDS));
+        return received;
+    }
+
+    private long timeEcho(WSConnection conn, List<String> messages) throws Exception {
+        long start = System.nanoTime();
+        echo(conn, messages);
+        long elapsed = System.nanoTime() - start;
+        conn.close();
+        return elapsed;
+    }
+
+    @Test
+    public void testFaultInjectorAgainstEcho() throws Exception {
+        ArrayList<String> receivedMessages = new ArrayList<>();
+
+        ConnectionConfig config = new ConnectionConfig("ws://localhost:" + TEST_PORT, true, 5);
+        config.setReconnectInitialDelayMillis(10);
+        WSConnection conn = new WSConnection(config);
+        FaultInjector injector = new FaultInjector(0);
+        injector.setLatency(50, 0);
+        conn.setTransportShim(injector);
+        conn.registerIncomingMessageHandler(new IMessageHandler() {
+            @Override
+            public void handleMessage(String message) {
+                synchronized (receivedMessages) {
+                    receivedMessages.add(message);
+                    receivedMessages.notifyAll();
+                }
+            }
+
+            @Override
+            public void handleMessageSendError(String message) {
+                throw new IllegalStateException("Should not have any message send errors");
+            }
+        });
+        conn.connect();
+        if (!conn.waitForNextState(WSConnection.State.READY, 5000)) {
+            Assert.fail("Failed to get to Ready state");
+        }
+
+        // Every echo is delayed on the way out and on the way back, and arrives in order.
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            conn.enqueueMessage("HELLO" + i, 0);
+        }
+        long deadline = start + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (receivedMessages) {
+                if (receivedMessages.size() == 5) {
+                    break;
+                }
+                receivedMessages.wait(100);
+            }
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+        Assert.assertEquals(Arrays.asList("HELLO0", "HELLO1", "HELLO2", "HELLO3", "HELLO4"), receivedMessages);
+
+        // A dropped connection is re-established, and the message that was being sent is retried.
+        injector.setDisconnectRate(1);
+        conn.enqueueMessage("AFTER_DISCONNECT", 0);
+        deadline = System.currentTimeMillis() + 5000;
+        while (injector.getDisconnectCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        injector.setDisconnectRate(0);
+        deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (receivedMessages) {
+                if (receivedMessages.contains("AFTER_DISCONNECT")) {
+                    break;
+                }
+                receivedMessages.wait(100);
+            }
+        }
+        conn.close();
+        injector.shutdown();
+
+        Assert.assertEquals(1, injector.getDisconnectCount());
+        Assert.assertTrue(conn.getReconnectAttemptCount() >= 1);
+        Assert.assertTrue(receivedMessages.contains("AFTER_DISCONNECT"));
+    }
+
+    @Test
+    public void testPingRttSample() throws Exception {
+        WSConnection conn = new WSConnection(TEST_CONFIG);
+        conn.connect();
+        if (!conn.waitForNextState(WSConnection.State.READY, 5000)) {
+            Assert.fail("Failed to get to Ready state");
+        }
+
+        conn.sendPing(conn.session);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (conn.getRttEstimator().getSampleCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        conn.close();
+
+        Assert.assertEquals(1, conn.getRttEstimator().getSampleCount());
+        Assert.assertTrue(conn.getRttEstimator().getSmoothedRttMillis() >= 0);
+    }
+
+    @Test
+    public void testConnectAndReconnectError() throws InterruptedException {
+        ConnectionConfig config = new ConnectionConfig(TEST_CONFIG_ERROR.getUriString(), true, TEST_CONFIG_ERROR.getMaxRetryCount());
+        config.setReconnectInitialDelayMillis(10);
+        WSConnection conn = new WSConnection(config);
 
         try {
             conn.connect();
@@ -524,9 +790,56 @@ public class TestWSConnection {
         conn.setState(WSConnection.State.READY);
         conn.onClose(1001, "FORCE ERROR");
 
+        // Reconnects are attempted in the background; wait for them to give up.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (conn.getReconnectAttemptCount() < config.getMaxRetryCount() || conn.getState() != WSConnection.State.ERROR) {
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(WSConnection.State.ERROR, conn.getState());
+    }
+
+    @Test
+    public void testNoReconnectWithZeroRetries() throws InterruptedException {
+        ConnectionConfig config = new ConnectionConfig(TEST_CONFIG_ERROR.getUriString(), true, 0);
+        config.setReconnectInitialDelayMillis(10);
+        WSConnection conn = new WSConnection(config);
+
+        conn.setState(WSConnection.State.READY);
+        conn.onClose(1001, "FORCE ERROR");
+        Thread.sleep(100);
+
+        Assert.assertEquals(0, conn.getReconnectAttemptCount());
         Assert.assertEquals(WSConnection.State.ERROR, conn.getState());
     }
 
+    @Test
+    public void testReconnectStaysInConnectState() throws InterruptedException {
+        ConnectionConfig config = new ConnectionConfig(TEST_CONFIG_ERROR.getUriString(), true, 3);
+        config.setReconnectInitialDelayMillis(200);
+        WSConnection conn = new WSConnection(config);
+
+        conn.setState(WSConnection.State.READY);
+        conn.onClose(1001, "FORCE ERROR");
+
+        // Failed attempts don't put the connection into ERROR until the last one, so senders don't connect on their own.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (conn.getReconnectAttemptCount() < 2 && System.currentTimeMillis() < deadline) {
+            Assert.assertEquals(WSConnection.State.CONNECT, conn.getState());
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(conn.getReconnectAttemptCount() >= 2);
+
+        // Closing stops the remaining attempts.
+        conn.close();
+        long attempts = conn.getReconnectAttemptCount();
+        Thread.sleep(1000);
+        Assert.assertEquals(attempts, conn.getReconnectAttemptCount());
+        Assert.assertEquals(WSConnection.State.CLOSE, conn.getState());
+    }
+
     private void waitForNotifies(Object obj, int num, long timeout) throws InterruptedException {
         synchronized (obj) {
             for (int i = 0; i < num; i++) {
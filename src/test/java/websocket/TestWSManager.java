@@ -1,6 +1,7 @@
 package websocket;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import metrics.MetricsRegistry;
 
 import org.apache.logging.log4j.Logger;
 import org.junit.Assert;
@@ -11,10 +12,20 @@ import org.mockito.ArgumentMatcher;
 import websocket.ExampleEchoServer.ServerRunner;
 import websocket.models.ConnectionConfig;
 import websocket.models.Request;
+import websocket.models.Response;
 import websocket.models.ServerMessageWrapper;
 import websocket.models.requests.FileChangeRequest;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
 import static org.mockito.Mockito.*;
 
@@ -38,6 +49,29 @@ public class TestWSManager {
         Assert.assertEquals(config, manager.socket.config);
     }
 
+    @Test
+    public void testCloseDeregistersGauges() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        WSManager first = new WSManager(mock(WSConnection.class));
+        WSManager second = new WSManager(mock(WSConnection.class));
+        Assert.assertTrue(metrics.snapshot().getGauges().containsKey("websocket.sendQueueDepth"));
+
+        // The gauges have been replaced by the second manager's, which stay registered.
+        first.close();
+        Assert.assertTrue(metrics.snapshot().getGauges().containsKey("websocket.sendQueueDepth"));
+        second.close();
+        Assert.assertFalse(metrics.snapshot().getGauges().containsKey("websocket.sendQueueDepth"));
+        Assert.assertFalse(metrics.snapshot().getGauges().containsKey("websocket.dispatcherQueueDepth"));
+    }
+
+    @Test
+    public void testCloseShutsDownDispatcher() {
+        MessageDispatcher dispatcher = mock(MessageDispatcher.class);
+        WSManager manager = new WSManager(mock(WSConnection.class), dispatcher);
+        manager.close();
+        verify(dispatcher).shutdown();
+    }
+
     @Test
     public void testRegisterAndDeregisterNotificationHandler() {
         WSManager manager = new WSManager(new ConnectionConfig("hi", true, 2));
@@ -60,7 +94,7 @@ public class TestWSManager {
             Assert.fail("Request send failure");
         }
         verify(fakeConn, times(2)).getState();
-        verify(fakeConn, times(1)).enqueueMessage(anyString(), anyInt());
+        verify(fakeConn, times(1)).enqueueMessage(anyString(), anyInt(), any(TrafficClass.class), any(IntConsumer.class));
     }
 
     @Test
@@ -81,7 +115,7 @@ public class TestWSManager {
             e.printStackTrace();
             Assert.fail("Shouldn't ever get here");
         }
-        verify(fakeConn, times(1)).enqueueMessage(anyString(), anyInt());
+        verify(fakeConn, times(1)).enqueueMessage(anyString(), anyInt(), any(TrafficClass.class), any(IntConsumer.class));
     }
 
     @Test
@@ -107,7 +141,23 @@ public class TestWSManager {
         } catch (Exception e) {
             // should break
         }
-        verify(fakeConn, times(0)).enqueueMessage(anyString(), anyInt());
+        verify(fakeConn, times(0)).enqueueMessage(anyString(), anyInt(), any(TrafficClass.class), any(IntConsumer.class));
+    }
+
+    @Test
+    public void testQueuedAuthenticatedRequestsAccounted() {
+        WSConnection fakeConn = mock(WSConnection.class);
+        when(fakeConn.getState()).thenReturn(WSConnection.State.READY);
+        WSManager manager = new WSManager(fakeConn);
+
+        manager.sendAuthenticatedRequest(new Request());
+        Assert.assertTrue(manager.getSendBuffer().getUsedBytes() > 0);
+        verify(fakeConn, never()).enqueueMessage(anyString(), anyInt(), any(TrafficClass.class), any(IntConsumer.class));
+
+        // Handed over to the connection, which accounts for it from then on.
+        manager.setAuthInfo("user", "token");
+        Assert.assertEquals(0, manager.getSendBuffer().getUsedBytes());
+        verify(fakeConn, times(1)).enqueueMessage(anyString(), anyInt(), any(TrafficClass.class), any(IntConsumer.class));
     }
 
     @Test
@@ -143,6 +193,29 @@ public class TestWSManager {
         verify(mockHandler, times(1)).handleResponse(anyObject());
     }
 
+    @Test
+    public void testResponseRttSample() {
+        WSConnection fakeConn = mock(WSConnection.class);
+        when(fakeConn.getState()).thenReturn(WSConnection.State.READY);
+        WSManager manager = new WSManager(fakeConn);
+        ArgumentCaptor<IntConsumer> onSend = ArgumentCaptor.forClass(IntConsumer.class);
+
+        Request first = new Request();
+        manager.sendRequest(first);
+        Request retried = new Request();
+        manager.sendRequest(retried);
+        verify(fakeConn, times(2)).enqueueMessage(anyString(), anyInt(), any(TrafficClass.class), onSend.capture());
+
+        onSend.getAllValues().get(0).accept(0);
+        onSend.getAllValues().get(1).accept(0);
+        onSend.getAllValues().get(1).accept(1);
+        manager.handleMessage(String.format("{\"Type\":\"Response\",\"ServerMessage\":{\"Tag\":%d,\"Status\":200}}", first.getTag()));
+        manager.handleMessage(String.format("{\"Type\":\"Response\",\"ServerMessage\":{\"Tag\":%d,\"Status\":200}}", retried.getTag()));
+
+        // Only the request that was sent once is sampled.
+        Assert.assertEquals(1, manager.getRttEstimator().getSampleCount());
+    }
+
     @Test
     public void testHandleInvalidServerResponse() {
         String message = "{\n" +
@@ -247,8 +320,87 @@ public class TestWSManager {
         WSManager manager = new WSManager(mock(WSConnection.class));
         WSManager.logger = mock(Logger.class);
         manager.handleMessage(message);
-        verify(WSManager.logger, times(1)).warn("No handler registered for notification: " +
-                "{\"Resource\":\"Project\",\"Method\":\"GrantPermissions\",\"Data\":{\"GrantUsername\":\"testUser\",\"PermissionLevel\":5}}");
+        verify(WSManager.logger, times(1)).warn("No handler registered for notification: Project.GrantPermissions");
+        Assert.assertEquals(1, manager.getDiscardedMessageCount());
+        Assert.assertEquals(message.length(), manager.getDiscardedMessageBytes());
+    }
+
+    @Test
+    public void testHandleFilteredNotification() {
+        String message = "{\n" +
+                "  \"Type\":\"Notification\",\n" +
+                "  \"ServerMessage\": {\n" +
+                "    \"Data\":{\n" +
+                "      \"Changes\":[\"v1:\\n0:+1:a\"],\n" +
+                "      \"FileVersion\":2,\n" +
+                "      \"BaseFileVersion\":1\n" +
+                "    },\n" +
+                "    \"Resource\":\"File\",\n" +
+                "    \"Method\":\"Change\",\n" +
+                "    \"ResourceID\":%d\n" +
+                "  }\n" +
+                "}";
+        WSManager manager = new WSManager(mock(WSConnection.class));
+        INotificationHandler mockHandler = mock(INotificationHandler.class);
+        manager.registerNotificationHandler("File", "Change", mockHandler);
+        manager.setNotificationFilter((resource, method, resourceID) -> resourceID != 2);
+
+        manager.handleMessage(String.format(message, 1));
+        verify(mockHandler, times(1)).handleNotification(anyObject());
+        Assert.assertEquals(0, manager.getDiscardedMessageCount());
+
+        manager.handleMessage(String.format(message, 2));
+        verify(mockHandler, times(1)).handleNotification(anyObject());
+        Assert.assertEquals(1, manager.getDiscardedMessageCount());
+    }
+
+    @Test
+    public void testHandleStreamedMessage() throws IOException {
+        String response = "{\"Type\":\"Response\",\"Timestamp\":1,\"ServerMessage\":{\"Tag\":100,\"Status\":200,\"Data\":{}}}";
+        String notification = "{\"Type\":\"Notification\",\"ServerMessage\":" +
+                "{\"Resource\":\"File\",\"Method\":\"Change\",\"ResourceID\":%d,\"Data\":{\"Changes\":[\"v1:\\n0:+1:a\"]}}}";
+        WSManager manager = new WSManager(mock(WSConnection.class));
+        Request mockRequest = mock(Request.class);
+        IResponseHandler mockResponseHandler = mock(IResponseHandler.class);
+        when(mockRequest.getResponseHandler()).thenReturn(mockResponseHandler);
+        manager.requestHashMap.put(100L, mockRequest);
+        INotificationHandler mockNotificationHandler = mock(INotificationHandler.class);
+        manager.registerNotificationHandler("File", "Change", mockNotificationHandler);
+        manager.setNotificationFilter((resource, method, resourceID) -> resourceID != 2);
+
+        manager.handleMessage(new StringReader(response));
+        verify(mockResponseHandler, times(1)).handleResponse(argThat(new ArgumentMatcher<Response>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((Response) argument).getTag() == 100 && ((Response) argument).getStatus() == 200;
+            }
+        }));
+
+        manager.handleMessage(new StringReader(String.format(notification, 1)));
+        verify(mockNotificationHandler, times(1)).handleNotification(anyObject());
+
+        String filtered = String.format(notification, 2);
+        manager.handleMessage(new StringReader(filtered));
+        verify(mockNotificationHandler, times(1)).handleNotification(anyObject());
+        Assert.assertEquals(1, manager.getDiscardedMessageCount());
+        Assert.assertEquals(filtered.length(), manager.getDiscardedMessageBytes());
+
+        // Routing fields after the Data can only be checked once the message has been read, but still drop it.
+        String dataFirst = "{\"Type\":\"Notification\",\"ServerMessage\":" +
+                "{\"Data\":{\"Changes\":[]},\"Resource\":\"File\",\"Method\":\"Change\",\"ResourceID\":2}}";
+        manager.handleMessage(new StringReader(dataFirst));
+        verify(mockNotificationHandler, times(1)).handleNotification(anyObject());
+        Assert.assertEquals(2, manager.getDiscardedMessageCount());
+    }
+
+    @Test
+    public void testHandleStreamedMessageParseFailure() throws IOException {
+        WSManager manager = new WSManager(mock(WSConnection.class));
+        WSManager.logger = mock(Logger.class);
+        manager.handleMessage(new StringReader("Invalid message"));
+        manager.handleMessage(new StringReader("{\"Type\":\"Response\"}"));
+        verify(WSManager.logger, times(1)).error("Malformed message from server: missing Type or ServerMessage");
+        verify(WSManager.logger, times(2)).error(startsWith("Malformed message from server: "));
     }
 
     @Test
@@ -330,4 +482,83 @@ public class TestWSManager {
         manager.handleMessageSendError(message);
         verify(WSManager.logger, times(1)).error("Request that failed to send was malformed");
     }
+
+    @Test
+    public void testSendBlobAgainstEcho() throws Exception {
+        byte[] contents = new byte[3 * WSManager.BLOB_CHUNK_SIZE + 100];
+        new Random(37).nextBytes(contents);
+
+        WSManager manager = new WSManager(new WSConnection(new ConnectionConfig(ECHO_WS_ADDR, false, 5)));
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int[] chunkCount = new int[1];
+        CountDownLatch done = new CountDownLatch(1);
+        manager.registerBlobHandler(42, (tag, chunk, last) -> {
+            Assert.assertEquals(42, tag);
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            received.write(bytes, 0, bytes.length);
+            chunkCount[0]++;
+            if (last) {
+                done.countDown();
+            }
+        });
+
+        manager.sendBlob(42, ByteBuffer.wrap(contents), 0, null);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        manager.close();
+
+        Assert.assertEquals(4, chunkCount[0]);
+        Assert.assertArrayEquals(contents, received.toByteArray());
+    }
+
+    @Test
+    public void testSendBlobChunking() throws ConnectException {
+        WSConnection fakeConn = mock(WSConnection.class);
+        when(fakeConn.getState()).thenReturn(WSConnection.State.READY);
+        WSManager manager = new WSManager(fakeConn);
+        List<IntConsumer> onSends = new ArrayList<>();
+        doAnswer(invocation -> {
+            onSends.add((IntConsumer) invocation.getArguments()[2]);
+            return null;
+        }).when(fakeConn).enqueueBinaryMessage(any(ByteBuffer.class), anyInt(), any(IntConsumer.class));
+
+        manager.sendBlob(7, ByteBuffer.wrap(new byte[2 * WSManager.BLOB_CHUNK_SIZE]), 3, null);
+        ArgumentCaptor<ByteBuffer> captor = ArgumentCaptor.forClass(ByteBuffer.class);
+        verify(fakeConn, times(1)).enqueueBinaryMessage(captor.capture(), eq(3), any(IntConsumer.class));
+
+        // The next chunk is only enqueued once the previous one is being sent, and not again on a retry.
+        onSends.get(0).accept(0);
+        onSends.get(0).accept(1);
+        verify(fakeConn, times(2)).enqueueBinaryMessage(captor.capture(), eq(3), any(IntConsumer.class));
+        Assert.assertNull(onSends.get(1));
+
+        BlobChunk first = BlobChunk.decode(captor.getAllValues().get(0));
+        BlobChunk second = BlobChunk.decode(captor.getAllValues().get(2));
+        Assert.assertEquals(7, first.tag);
+        Assert.assertEquals(0, first.sequence);
+        Assert.assertFalse(first.last);
+        Assert.assertEquals(WSManager.BLOB_CHUNK_SIZE, first.payload.remaining());
+        Assert.assertEquals(1, second.sequence);
+        Assert.assertTrue(second.last);
+
+        // An empty blob is still sent as a single, final chunk.
+        manager.sendBlob(8, ByteBuffer.allocate(0), 0, null);
+        verify(fakeConn, times(3)).enqueueBinaryMessage(captor.capture(), anyInt(), any(IntConsumer.class));
+        BlobChunk empty = BlobChunk.decode(captor.getValue());
+        Assert.assertTrue(empty.last);
+        Assert.assertEquals(0, empty.payload.remaining());
+    }
+
+    @Test
+    public void testHandleBinaryMessageSendError() throws ConnectException {
+        WSConnection fakeConn = mock(WSConnection.class);
+        when(fakeConn.getState()).thenReturn(WSConnection.State.READY);
+        WSManager manager = new WSManager(fakeConn);
+        IRequestSendErrorHandler mockHandler = mock(IRequestSendErrorHandler.class);
+
+        manager.sendBlob(9, ByteBuffer.wrap(new byte[10]), 0, mockHandler);
+        manager.handleBinaryMessageSendError(BlobChunk.encode(9, 0, true, ByteBuffer.wrap(new byte[10])));
+        manager.handleBinaryMessageSendError(BlobChunk.encode(9, 0, true, ByteBuffer.wrap(new byte[10])));
+        verify(mockHandler, times(1)).handleRequestSendError();
+    }
 }